@@ -62,6 +62,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;         // used in hashCode
 import java.util.zip.Checksum;
 
@@ -347,6 +348,18 @@ public class ByteArrayMessageElement extends MessageElement {
         return new ByteArrayInputStream(b, offset, len);
     }
 
+    /**
+     *  Returns the contents of this element as a ByteBuffer. The buffer shares
+     *  the element's backing array; no bytes are copied. The contents of the
+     *  buffer must not be modified.
+     *
+     *  @return a ByteBuffer whose position is zero and whose limit is the
+     *  length of this element.
+     */
+    public synchronized ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(b, offset, len).slice();
+    }
+
     /**
      *  {@inheritDoc}
      */
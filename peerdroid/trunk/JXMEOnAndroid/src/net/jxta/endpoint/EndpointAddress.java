@@ -66,6 +66,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import net.jxta.id.ID;
+import net.jxta.impl.util.InternCache;
 
 /**
  * Describes a destination to which JXTA messages may be sent. This may be:
@@ -124,6 +125,17 @@ public class EndpointAddress {
      */
     private static final Logger LOG = Logger.getLogger(EndpointAddress.class.getName());
 
+    /**
+     *  The maximum number of addresses kept in the {@link #interned} pool.
+     */
+    private static final int MAX_INTERNED_ADDRESSES = 1024;
+
+    /**
+     *  Pool of canonical unmodifiable addresses. The keys are the string
+     *  forms of the addresses.
+     */
+    private static final InternCache interned = new InternCache(MAX_INTERNED_ADDRESSES);
+
     /**
      *  if true then the address is a url, otherwise its a uri (likely a urn).
      */
@@ -243,6 +255,29 @@ public class EndpointAddress {
         return new EndpointAddress.UnmodifiableEndpointAddress(address);
     }
 
+    /**
+     *  Returns a canonical representation for the address.
+     *
+     *  <p/>A pool of unmodifiable addresses is maintained privately by the
+     *  class. If the pool already contains an address equal to this one, the
+     *  pooled address is returned. Otherwise an unmodifiable copy of this
+     *  address is added to the pool and returned. Frequently used addresses
+     *  can thus share a single instance along with its cached hash code and
+     *  string form.
+     *
+     *  @return an unmodifiable address equal to this address.
+     */
+    public EndpointAddress intern() {
+        String key = toString();
+        EndpointAddress common = (EndpointAddress) interned.get(key);
+
+        if (null == common) {
+            common = (EndpointAddress) interned.intern(key, unmodifiableEndpointAddress(this));
+        }
+
+        return common;
+    }
+
     /**
      * Builds an empty (invalid) Endpoint Address.
      *
@@ -78,6 +78,7 @@ import android.util.Log;
 import net.jxta.codat.CodatID;
 import net.jxta.id.jxta.IDFormat;
 import net.jxta.impl.ConfigProperties;
+import net.jxta.impl.util.InternCache;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroupID;
 import net.jxta.pipe.PipeID;
@@ -421,6 +422,18 @@ public final class IDFactory extends ClassFactory {
      */
     private String idNewInstances = null;
 
+    /**
+     *  The maximum number of IDs kept in the {@link #interned} pool.
+     */
+    private static final int MAX_INTERNED_IDS = 1024;
+
+    /**
+     *  Canonical instances of the IDs which have been decoded from URIs. The
+     *  keys are the URN scheme specific parts. IDs are immutable so a single
+     *  instance can be shared by everyone decoding the same URI.
+     */
+    private static final InternCache interned = new InternCache(MAX_INTERNED_IDS);
+
     /**
      *  This class is a singleton. This is the instance that backs the
      *  static methods.
@@ -573,20 +586,43 @@ public final class IDFactory extends ClassFactory {
     /**
      *  Construct a new ID instance from a JXTA ID contained in a URI.
      *
+     *  <p/>Recently decoded IDs are pooled; decoding the same URI again
+     *  returns the same instance.
+     *
      *  @param source  URI which will be decoded to create a new ID instance.
      *  @return  ID containing the new ID instance initialized from the URI.
      *  @throws URISyntaxException If the URI provided is not a valid, 
      *  recognized JXTA URI.
      */
     public static ID fromURI(URI source) throws URISyntaxException {
-        ID result = null;
-
         // check the protocol
         if (!ID.URIEncodingName.equalsIgnoreCase(source.getScheme()))
             throw new URISyntaxException(source.toString(), "URI scheme was not as expected.");
 
         String decoded = source.getSchemeSpecificPart();
 
+        ID result = (ID) interned.get(decoded);
+
+        if (null != result) {
+            return result;
+        }
+
+        result = decodeURN(source, decoded);
+
+        return (ID) interned.intern(decoded, result);
+    }
+
+    /**
+     *  Decodes the scheme specific part of a JXTA URN.
+     *
+     *  @param source  URI being decoded, for error reporting.
+     *  @param decoded  the scheme specific part of the URI.
+     *  @return  ID containing the new ID instance initialized from the URI.
+     *  @throws URISyntaxException If the URI provided is not a valid, 
+     *  recognized JXTA URI.
+     */
+    private static ID decodeURN(URI source, String decoded) throws URISyntaxException {
+
         int colonAt = decoded.indexOf(':');
 
         // There's a colon right?
@@ -0,0 +1,536 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import net.jxta.impl.util.TimeUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  An append-only, memory-mapped log of serialized advertisements backing
+ *  one of the Cm directories.
+ *
+ *  <p/>Every save appends a record to the log and every removal appends a
+ *  tombstone, so the log only ever grows until it is compacted. The offset
+ *  of the current record of each key is kept in memory and written to an
+ *  index file when the store is closed or compacted so that a warm start
+ *  does not need to scan the whole log. Records appended after the index
+ *  was written are recovered by scanning the tail of the log.
+ *
+ *  <p/>The log is a header followed by records laid out as:
+ *  <pre>
+ *      int   record length (written last, 0 marks the end of the log)
+ *      byte  PUT or DELETE
+ *      long  absolute lifetime
+ *      long  expiration
+ *      short key length
+ *      byte[] key (UTF-8)
+ *      byte[] advertisement (UTF-8), PUT records only
+ *  </pre>
+ *
+ *  <p/>This class is not synchronized, the Cm is responsible for that.
+ */
+final class AdvertisementStore {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(AdvertisementStore.class.getName());
+
+    private static final int LOG_MAGIC = 0x4A58434C;
+    private static final int INDEX_MAGIC = 0x4A584349;
+
+    /**
+     *  magic and generation
+     */
+    private static final int LOG_HEADER_SIZE = 4 + 8;
+
+    /**
+     *  length, type, lifetime, expiration and key length
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 8 + 2;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     *  Compaction is not worth it below this much garbage.
+     */
+    private static final int MIN_GARBAGE = 32 * 1024;
+
+    private final File logFile;
+    private final File indexFile;
+
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer log = null;
+
+    /**
+     *  Incremented each time the log is compacted so that a stale index is
+     *  never applied to a rewritten log.
+     */
+    private long generation = 0;
+
+    /**
+     *  The offset at which the next record will be written.
+     */
+    private int end = LOG_HEADER_SIZE;
+
+    /**
+     *  The key of each live record to its Entry.
+     */
+    private final Map entries = new HashMap();
+
+    /**
+     *  The total size of the live records.
+     */
+    private long liveBytes = 0;
+
+    /**
+     *  Location and timeouts of a live record.
+     */
+    static final class Entry {
+        final String key;
+        final int offset;
+        final int length;
+        final long lifetime;
+        final long expiration;
+
+        Entry(String key, int offset, int length, long lifetime, long expiration) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.lifetime = lifetime;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     *  Creates a store using files of the given base name.
+     *
+     *  @param base the path of the store files, without extension.
+     */
+    AdvertisementStore(File base) {
+        logFile = new File(base.getPath() + ".log");
+        indexFile = new File(base.getPath() + ".idx");
+    }
+
+    /**
+     *  Opens the store, creating it if necessary, and recovers the live
+     *  records.
+     *
+     *  @throws IOException if the log cannot be opened.
+     */
+    void open() throws IOException {
+        File dir = logFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        boolean exists = logFile.exists() && logFile.length() >= LOG_HEADER_SIZE;
+        map(logFile, exists ? (int) logFile.length() : INITIAL_CAPACITY);
+
+        if (exists && log.getInt(0) == LOG_MAGIC) {
+            generation = log.getLong(4);
+            replay(readIndex());
+        } else {
+            log.putInt(0, LOG_MAGIC);
+            log.putLong(4, generation);
+            end = LOG_HEADER_SIZE;
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Opened " + logFile + " with " + entries.size() + " records (" + liveBytes + "/" + end + " bytes live)");
+        }
+    }
+
+    /**
+     *  Flushes the log and writes the index.
+     */
+    void close() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.force();
+            writeIndex();
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not write index of " + logFile, failed);
+            }
+        }
+        unmap();
+        entries.clear();
+        liveBytes = 0;
+    }
+
+    /**
+     *  Appends a record, superseding any previous record for the key.
+     *
+     *  @param key the record key.
+     *  @param data the serialized advertisement.
+     *  @param lifetime the absolute lifetime of the record.
+     *  @param expiration the expiration of the record.
+     *  @throws IOException if the log cannot be extended.
+     */
+    void put(String key, byte[] data, long lifetime, long expiration) throws IOException {
+        int offset = append(PUT, key, data, lifetime, expiration);
+        Entry entry = new Entry(key, offset, log.getInt(offset), lifetime, expiration);
+        Entry previous = (Entry) entries.put(key, entry);
+        if (previous != null) {
+            liveBytes -= previous.length;
+        }
+        liveBytes += entry.length;
+        compactIfNeeded();
+    }
+
+    /**
+     *  Removes the record of a key, if any.
+     *
+     *  @param key the record key.
+     *  @throws IOException if the log cannot be extended.
+     */
+    void remove(String key) throws IOException {
+        Entry previous = (Entry) entries.remove(key);
+        if (previous == null) {
+            return;
+        }
+        liveBytes -= previous.length;
+        append(DELETE, key, null, 0, 0);
+        compactIfNeeded();
+    }
+
+    /**
+     *  Reads the serialized advertisement of a key.
+     *
+     *  @param key the record key.
+     *  @return the serialized advertisement or <code>null</code> if there
+     *  is no such record.
+     */
+    byte[] get(String key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        int keyLength = log.getShort(entry.offset + RECORD_HEADER_SIZE - 2);
+        byte[] data = new byte[entry.length - RECORD_HEADER_SIZE - keyLength];
+        ByteBuffer view = log.duplicate();
+        view.position(entry.offset + RECORD_HEADER_SIZE + keyLength);
+        view.get(data);
+        return data;
+    }
+
+    /**
+     *  Returns a snapshot of the live records.
+     *
+     *  @return a List of Entry.
+     */
+    List entries() {
+        return new ArrayList(entries.values());
+    }
+
+    /**
+     *  Returns the total size of the live records.
+     *
+     *  @return the total size of the live records in bytes.
+     */
+    long size() {
+        return liveBytes;
+    }
+
+    /**
+     *  Rewrites the log with only the live, unexpired records.
+     *
+     *  @throws IOException if the log cannot be rewritten.
+     */
+    void compact() throws IOException {
+        long now = TimeUtils.timeNow();
+        File compacted = new File(logFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        Map survivors = new HashMap();
+        long survivorBytes = 0;
+        int position = LOG_HEADER_SIZE;
+
+        try {
+            out.setLength(0);
+            out.writeInt(LOG_MAGIC);
+            out.writeLong(generation + 1);
+            Iterator it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = (Entry) it.next();
+                if (entry.lifetime < now) {
+                    continue;
+                }
+                byte[] record = new byte[entry.length];
+                ByteBuffer view = log.duplicate();
+                view.position(entry.offset);
+                view.get(record);
+                out.write(record);
+                survivors.put(entry.key, new Entry(entry.key, position, entry.length, entry.lifetime, entry.expiration));
+                survivorBytes += entry.length;
+                position += entry.length;
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        unmap();
+        if (!compacted.renameTo(logFile)) {
+            throw new IOException("Could not replace " + logFile);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Compacted " + logFile + " from " + end + " to " + position + " bytes");
+        }
+
+        generation++;
+        end = position;
+        entries.clear();
+        entries.putAll(survivors);
+        liveBytes = survivorBytes;
+        map(logFile, Math.max(INITIAL_CAPACITY, position * 2));
+        writeIndex();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long garbage = (end - LOG_HEADER_SIZE) - liveBytes;
+        if (garbage > MIN_GARBAGE && garbage > liveBytes) {
+            compact();
+        }
+    }
+
+    private int append(byte type, String key, byte[] data, long lifetime, long expiration) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        int length = RECORD_HEADER_SIZE + keyBytes.length + ((data == null) ? 0 : data.length);
+        // keep room for the terminating zero length
+        ensureCapacity(end + length + 4);
+
+        int offset = end;
+        ByteBuffer view = log.duplicate();
+        view.position(offset + 4);
+        view.put(type);
+        view.putLong(lifetime);
+        view.putLong(expiration);
+        view.putShort((short) keyBytes.length);
+        view.put(keyBytes);
+        if (data != null) {
+            view.put(data);
+        }
+        // the length goes in last so that a torn record terminates the log
+        log.putInt(offset, length);
+        end += length;
+        return offset;
+    }
+
+    /**
+     *  Applies the records of the log from the given offset onwards.
+     */
+    private void replay(int from) {
+        int position = from;
+        int capacity = log.capacity();
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            int length = log.getInt(position);
+            if (length < RECORD_HEADER_SIZE || position + length > capacity) {
+                break;
+            }
+            byte type = log.get(position + 4);
+            long lifetime = log.getLong(position + 5);
+            long expiration = log.getLong(position + 13);
+            int keyLength = log.getShort(position + 21);
+            if (RECORD_HEADER_SIZE + keyLength > length) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            ByteBuffer view = log.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(keyBytes);
+            String key;
+            try {
+                key = new String(keyBytes, "UTF-8");
+            } catch (IOException never) {
+                break;
+            }
+
+            Entry previous;
+            if (type == PUT) {
+                previous = (Entry) entries.put(key, new Entry(key, position, length, lifetime, expiration));
+                liveBytes += length;
+            } else {
+                previous = (Entry) entries.remove(key);
+            }
+            if (previous != null) {
+                liveBytes -= previous.length;
+            }
+            position += length;
+        }
+        end = position;
+    }
+
+    /**
+     *  Loads the index if it matches the log.
+     *
+     *  @return the offset up to which the index describes the log.
+     */
+    private int readIndex() {
+        if (!indexFile.exists()) {
+            return LOG_HEADER_SIZE;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readLong() != generation) {
+                return LOG_HEADER_SIZE;
+            }
+            int covered = in.readInt();
+            int count = in.readInt();
+            if (covered < LOG_HEADER_SIZE || covered > log.capacity()) {
+                return LOG_HEADER_SIZE;
+            }
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readInt(), in.readInt(), in.readLong(), in.readLong());
+                entries.put(entry.key, entry);
+                liveBytes += entry.length;
+            }
+            return covered;
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Ignoring unreadable index " + indexFile, failed);
+            }
+            entries.clear();
+            liveBytes = 0;
+            return LOG_HEADER_SIZE;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    ;
+                }
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(end);
+            out.writeInt(entries.size());
+            Iterator it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = (Entry) it.next();
+                out.writeUTF(entry.key);
+                out.writeInt(entry.offset);
+                out.writeInt(entry.length);
+                out.writeLong(entry.lifetime);
+                out.writeLong(entry.expiration);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        if (needed <= log.capacity()) {
+            return;
+        }
+        int capacity = Math.max(log.capacity() * 2, needed);
+        log.force();
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void map(File target, int capacity) throws IOException {
+        file = new RandomAccessFile(target, "rw");
+        channel = file.getChannel();
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void unmap() {
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException ignored) {
+            ;
+        }
+        // the mapping itself is released when the buffer is collected
+        log = null;
+        channel = null;
+        file = null;
+    }
+}
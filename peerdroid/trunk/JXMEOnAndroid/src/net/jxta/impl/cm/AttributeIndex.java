@@ -0,0 +1,277 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ *  An inverted index of the values of a single attribute within one of the
+ *  Cm directories.
+ *
+ *  <p/>Values are case folded once when they are indexed so that a lookup
+ *  never has to fold the indexed values again. Equality lookups are hash
+ *  lookups, <code>foo*</code> lookups are range scans over the sorted values
+ *  and <code>*foo</code> lookups are range scans over the sorted reversed
+ *  values. Only <code>*foo*</code> has to look at every distinct value.
+ *
+ *  <p/>This class is not synchronized, the Cm is responsible for that.
+ */
+final class AttributeIndex {
+
+    /**
+     *  The wildcard character recognized in query values.
+     */
+    static final char WILDCARD = '*';
+
+    /**
+     *  The key of each indexed record to its IndexRecord.
+     */
+    private final Map records = new HashMap();
+
+    /**
+     *  Folded value to the Set of keys which have that value.
+     */
+    private final Map keysByValue = new HashMap();
+
+    /**
+     *  The distinct folded values in natural order.
+     */
+    private final SortedSet values = new TreeSet();
+
+    /**
+     *  The distinct folded values, reversed, in natural order.
+     */
+    private final SortedSet reversedValues = new TreeSet();
+
+    /**
+     *  Returns the case folded form of a value as stored in the index.
+     *
+     *  @param value the value to fold.
+     *  @return the folded value.
+     */
+    static String fold(String value) {
+        return value.toUpperCase();
+    }
+
+    private static String reverse(String value) {
+        return new StringBuffer(value).reverse().toString();
+    }
+
+    /**
+     *  Adds a record to the index, replacing any record previously indexed
+     *  under the same key.
+     *
+     *  @param record the record to index.
+     */
+    void add(Cm.IndexRecord record) {
+        Cm.IndexRecord previous = (Cm.IndexRecord) records.put(record.key, record);
+        String folded = fold(record.value);
+
+        if (previous != null) {
+            String previousFolded = fold(previous.value);
+            if (previousFolded.equals(folded)) {
+                return;
+            }
+            unlink(previous.key, previousFolded);
+        }
+
+        Set keys = (Set) keysByValue.get(folded);
+        if (keys == null) {
+            keys = new HashSet();
+            keysByValue.put(folded, keys);
+            values.add(folded);
+            reversedValues.add(reverse(folded));
+        }
+        keys.add(record.key);
+    }
+
+    /**
+     *  Removes the record indexed under the given key.
+     *
+     *  @param key the key of the record.
+     *  @return the removed record or <code>null</code> if there was none.
+     */
+    Cm.IndexRecord remove(String key) {
+        Cm.IndexRecord record = (Cm.IndexRecord) records.remove(key);
+        if (record != null) {
+            unlink(key, fold(record.value));
+        }
+        return record;
+    }
+
+    private void unlink(String key, String folded) {
+        Set keys = (Set) keysByValue.get(folded);
+        if (keys == null) {
+            return;
+        }
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByValue.remove(folded);
+            values.remove(folded);
+            reversedValues.remove(reverse(folded));
+        }
+    }
+
+    /**
+     *  Returns the keys of the records whose value matches the given query
+     *  value. A <code>null</code> value or a lone wildcard matches every
+     *  record. A leading and/or trailing wildcard requests a suffix, prefix
+     *  or substring match. Matching is case insensitive.
+     *
+     *  @param value the query value.
+     *  @return the matching keys. The collection must not be modified.
+     */
+    Collection search(String value) {
+        if (value == null) {
+            return records.keySet();
+        }
+
+        int length = value.length();
+        boolean leading = (length > 0) && (value.charAt(0) == WILDCARD);
+        boolean trailing = (length > 1) && (value.charAt(length - 1) == WILDCARD);
+
+        if (leading && (length == 1)) {
+            return records.keySet();
+        }
+
+        String folded = fold(value.substring(leading ? 1 : 0, trailing ? length - 1 : length));
+
+        if (leading && trailing) {
+            return collect(containing(folded));
+        } else if (leading) {
+            return collectReversed(startingWith(reversedValues, reverse(folded)));
+        } else if (trailing) {
+            return collect(startingWith(values, folded));
+        }
+
+        Set keys = (Set) keysByValue.get(folded);
+        if (keys == null) {
+            return Collections.EMPTY_SET;
+        }
+        return keys;
+    }
+
+    /**
+     *  Returns all of the records in the index.
+     *
+     *  @return the IndexRecords. The collection must not be modified.
+     */
+    Collection records() {
+        return records.values();
+    }
+
+    /**
+     *  Returns the number of records in the index.
+     *
+     *  @return the number of records in the index.
+     */
+    int size() {
+        return records.size();
+    }
+
+    /**
+     *  Returns the values of the sorted set which start with the given
+     *  prefix. Relies upon all such values being contiguous in the set.
+     */
+    private static List startingWith(SortedSet sorted, String prefix) {
+        List result = new ArrayList();
+        Iterator it = sorted.tailSet(prefix).iterator();
+        while (it.hasNext()) {
+            String each = (String) it.next();
+            if (!each.startsWith(prefix)) {
+                break;
+            }
+            result.add(each);
+        }
+        return result;
+    }
+
+    private List containing(String part) {
+        List result = new ArrayList();
+        Iterator it = values.iterator();
+        while (it.hasNext()) {
+            String each = (String) it.next();
+            if (each.indexOf(part) >= 0) {
+                result.add(each);
+            }
+        }
+        return result;
+    }
+
+    private Collection collect(List folded) {
+        List result = new ArrayList();
+        for (int i = 0; i < folded.size(); i++) {
+            result.addAll((Set) keysByValue.get(folded.get(i)));
+        }
+        return result;
+    }
+
+    private Collection collectReversed(List reversed) {
+        List result = new ArrayList();
+        for (int i = 0; i < reversed.size(); i++) {
+            result.addAll((Set) keysByValue.get(reverse((String) reversed.get(i))));
+        }
+        return result;
+    }
+}
@@ -56,24 +56,31 @@
  */
 package net.jxta.impl.cm;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.math.BigInteger;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import net.jxta.id.ID;
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
 import net.jxta.document.StructuredDocument;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.impl.util.JxtaHash;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.TimerThreadNamer;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PeerGroupAdvertisement;
 import net.jxta.protocol.SrdiMessage;
@@ -97,14 +104,54 @@ public final class Cm {
      *  adv types
      */
     private static final String[] DIRNAME = {"Peers", "Groups", "Adv", "Raw"};
-    private boolean stop = false;
-    private boolean trackDeltas = false;
-    private Map deltaMap = new HashMap(3);
-    private Map advMaps = new HashMap(4);
-    private Map indexMap = new HashMap(4);
-    private Map deltas  = new HashMap(4);
+    private volatile boolean stop = false;
+    private volatile boolean trackDeltas = false;
+    /**
+     *  The partitions by directory name. Populated by the constructor and
+     *  never modified afterwards so it may be read without locking.
+     */
+    private final Map partitions = new HashMap(4);
     private transient int cacheSize = 50;
 
+    /**
+     *  The resolution of record expiration.
+     */
+    private static final long EXPIRY_TICK = TimeUtils.ASECOND;
+
+    /**
+     *  The number of slots of the expiration wheels.
+     */
+    private static final int EXPIRY_SLOTS = 512;
+
+    /**
+     *  Runs the expiration of records.
+     */
+    private final Timer timer = new Timer(true);
+
+    /**
+     *  System property which, when "true", makes peer groups keep their
+     *  cache on disk.
+     */
+    public static final String PERSISTENT_PROPERTY = "net.jxta.impl.cm.persistent";
+
+    /**
+     *  Default number of bytes of advertisements kept in each directory of
+     *  a persistent cm.
+     */
+    public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    /**
+     *  Where the directories are stored or <code>null</code> if the cm is
+     *  kept in memory only.
+     */
+    private final File storeHome;
+
+    /**
+     *  The number of bytes of advertisements kept in each directory of a
+     *  persistent cm.
+     */
+    private final long maxBytes;
+
     /**
      * Constructor for cm
      *
@@ -113,18 +160,135 @@ public final class Cm {
     public Cm(boolean trackDeltas) {
 
         this.trackDeltas = trackDeltas;
+        this.storeHome = null;
+        this.maxBytes = 0;
+        try {
+            createCaches();
+        } catch (IOException never) {
+            // only persistent partitions do I/O
+            throw new IllegalStateException(never.toString());
+        }
+        startExpiry();
+    }
+
+    /**
+     * Constructor for a persistent cm. The advertisements of each directory
+     * are kept in a log within <code>storeHome</code> and those which have
+     * not expired are reloaded by this constructor. Each directory is bounded
+     * by <code>maxBytes</code> of serialized advertisements rather than by a
+     * number of entries.
+     *
+     * @param  storeHome       directory in which to keep the cache
+     * @param  maxBytes        number of bytes of advertisements to keep per directory
+     * @param  trackDeltas     when true deltas are tracked
+     * @throws  IOException    if the store cannot be opened
+     */
+    public Cm(File storeHome, long maxBytes, boolean trackDeltas) throws IOException {
+
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be greater than zero");
+        }
+        this.trackDeltas = trackDeltas;
+        this.storeHome = storeHome;
+        this.maxBytes = maxBytes;
         createCaches();
+        startExpiry();
+    }
+
+    private void startExpiry() {
+        timer.schedule(new TimerThreadNamer("Cm Expiry Timer"), 0);
+        timer.schedule(new TimerTask() {
+                           public void run() {
+                               expire();
+                           }
+                       }, EXPIRY_TICK, EXPIRY_TICK);
     }
 
-    private void createCaches() {
+    /**
+     * Removes the records whose lifetime has ended, along with their index
+     * entries.
+     */
+    private void expire() {
+        Iterator it = partitions.values().iterator();
+        while (it.hasNext() && !stop) {
+            Partition partition = (Partition) it.next();
+            partition.lock.writeLock().lock();
+            try {
+                if (partition.wheel.size() == 0) {
+                    continue;
+                }
+                List expired = partition.wheel.advance(TimeUtils.timeNow());
+                for (int i = 0; i < expired.size(); i++) {
+                    String fn = (String) expired.get(i);
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Expiring :" + fn);
+                    }
+                    removeRecord(partition, fn);
+                    partition.expiredCount++;
+                }
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.ERROR)) {
+                    LOG.error("Uncaught Throwable expiring records of " + partition.name, all);
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void createCaches() throws IOException {
         for (int i=0; i<DIRNAME.length; i++) {
-            if (advMaps.get(DIRNAME[i]) == null) {
-                LRUCache lru = new LRUCache(cacheSize);
-                advMaps.put(DIRNAME[i], lru);
+            if (partitions.get(DIRNAME[i]) == null) {
+                Partition partition;
+                if (storeHome == null) {
+                    partition = new Partition(DIRNAME[i], null);
+                } else {
+                    AdvertisementStore store = new AdvertisementStore(new File(storeHome, DIRNAME[i]));
+                    store.open();
+                    partition = new Partition(DIRNAME[i], store);
+                    load(partition);
+                }
+                partitions.put(DIRNAME[i], partition);
+            }
+        }
+    }
+
+    /**
+     * Restores the unexpired advertisements of a persistent partition.
+     */
+    private void load(Partition partition) throws IOException {
+        long now = TimeUtils.timeNow();
+        Iterator it = partition.store.entries().iterator();
+        while (it.hasNext()) {
+            AdvertisementStore.Entry entry = (AdvertisementStore.Entry) it.next();
+            if (entry.lifetime < now) {
+                partition.store.remove(entry.key);
+                continue;
+            }
+            Advertisement adv;
+            try {
+                adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8,
+                        new ByteArrayInputStream(partition.store.get(entry.key)));
+            } catch (Exception failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Dropping unreadable record " + entry.key + " of " + partition.name, failed);
+                }
+                partition.store.remove(entry.key);
+                continue;
             }
+            partition.cache.put(entry.key, new Record(adv, entry.lifetime, entry.expiration));
+            index(partition, adv.getIndexMap(), entry.key, entry.lifetime);
+            schedule(partition, entry.key, entry.lifetime);
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Loaded " + partition.cache.size() + " records of " + partition.name);
         }
     }
 
+    private Partition getPartition(String dn) {
+        return (Partition) partitions.get(dn);
+    }
+
     private static String getDirName(Advertisement adv) {
         if (adv instanceof PeerAdvertisement) {
             return DIRNAME[DiscoveryService.PEER];
@@ -144,14 +308,8 @@ public final class Cm {
         try {
             StringWriter out = new StringWriter();
             ((StructuredTextDocument) doc).sendToWriter(out);
-            JxtaHash digester = new JxtaHash(out.toString());
-            BigInteger hash = digester.getDigestInteger();
-            if (hash.compareTo(BigInteger.ZERO) < 0) {
-                hash = hash.negate();
-            }
-            String strHash = "cm" + hash.toString(16);
             out.close();
-            return strHash;
+            return createTmpName(out.toString());
         } catch (IOException ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Exception creating tmp name: ", ex);
@@ -160,6 +318,28 @@ public final class Cm {
         return null;
     }
 
+    /**
+     * Generates a random file name using the hash of the advertisement's
+     * XML form. Produces the same name as {@link #createTmpName(StructuredDocument)}
+     * for the advertisement's document, but makes use of any serialized form
+     * cached by the advertisement.
+     *
+     * @param  adv  to hash to generate a unique name
+     * @return      String a random file name
+     */
+    public static String createTmpName(Advertisement adv) {
+        return createTmpName(adv.toString());
+    }
+
+    private static String createTmpName(String serialized) {
+        JxtaHash digester = new JxtaHash(serialized);
+        BigInteger hash = digester.getDigestInteger();
+        if (hash.compareTo(BigInteger.ZERO) < 0) {
+            hash = hash.negate();
+        }
+        return "cm" + hash.toString(16);
+    }
+
     /**
      * Gets the list of all the files into the given folder
      *
@@ -173,10 +353,17 @@ public final class Cm {
                              Vector expirations,
                              boolean bytes) {
 
-        LRUCache cache = (LRUCache) advMaps.get(dn);
+        Partition partition = getPartition(dn);
         Vector result = new Vector();
-        if (cache!= null) {
-            Iterator it = cache.iterator(threshold);
+        if (partition != null) {
+            // take a snapshot so that writers are not held up while we render
+            Iterator it;
+            partition.lock.readLock().lock();
+            try {
+                it = partition.cache.iterator(threshold);
+            } finally {
+                partition.lock.readLock().unlock();
+            }
             while (it.hasNext()) {
                 Record record = (Record) it.next();
                 if (!bytes) {
@@ -195,6 +382,19 @@ public final class Cm {
         return result;
     }
 
+    private Record getRecord(String dn, String fn) {
+        Partition partition = getPartition(dn);
+        if (partition == null) {
+            return null;
+        }
+        partition.lock.readLock().lock();
+        try {
+            return (Record) partition.cache.get(fn);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
     /**
      *  Returns the relative time in milliseconds at which the file
      *  will expire.
@@ -206,10 +406,9 @@ public final class Cm {
      * document will expire. -1 is returned if the file is not
      * recognized or already expired.
      */
-    public synchronized long getLifetime(String dn, String fn) {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
+    public long getLifetime(String dn, String fn) {
+        Record record = getRecord(dn, fn);
+        if (record != null) {
             return TimeUtils.toRelativeTimeMillis(record.lifetime);
         }
         return -1;
@@ -226,10 +425,9 @@ public final class Cm {
      * @return     number of milliseconds until the file expires or -1 if the
      * file is not recognized or already expired.
      */
-    public synchronized long getExpirationtime(String dn, String fn) {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
+    public long getExpirationtime(String dn, String fn) {
+        Record record = getRecord(dn, fn);
+        if (record != null) {
             return record.expiration;
         }
         return -1;
@@ -242,19 +440,21 @@ public final class Cm {
      * @param  fn            file name
      * @throws  IOException  if an I/O error occurs
      */
-    public synchronized void remove(String dn, String fn)
+    public void remove(String dn, String fn)
     throws IOException {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
-            if (fn != null && record != null) {
-                cache.remove(fn);
-                addDelta(dn, record.advertisement.getIndexMap(), 0);
+        Partition partition = getPartition(dn);
+        if (partition == null || fn == null) {
+            return;
+        }
+        partition.lock.writeLock().lock();
+        try {
+            Record record = removeRecord(partition, fn);
+            if (record != null) {
+                addDelta(partition, record.advertisement.getIndexMap(), 0);
             }
+        } finally {
+            partition.lock.writeLock().unlock();
         }
-
-        //FIXME need to also remove memory indexes, however they will eventually
-        //be expungend since they're stored in an LRU cache
     }
 
     /**
@@ -280,7 +480,7 @@ public final class Cm {
      * @param  lifetime         document lifetime in ms
      * @exception  IOException  if an I/O error occurs
      */
-    public synchronized void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
+    public void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
     throws IOException {
         if (expiration < 0 || lifetime < 0) {
             throw new IllegalArgumentException("cannot store an advertisement with negative expiry");
@@ -292,21 +492,92 @@ public final class Cm {
             LOG.debug("Saving :"+fn);
         }
 
+        Partition partition = getPartition(dn);
+        if (partition == null) {
+            throw new IOException("unknown directory type");
+        }
         long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
-        index(adv.getIndexMap(), dn, fn, lifetime);
         Record record = new Record(adv, absoluteLifetime, expiration);
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            cache.put(fn, record);
-            index(adv.getIndexMap(), dn, fn, lifetime);
+        // compute the index map and serialized form before taking the lock,
+        // they may be expensive
+        Map indexables = adv.getIndexMap();
+        byte[] data = null;
+        if (partition.store != null) {
+            data = adv.toString().getBytes("UTF-8");
+        }
+        partition.lock.writeLock().lock();
+        try {
+            if (partition.store != null) {
+                partition.store.put(fn, data, absoluteLifetime, expiration);
+            }
+            partition.cache.put(fn, record);
+            index(partition, indexables, fn, absoluteLifetime);
+            schedule(partition, fn, absoluteLifetime);
+            addDelta(partition, indexables, lifetime);
+            evict(partition);
+        } finally {
+            partition.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Schedules the expiration of a record. Must be called with the partition
+     * write lock held.
+     */
+    private static void schedule(Partition partition, String fn, long absoluteLifetime) {
+        if (absoluteLifetime == Long.MAX_VALUE) {
+            partition.wheel.cancel(fn);
         } else {
-            throw new IOException("unknown directory type");
+            partition.wheel.schedule(fn, absoluteLifetime);
         }
     }
 
+    /**
+     * Removes the least recently used records of a partition until it holds
+     * no more than cacheSize records or, for a persistent partition, until
+     * its advertisements fit in maxBytes. Must be called with the partition
+     * write lock held.
+     */
+    private void evict(Partition partition) throws IOException {
+        while (partition.cache.size() > 1 && isFull(partition)) {
+            String fn = (String) partition.cache.lastKey();
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Evicting :" + fn);
+            }
+            removeRecord(partition, fn);
+            partition.evictedCount++;
+        }
+    }
 
+    private boolean isFull(Partition partition) {
+        if (partition.store != null) {
+            return partition.store.size() > maxBytes;
+        }
+        return partition.cache.size() > cacheSize;
+    }
 
-    private void index(Map indexables, String dn, String fn, long lifetime) {
+    /**
+     * Removes a record, its index entries and its stored form. Must be called
+     * with the partition write lock held.
+     */
+    private Record removeRecord(Partition partition, String fn) throws IOException {
+        Record record = (Record) partition.cache.remove(fn);
+        if (record != null) {
+            unindex(partition, record.advertisement.getIndexMap(), fn);
+        }
+        partition.wheel.cancel(fn);
+        if (partition.store != null) {
+            partition.store.remove(fn);
+        }
+        return record;
+    }
+
+    /**
+     * Must be called with the partition write lock held.
+     *
+     * @param  lifetime  absolute lifetime of the record
+     */
+    private void index(Partition partition, Map indexables, String fn, long lifetime) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Indexing :"+fn);
         }
@@ -317,25 +588,27 @@ public final class Cm {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Adding index for :"+key +" + "+indexables.get(key));
             }
-            Map keyTable = (Map) indexMap.get(dn);
-            if (keyTable != null) {
-                Set set = (Set) keyTable.get(key);
-                if (set != null) {
-                    set.add(indexRecord);
-                } else {
-                    set = new HashSet();
-                    set.add(indexRecord);
-                    keyTable.put(key, set);
-                }
-            } else {
-                keyTable = new HashMap();
-                Set set = new HashSet();
-                set.add(indexRecord);
-                keyTable.put(key, set);
-                indexMap.put(dn, keyTable);
+            AttributeIndex index = (AttributeIndex) partition.keyTable.get(key);
+            if (index == null) {
+                index = new AttributeIndex();
+                partition.keyTable.put(key, index);
+            }
+            index.add(indexRecord);
+        }
+    }
+
+    /**
+     * removes the index entries of a file. Must be called with the
+     * partition write lock held.
+     */
+    private static void unindex(Partition partition, Map indexables, String fn) {
+        Iterator it = indexables.keySet().iterator();
+        while (it.hasNext()) {
+            AttributeIndex index = (AttributeIndex) partition.keyTable.get(it.next());
+            if (index != null) {
+                index.remove(fn);
             }
         }
-        addDelta(dn, indexables, lifetime);
     }
 
     /**
@@ -359,7 +632,8 @@ public final class Cm {
 
     /**
      * Search and recovers documents that contains at least
-     * a macthing pair of tag/value.
+     * a macthing pair of tag/value. The value is matched case insensitively
+     * and may carry a leading and/or trailing '*' wildcard.
      *
      * @param  dn         contains the name of the folder on which to 
      *                    perform the search
@@ -368,55 +642,42 @@ public final class Cm {
      * @param  threshold  threshold
      * @return            Enumeration containing of all the documents names
      */
-    public synchronized Vector search(String dn,
-                                      String attribute,
-                                      String value,
-                                      int threshold,
-                                      Vector expirations) {
+    public Vector search(String dn,
+                         String attribute,
+                         String value,
+                         int threshold,
+                         Vector expirations) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Searching for :"+dn+" + "+attribute+" + "+value +" + "+threshold);
         }
         Vector res = new Vector();
-        LRUCache advmap = (LRUCache) advMaps.get(dn);
-        if (advmap == null || advmap.size() == 0) {
+        Partition partition = getPartition(dn);
+        if (partition == null) {
             return res;
         }
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable != null) {
-            Set set = (Set) keyTable.get(attribute);
-            if (set != null) {
+        partition.lock.readLock().lock();
+        try {
+            LRUCache advmap = partition.cache;
+            if (advmap.size() == 0) {
+                return res;
+            }
+            AttributeIndex index = (AttributeIndex) partition.keyTable.get(attribute);
+            if (index != null) {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Found a matching table for :"+attribute);
                 }
 
-                Iterator it = set.iterator();
+                Iterator it = index.search(value).iterator();
                 while (it.hasNext()) {
-                    IndexRecord idx = (IndexRecord) it.next();
-                    if (value != null) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Comparing "+idx.value +" to "+value);
-                }
-                        if (idx.value.toUpperCase().equals(value.toUpperCase())) {
-                            if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("Found a matching record :"+idx.key);
-                            }
-                            Record record = (Record) advmap.get(idx.key);
-                            if (record != null) {
-                                res.add(record.advertisement);
-                                if (expirations != null) {
-                                    expirations.add(new Long(record.expiration));
-                                }
-                            }
+                    String key = (String) it.next();
+                    Record record = (Record) advmap.get(key);
+                    if (record != null) {
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("Found a matching record :"+key);
                         }
-
-                    } else {
-                        Record record = (Record) advmap.get(idx.key);
-                        if (record != null) {
-                            res.add(record.advertisement);
-                            if (expirations != null) {
-                                expirations.add(new Long(record.expiration));
-                            }
-
+                        res.add(record.advertisement);
+                        if (expirations != null) {
+                            expirations.add(new Long(record.expiration));
                         }
                     }
                     if (res.size()>= threshold) {
@@ -424,6 +685,8 @@ public final class Cm {
                     }
                 }
             }
+        } finally {
+            partition.lock.readLock().unlock();
         }
         return res;
     }
@@ -434,27 +697,36 @@ public final class Cm {
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getEntries(String dn, boolean clearDeltas) {
+    public Vector getEntries(String dn, boolean clearDeltas) {
         Vector res = new Vector();
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable == null) {
+        Partition partition = getPartition(dn);
+        if (partition == null) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Returning empty vector of entries");
             }
             return res;
         }
-        Iterator it = keyTable.values().iterator();
-        while (it.hasNext()) {
-            Set set = (Set) it.next();
-            Iterator sets = set.iterator();
-            while (sets.hasNext()) {
-                IndexRecord record = (IndexRecord) sets.next();
-                SrdiMessage.Entry entry = new SrdiMessage.Entry(dn, record.key, (record.lifetime- System.currentTimeMillis()));
-                res.add(entry);
+        // clearing the deltas needs exclusive access, otherwise a read lock will do
+        Lock lock = clearDeltas ? partition.lock.writeLock() : partition.lock.readLock();
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            Iterator it = partition.keyTable.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry anIndex = (Map.Entry) it.next();
+                String attr = (String) anIndex.getKey();
+                Iterator records = ((AttributeIndex) anIndex.getValue()).records().iterator();
+                while (records.hasNext()) {
+                    IndexRecord record = (IndexRecord) records.next();
+                    SrdiMessage.Entry entry = new SrdiMessage.Entry(attr, record.value, (record.lifetime - now));
+                    res.add(entry);
+                }
             }
-        }
-        if (clearDeltas) {
-            clearDeltas(dn);
+            if (clearDeltas) {
+                partition.deltas.clear();
+            }
+        } finally {
+            lock.unlock();
         }
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Returning vector of size :"+res.size());
@@ -468,68 +740,150 @@ public final class Cm {
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getDeltas(String dn) {
+    public Vector getDeltas(String dn) {
         Vector result = new Vector();
-        List deltas = (List) deltaMap.get(dn);
-        if (deltas != null) {
-            result.addAll(deltas);
-            deltas.clear();
+        Partition partition = getPartition(dn);
+        if (partition != null) {
+            partition.lock.writeLock().lock();
+            try {
+                result.addAll(partition.deltas.values());
+                partition.deltas.clear();
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
         }
         return result;
     }
 
-    private synchronized void clearDeltas(String dn) {
-        List deltas = (List) deltaMap.get(dn);
-        if (deltas == null) {
-            return;
-        }
-        deltas.clear();
-    }
-
-    private synchronized void addDelta(String dn, Map indexables, long exp) {
+    /**
+     * Must be called with the partition write lock held.
+     */
+    private void addDelta(Partition partition, Map indexables, long exp) {
 
         if (trackDeltas) {
             Iterator eachIndex = indexables.entrySet().iterator();
 
-            if (eachIndex.hasNext()) {
-                List deltas = (List) deltaMap.get(dn);
-
-                if (deltas == null) {
-                    deltas = new ArrayList();
-                    deltaMap.put(dn, deltas);
-                }
-                while (eachIndex.hasNext()) {
-                    Map.Entry anEntry = (Map.Entry) eachIndex.next();
-                    String attr = (String) anEntry.getKey();
-                    String value = (String) anEntry.getValue();
-                    SrdiMessage.Entry entry = new SrdiMessage.Entry(attr, value, exp);
-                    deltas.add(entry);
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("Added entry  :" + entry + " to deltas");
-                    }
+            while (eachIndex.hasNext()) {
+                Map.Entry anEntry = (Map.Entry) eachIndex.next();
+                String attr = (String) anEntry.getKey();
+                String value = (String) anEntry.getValue();
+                SrdiMessage.Entry entry = new SrdiMessage.Entry(attr, value, exp);
+                // entries are equal regardless of expiration, the latest one wins
+                partition.deltas.put(entry, entry);
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Added entry  :" + entry + " to deltas");
                 }
             }
         }
     }
 
-    public synchronized void setTrackDeltas(boolean trackDeltas) {
+    public void setTrackDeltas(boolean trackDeltas) {
 
         this.trackDeltas = trackDeltas;
         if (!trackDeltas) {
-            deltaMap.clear();
+            Iterator it = partitions.values().iterator();
+            while (it.hasNext()) {
+                Partition partition = (Partition) it.next();
+                partition.lock.writeLock().lock();
+                try {
+                    partition.deltas.clear();
+                } finally {
+                    partition.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * returns the number of records removed because their lifetime ended
+     *
+     * @return     the number of expired records
+     */
+    public long getExpiredCount() {
+        long count = 0;
+        Iterator it = partitions.values().iterator();
+        while (it.hasNext()) {
+            count += ((Partition) it.next()).expiredCount;
+        }
+        return count;
+    }
+
+    /**
+     * returns the number of records removed to make room for others
+     *
+     * @return     the number of evicted records
+     */
+    public long getEvictedCount() {
+        long count = 0;
+        Iterator it = partitions.values().iterator();
+        while (it.hasNext()) {
+            count += ((Partition) it.next()).evictedCount;
         }
+        return count;
     }
 
     /**
      * stop the cm
      */
-    public synchronized void stop() {
+    public void stop() {
         stop = true;
-        deltas.clear();
-        deltaMap.clear();
-        indexMap.clear();
-        advMaps.clear();
+        timer.cancel();
+        Iterator it = partitions.values().iterator();
+        while (it.hasNext()) {
+            Partition partition = (Partition) it.next();
+            partition.lock.writeLock().lock();
+            try {
+                partition.deltas.clear();
+                partition.keyTable.clear();
+                partition.cache.clear();
+                partition.wheel.clear();
+                if (partition.store != null) {
+                    partition.store.close();
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * One of the Cm directories along with its indexes and deltas.
+     *
+     * <p/>Each partition has its own read/write lock so that operations on
+     * different directories never contend with each other. Searches and
+     * lookups share the read lock and therefore only wait for writers of the
+     * same directory, whose critical sections are kept short. The LRUCache
+     * is itself synchronized since a lookup moves the record to the head.
+     *
+     * <p/>A persistent partition also has a store. Its cache is then bounded
+     * by the size of the stored advertisements rather than by cacheSize.
+     * Records are removed by the Cm when they expire or are evicted, never
+     * by the LRUCache itself, so that their index entries go with them.
+     */
+    private final class Partition {
+        final String name;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final LRUCache cache;
+        final AdvertisementStore store;
+        /**
+         *  attribute name to AttributeIndex
+         */
+        final Map keyTable = new HashMap();
+        /**
+         *  SrdiMessage.Entry to itself, coalesces repeated deltas
+         */
+        final Map deltas = new HashMap();
+        final ExpiryWheel wheel = new ExpiryWheel(EXPIRY_SLOTS, EXPIRY_TICK, TimeUtils.timeNow());
+        volatile long expiredCount = 0;
+        volatile long evictedCount = 0;
+
+        Partition(String name, AdvertisementStore store) {
+            this.name = name;
+            this.store = store;
+            this.cache = new LRUCache(Integer.MAX_VALUE);
+        }
     }
+
     public class Record {
         public transient Advertisement advertisement;
         public transient long lifetime;
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.jxta.impl.util.Dlink;
+import net.jxta.impl.util.Dlist;
+
+/**
+ *  A hashed timing wheel of record expirations.
+ *
+ *  <p/>Time is divided in ticks and each tick maps to one of a fixed number
+ *  of slots. A timeout is linked into the slot of the first tick which ends
+ *  after its deadline, so scheduling and cancelling are O(1). Advancing the
+ *  wheel only visits the slots of the ticks which elapsed. Timeouts more
+ *  than one revolution away stay in their slot and are skipped until the
+ *  revolution in which they are due, which amortizes to O(1) per timeout
+ *  and revolution.
+ *
+ *  <p/>This class is not synchronized, the Cm is responsible for that.
+ */
+final class ExpiryWheel {
+
+    /**
+     *  A scheduled expiration. Linked into the list of its slot.
+     */
+    private static final class Timeout extends Dlink {
+        final Object key;
+        final long deadline;
+
+        Timeout(Object key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Dlist[] slots;
+    private final long tick;
+
+    /**
+     *  The last tick which was processed.
+     */
+    private long currentTick;
+
+    /**
+     *  key to Timeout
+     */
+    private final Map timeouts = new HashMap();
+
+    /**
+     *  Creates a wheel.
+     *
+     *  @param slotCount the number of slots of the wheel.
+     *  @param tick the duration of a tick in milliseconds.
+     *  @param now the current time in milliseconds.
+     */
+    ExpiryWheel(int slotCount, long tick, long now) {
+        if (slotCount <= 0 || tick <= 0) {
+            throw new IllegalArgumentException("slotCount and tick must be greater than zero");
+        }
+        this.slots = new Dlist[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Dlist();
+        }
+        this.tick = tick;
+        this.currentTick = now / tick;
+    }
+
+    /**
+     *  Schedules the expiration of a key, replacing any expiration already
+     *  scheduled for it.
+     *
+     *  @param key the key to expire.
+     *  @param deadline the absolute time in milliseconds at which it expires.
+     */
+    void schedule(Object key, long deadline) {
+        cancel(key);
+        // the first tick which ends at or after the deadline, never one
+        // which has already been processed
+        long due = Math.max(deadline / tick + ((deadline % tick == 0) ? 0 : 1), currentTick + 1);
+        Timeout timeout = new Timeout(key, deadline);
+        slots[(int) (due % slots.length)].putLast(timeout);
+        timeouts.put(key, timeout);
+    }
+
+    /**
+     *  Cancels the expiration of a key.
+     *
+     *  @param key the key.
+     *  @return <code>true</code> if an expiration was scheduled.
+     */
+    boolean cancel(Object key) {
+        Timeout timeout = (Timeout) timeouts.remove(key);
+        if (timeout == null) {
+            return false;
+        }
+        timeout.unlink();
+        return true;
+    }
+
+    /**
+     *  Returns the number of scheduled expirations.
+     *
+     *  @return the number of scheduled expirations.
+     */
+    int size() {
+        return timeouts.size();
+    }
+
+    /**
+     *  Processes the ticks which elapsed up to the given time and removes
+     *  the keys which are due.
+     *
+     *  @param now the current time in milliseconds.
+     *  @return the keys which expired.
+     */
+    List advance(long now) {
+        long target = now / tick;
+        if (target <= currentTick) {
+            return Collections.EMPTY_LIST;
+        }
+        // after a whole revolution every slot has been visited
+        long first = Math.max(currentTick + 1, target - slots.length + 1);
+        currentTick = target;
+
+        List expired = new ArrayList();
+        for (long each = first; each <= target; each++) {
+            Dlist slot = slots[(int) (each % slots.length)];
+            Dlink link = slot.first();
+            while (link != slot) {
+                Dlink next = link.next();
+                Timeout timeout = (Timeout) link;
+                if (timeout.deadline <= now) {
+                    timeout.unlink();
+                    timeouts.remove(timeout.key);
+                    expired.add(timeout.key);
+                }
+                link = next;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     *  Cancels all expirations.
+     */
+    void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i].clear();
+        }
+        timeouts.clear();
+    }
+}
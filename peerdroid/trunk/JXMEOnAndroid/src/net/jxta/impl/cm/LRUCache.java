@@ -44,13 +44,15 @@ public class LRUCache {
     public LRUCache(int size) {
         currentSize = 0;
         cacheSize = size;
-        nodes = new Hashtable(size);
+        nodes = new Hashtable(Math.min(size, 64));
     }
 
     /**
      *  clear the cache
      */
-    public void clear() {
+    public synchronized void clear() {
+        nodes.clear();
+        currentSize = 0;
         first = null;
         last = null;
     }
@@ -58,7 +60,7 @@ public class LRUCache {
      *  returns the number of elements currently in cache
      * @retrun the number of elements in cache
      */
-    public int size() {
+    public synchronized int size() {
         return currentSize;
     }
 
@@ -68,7 +70,7 @@ public class LRUCache {
      *@param  key  key
      *@return      object
      */
-    public Object get(Object key) {
+    public synchronized Object get(Object key) {
         CacheNode node = (CacheNode) nodes.get(key);
         if (node != null) {
             moveToHead(node);
@@ -77,7 +79,19 @@ public class LRUCache {
         return null;
     }
 
-    protected Iterator iterator(int size) {
+    /**
+     *  returns the key of the least recently used object
+     *
+     *@return      the key or null if the cache is empty
+     */
+    public synchronized Object lastKey() {
+        if (last != null) {
+            return last.key;
+        }
+        return null;
+    }
+
+    protected synchronized Iterator iterator(int size) {
         List list = new ArrayList();
         Iterator it = nodes.values().iterator();
         while (it.hasNext()) {
@@ -118,7 +132,7 @@ public class LRUCache {
      *@param  key    key to store value by
      *@param  value  object to insert
      */
-    public void put(Object key, Object value) {
+    public synchronized void put(Object key, Object value) {
         CacheNode node = (CacheNode) nodes.get(key);
         if (node == null) {
             if (currentSize >= cacheSize) {
@@ -143,9 +157,10 @@ public class LRUCache {
      *@param  key  key
      *@return      Object removed
      */
-    public Object remove(Object key) {
-        CacheNode node = (CacheNode) nodes.get(key);
+    public synchronized Object remove(Object key) {
+        CacheNode node = (CacheNode) nodes.remove(key);
         if (node != null) {
+            currentSize--;
             if (node.prev != null) {
                 node.prev.next = node.next;
             }
@@ -158,8 +173,9 @@ public class LRUCache {
             if (first == node) {
                 first = node.next;
             }
+            return node.value;
         }
-        return node;
+        return null;
     }
 
     /**
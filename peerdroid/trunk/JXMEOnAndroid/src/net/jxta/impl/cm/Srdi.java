@@ -57,7 +57,11 @@ package net.jxta.impl.cm;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -70,6 +74,7 @@ import net.jxta.id.IDFactory;
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
 import net.jxta.impl.protocol.SrdiMessageImpl;
 import net.jxta.impl.util.JxtaHash;
+import net.jxta.impl.util.TimeUtils;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
@@ -127,6 +132,18 @@ public class Srdi implements Runnable, RendezvousListener {
      *  Description of the Field
      */
     public final static int RPV_REPLICATION_THRESHOLD = 3;
+
+    /**
+     *  The approximate maximum size in characters of the entries of a single
+     *  SRDI message pushed by {@link #pushEntries(ID,int,String,List,boolean)}.
+     */
+    public final static int MAX_MESSAGE_SIZE = 16 * 1024;
+
+    /**
+     *  Approximate size of the markup surrounding the key and value of an
+     *  entry in a serialized SRDI message.
+     */
+    private final static int ENTRY_OVERHEAD = 64;
     private long connectPollInterval = 0;
     private Credential credential = null;
     private StructuredDocument credentialDoc = null;
@@ -148,6 +165,15 @@ public class Srdi implements Runnable, RendezvousListener {
 
     private volatile boolean stop = false;
 
+    /**
+     *  Destination and primary key (see {@link #pushedKey(ID,String)}) to a
+     *  Map of the SrdiMessage.Entry last pushed there to the absolute time
+     *  at which they expire. Withdrawn and expired entries are dropped, and
+     *  so are the destinations left without entries. Everything is
+     *  forgotten when the rendezvous connection changes.
+     */
+    private final Map pushed = new HashMap();
+
     /**
      *  Starts the Srdi Service. wait for connectPollInterval prior to pushing
      *  the index if connected to a rdv, otherwise index is as soon as the
@@ -346,20 +372,182 @@ public class Srdi implements Runnable, RendezvousListener {
      *@param  peer  peer to push message to, if peer is null it is the message
      *      is propagated
      *@param  srdi  SRDI message to send
+     *@return       true if the message was sent
      */
-    public void pushSrdi(ID peer, SrdiMessage srdi) {
+    public boolean pushSrdi(ID peer, SrdiMessage srdi) {
         try {
             ResolverSrdiMsg resSrdi = new ResolverSrdiMsgImpl(handlername, credential, srdi.toString());
             if (peer == null) {
-                resolver.sendSrdi(null, resSrdi);
+                return resolver.sendSrdi(null, resSrdi);
             } else {
-                resolver.sendSrdi(peer.toString(), resSrdi);
+                return resolver.sendSrdi(peer.toString(), resSrdi);
             }
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Failed to send srdi message", e);
             }
+            return false;
+        }
+    }
+
+    /**
+     *  Pushes entries of a primary key. Repeated key/value pairs are pushed
+     *  once, with the latest expiration. The entries are split into messages
+     *  of about {@link #MAX_MESSAGE_SIZE} characters. Unless <code>all</code>
+     *  is true, entries which were already pushed and whose absolute
+     *  expiration moved by less than the push interval since are skipped,
+     *  the copy held by the rendezvous is still good.
+     *
+     *@param  peer        peer to push entries to, if null the entries are
+     *      propagated
+     *@param  ttl         ttl of the SRDI messages
+     *@param  primaryKey  primary key of the entries
+     *@param  entries     the SrdiMessage.Entry to push
+     *@param  all         if true then the entries are the complete index for
+     *      the primary key, otherwise they are deltas
+     *@return             the number of entries pushed
+     */
+    public int pushEntries(ID peer, int ttl, String primaryKey, List entries, boolean all) {
+
+        long now = TimeUtils.timeNow();
+        Object stateKey = pushedKey(peer, primaryKey);
+        List toPush = new ArrayList();
+
+        // Select what to push under the lock, send outside of it.
+        synchronized (pushed) {
+            Map sent = (Map) pushed.get(stateKey);
+            if (sent == null || all) {
+                sent = new HashMap();
+                pushed.put(stateKey, sent);
+            }
+
+            // forget what has expired at the destination by now.
+            Iterator eachSent = sent.values().iterator();
+            while (eachSent.hasNext()) {
+                if (((Long) eachSent.next()).longValue() <= now) {
+                    eachSent.remove();
+                }
+            }
+
+            Iterator eachEntry = coalesce(entries).iterator();
+            while (eachEntry.hasNext()) {
+                SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+                if (entry.expiration <= 0) {
+                    // withdrawn, whether or not the withdrawal goes out. A
+                    // later addition of the same pair must be pushed.
+                    sent.remove(entry);
+                } else if (!all) {
+                    long expires = TimeUtils.toAbsoluteTimeMillis(entry.expiration, now);
+                    Long previous = (Long) sent.get(entry);
+                    if (previous != null && Math.abs(expires - previous.longValue()) < pushInterval) {
+                        continue;
+                    }
+                }
+                toPush.add(entry);
+            }
+            if (sent.isEmpty()) {
+                pushed.remove(stateKey);
+            }
+        }
+
+        List batch = new ArrayList();
+        int batchSize = 0;
+        int count = 0;
+        Iterator eachEntry = toPush.iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+            int entrySize = ENTRY_OVERHEAD + entry.key.length() + entry.value.length();
+            if (!batch.isEmpty() && batchSize + entrySize > MAX_MESSAGE_SIZE) {
+                count += pushBatch(peer, ttl, primaryKey, stateKey, batch, now);
+                batch = new ArrayList();
+                batchSize = 0;
+            }
+            batch.add(entry);
+            batchSize += entrySize;
+        }
+        if (!batch.isEmpty()) {
+            count += pushBatch(peer, ttl, primaryKey, stateKey, batch, now);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Pushed " + count + " of " +
+                      entries.size() + (all ? " entries" : " deltas") + " of type " + primaryKey);
+        }
+        return count;
+    }
+
+    /**
+     *  Sends one batch of entries and, only if it was sent, records them as
+     *  pushed to the destination. Entries which failed to go out are thus
+     *  pushed again with the next deltas.
+     *
+     *@return    the number of entries pushed
+     */
+    private int pushBatch(ID peer, int ttl, String primaryKey, Object stateKey, List batch, long now) {
+        if (!pushSrdi(peer, new SrdiMessageImpl(group.getPeerID(), ttl, primaryKey, batch))) {
+            return 0;
+        }
+        synchronized (pushed) {
+            Map sent = (Map) pushed.get(stateKey);
+            if (sent == null) {
+                sent = new HashMap();
+                pushed.put(stateKey, sent);
+            }
+            Iterator eachEntry = batch.iterator();
+            while (eachEntry.hasNext()) {
+                SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+                if (entry.expiration <= 0) {
+                    sent.remove(entry);
+                } else {
+                    sent.put(entry, new Long(TimeUtils.toAbsoluteTimeMillis(entry.expiration, now)));
+                }
+            }
+            if (sent.isEmpty()) {
+                pushed.remove(stateKey);
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     *  Forgets what was pushed to every destination. The next pushes send
+     *  everything again.
+     */
+    private void forgetPushed() {
+        synchronized (pushed) {
+            pushed.clear();
+        }
+    }
+
+    /**
+     *  The key of the pushed state of a primary key at a destination. What
+     *  was pushed to one rendezvous says nothing of what another one holds.
+     */
+    private static Object pushedKey(ID peer, String primaryKey) {
+        return ((peer == null) ? "" : peer.toString()) + "/" + primaryKey;
+    }
+
+    /**
+     *  Removes repeated key/value pairs, keeping the last one seen.
+     */
+    private static List coalesce(List entries) {
+        List result = new ArrayList(entries.size());
+        Map positions = new HashMap();
+        Iterator eachEntry = entries.iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+            if (entry.key == null || entry.value == null) {
+                continue;
+            }
+            Integer position = (Integer) positions.get(entry);
+            if (position != null) {
+                result.set(position.intValue(), entry);
+            } else {
+                positions.put(entry, new Integer(result.size()));
+                result.add(entry);
+            }
         }
+        return result;
     }
 
     /**
@@ -381,6 +569,7 @@ public class Srdi implements Runnable, RendezvousListener {
                 // This is an initial connection, we need to upload the
                 // complete index.
                 republish = true;
+                forgetPushed();
 
             case RendezvousEvent.RDVRECONNECT:
                 // This is just a renewal of the rdv lease. Nothing special to do.
@@ -395,6 +584,7 @@ public class Srdi implements Runnable, RendezvousListener {
             case RendezvousEvent.RDVFAILED:
             case RendezvousEvent.RDVDISCONNECT:
                 republish = true;
+                forgetPushed();
                 break;
             case RendezvousEvent.CLIENTFAILED:
             case RendezvousEvent.CLIENTDISCONNECT:
@@ -87,13 +87,13 @@ import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.cm.Cm;
 import net.jxta.impl.cm.Srdi;
+import net.jxta.impl.document.XMLPullReader;
 import net.jxta.impl.peergroup.StdPeerGroup;
 import net.jxta.impl.protocol.DiscoveryConfigAdv;
 import net.jxta.impl.protocol.DiscoveryQuery;
 import net.jxta.impl.protocol.DiscoveryResponse;
 import net.jxta.impl.protocol.ResolverQuery;
 import net.jxta.impl.protocol.ResolverResponse;
-import net.jxta.impl.protocol.SrdiMessageImpl;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
@@ -107,7 +107,6 @@ import net.jxta.protocol.PeerGroupAdvertisement;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverResponseMsg;
 import net.jxta.protocol.ResolverSrdiMsg;
-import net.jxta.protocol.SrdiMessage;
 import net.jxta.rendezvous.RendezVousService;
 import net.jxta.rendezvous.RendezvousEvent;
 import net.jxta.rendezvous.RendezvousListener;
@@ -554,15 +553,13 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                 LOG.debug("Flushing adv " + advName + " of type " + dirname[type]);
             }
         } else {
-            StructuredDocument doc;
             try {
-                doc = (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8);
+                advName = Cm.createTmpName(adv);
             } catch (Exception everything) {
                 IOException failure = new IOException("Failure removing Advertisement");
                 failure.initCause(everything);
                 throw failure;
             }
-            advName = Cm.createTmpName(doc);
         }
         if (advName != null) {
             cm.remove(dirname[type], advName);
@@ -623,10 +620,8 @@ public class DiscoveryServiceImpl implements DiscoveryService,
 
         // if we dont have a unique id for the adv, use the hash method
         if ((null == advID) || advID.equals(ID.nullID)) {
-            StructuredDocument doc;
-
             try {
-                doc = (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8);
+                advName = Cm.createTmpName(adv);
             } catch (Exception everything) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Failed to generated document from advertisement", everything);
@@ -635,8 +630,6 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                 failure.initCause(everything);
                 throw failure;
             }
-
-            advName = Cm.createTmpName(doc);
         } else {
             advName = advID.getUniqueValue().toString();
         }
@@ -690,10 +683,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         DiscoveryResponse res;
 
         try {
-            StructuredTextDocument asDoc = (StructuredTextDocument)
-                                           StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(response.getResponse()));
-
-            res = new DiscoveryResponse(asDoc);
+            res = new DiscoveryResponse(new XMLPullReader(response.getResponse()));
         } catch (Exception e) {
             // we don't understand this msg, let's skip it
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -1051,16 +1041,14 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                 LOG.debug("attempting to getAdvExpirationTime on " + advName + " of type " + dirname[type]);
             }
         } else {
-            StructuredDocument doc;
             try {
-                doc = (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8);
+                advName = Cm.createTmpName(adv);
             } catch (Exception everything) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Failed to get document", everything);
                 }
                 return -1;
             }
-            advName = Cm.createTmpName(doc);
         }
         return cm.getExpirationtime(dirname[type], advName);
     }
@@ -1080,17 +1068,14 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                 LOG.debug("attempting to getAdvLifeTime " + advName + " of type " + dirname[type]);
             }
         } else {
-            StructuredDocument doc;
-
             try {
-                doc = (StructuredDocument) adv.getDocument(MimeMediaType.XMLUTF8);
+                advName = Cm.createTmpName(adv);
             } catch (Exception everything) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Failed to get document", everything);
                 }
                 return -1;
             }
-            advName = Cm.createTmpName(doc);
         }
         return cm.getLifetime(dirname[type], advName);
     }
@@ -1126,16 +1111,12 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         }
 
         if (!entries.isEmpty()) {
-            SrdiMessage srdiMsg;
-
             try {
-                srdiMsg = new SrdiMessageImpl(group.getPeerID(), 1, // ttl of 1, ensure it is replicated
-                                              dirname[type], entries);
-
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Pushing " + entries.size() + (all ? " entries" : " deltas") + " of type " + dirname[type]);
                 }
-                srdi.pushSrdi(peer, srdiMsg);
+                // ttl of 1, ensure it is replicated
+                srdi.pushEntries(peer, 1, dirname[type], entries, all);
             } catch (Exception e) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Exception pushing SRDI Entries", e);
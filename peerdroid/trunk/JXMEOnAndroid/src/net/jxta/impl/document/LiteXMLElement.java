@@ -1198,7 +1198,7 @@ public class LiteXMLElement extends XMLElementCommon {
      *  @param target The stringbuffer which will be decoded.
      *  @return The decoded version of the stringbuffer.
      **/
-    protected StringBuffer decodeEscaped(StringBuffer target) {
+    protected static StringBuffer decodeEscaped(StringBuffer target) {
         
         int current = 0;
         
@@ -1324,20 +1324,41 @@ public class LiteXMLElement extends XMLElementCommon {
         
         int current = 0;
         
+        // find the first character which needs escaping.
         while (current < target.length()) {
-            if ('&' == target.charAt(current)) {
-                target.insert(current + 1, "amp;");
-                current += 5;
-                continue;
-            } else if ('<' == target.charAt(current)) {
-                target.setCharAt(current, '&');
-                target.insert(current + 1, "lt;");
-                current += 4;
-                continue;
+            char c = target.charAt(current);
+            
+            if (('&' == c) || ('<' == c)) {
+                break;
+            }
+            current++;
+        }
+        
+        if (current >= target.length()) {
+            // nothing to do.
+            return;
+        }
+        
+        // the rest is copied in a single pass rather than inserting in place.
+        StringBuffer result = new StringBuffer(target.length() + (target.length() - current) / 4 + 16);
+        
+        result.append(target.substring(0, current));
+        
+        while (current < target.length()) {
+            char c = target.charAt(current);
+            
+            if ('&' == c) {
+                result.append("&amp;");
+            } else if ('<' == c) {
+                result.append("&lt;");
             } else {
-                current++;
+                result.append(c);
             }
+            current++;
         }
+        
+        target.setLength(0);
+        target.append(result);
     }
     
     /**
@@ -0,0 +1,692 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.document;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.XMLDocument;
+
+/**
+ *  A forward-only, event based reader for the XML dialect understood by
+ *  {@link LiteXMLDocument}. Protocol messages which only need to visit each
+ *  of their elements once can use this reader in place of building a
+ *  complete document tree.
+ *
+ *  <p/>The reader reports only element boundaries. Text content is retrieved
+ *  with {@link #getElementText()} which applies the same decoding and
+ *  whitespace trimming as {@link LiteXMLElement#getTextValue()}. Attribute
+ *  values are returned exactly as they appear in the source, as are those
+ *  of {@link LiteXMLElement#getAttribute(String)}. The XML declaration,
+ *  DOCTYPE, comments and processing instructions are skipped.
+ *
+ *  <p/>Sub-trees which must be handed to code expecting an
+ *  {@link net.jxta.document.Element} can be extracted with
+ *  {@link #getElementAsDocument()}; only that fragment is then parsed into
+ *  a tree.
+ *
+ *  <p/>Errors in the source document are reported as
+ *  {@link IllegalArgumentException}.
+ **/
+public final class XMLPullReader {
+    
+    /**
+     *  The reader is positioned before the first element of the document.
+     **/
+    public static final int START_DOCUMENT = 0;
+    
+    /**
+     *  The reader is positioned on an element start tag.
+     **/
+    public static final int START_ELEMENT = 1;
+    
+    /**
+     *  The reader is positioned on an element end tag.
+     **/
+    public static final int END_ELEMENT = 2;
+    
+    /**
+     *  The reader has consumed the whole document.
+     **/
+    public static final int END_DOCUMENT = 3;
+    
+    /**
+     *  The xml declaration used when re-parsing an element as a document.
+     **/
+    private static final String XML_DECL = "<?xml version=\"1.0\"?>\n";
+    
+    /**
+     *  The document source.
+     **/
+    private final char[] source;
+    
+    /**
+     *  The number of valid characters in <code>source</code>.
+     **/
+    private final int limit;
+    
+    /**
+     *  The location of the next character to be examined.
+     **/
+    private int pos = 0;
+    
+    /**
+     *  The current event.
+     **/
+    private int event = START_DOCUMENT;
+    
+    /**
+     *  The name of the current element.
+     **/
+    private String name = null;
+    
+    /**
+     *  Location of the '&lt;' of the current tag.
+     **/
+    private int tagStart = -1;
+    
+    /**
+     *  Location of the '&gt;' of the current tag.
+     **/
+    private int tagEnd = -1;
+    
+    /**
+     *  If true then the current start tag was an empty element tag and the
+     *  next event will be its end.
+     **/
+    private boolean emptyTag = false;
+    
+    /**
+     *  The number of elements which have been started but not ended.
+     **/
+    private int depth = 0;
+    
+    /**
+     *  Creates a reader for the provided document.
+     *
+     *  @param source the document.
+     **/
+    public XMLPullReader(String source) {
+        this.source = source.toCharArray();
+        limit = this.source.length;
+    }
+    
+    /**
+     *  Creates a reader for the document read from the provided source. The
+     *  source is read to its end but not closed.
+     *
+     *  @param in the document source.
+     *  @throws IOException if an error occurs while reading the source.
+     **/
+    public XMLPullReader(Reader in) throws IOException {
+        char[] content = new char[512];
+        int count = 0;
+        
+        do {
+            if (count == content.length) {
+                char[] larger = new char[content.length * 2];
+                
+                System.arraycopy(content, 0, larger, 0, count);
+                content = larger;
+            }
+            
+            int readCount = in.read(content, count, content.length - count);
+            
+            if (readCount < 0) {
+                break;
+            }
+            
+            count += readCount;
+        } while (true);
+        
+        source = content;
+        limit = count;
+    }
+    
+    /**
+     *  Creates a reader for the document read from the provided stream. The
+     *  character set is determined the same way as for
+     *  {@link LiteXMLDocument}.
+     *
+     *  @param mimeType the mime type of the stream content.
+     *  @param in the document source.
+     *  @throws IOException if an error occurs while reading the source.
+     **/
+    public XMLPullReader(MimeMediaType mimeType, InputStream in) throws IOException {
+        this(newReader(mimeType, in));
+    }
+    
+    private static Reader newReader(MimeMediaType mimeType, InputStream in) throws IOException {
+        String charset = mimeType.getParameter("charset");
+        
+        if (charset == null) {
+            return new InputStreamReader(in);
+        } else {
+            return new InputStreamReader(in, charset);
+        }
+    }
+    
+    /**
+     *  Returns the current event.
+     *
+     *  @return the current event.
+     **/
+    public int getEventType() {
+        return event;
+    }
+    
+    /**
+     *  Returns the name of the current element. Only valid when positioned
+     *  on a start or end tag.
+     *
+     *  @return the name of the current element.
+     **/
+    public String getName() {
+        if ((START_ELEMENT != event) && (END_ELEMENT != event)) {
+            throw new IllegalStateException("Not positioned on an element");
+        }
+        
+        return name;
+    }
+    
+    /**
+     *  Returns the nesting depth of the current element. The root element is
+     *  at depth 1.
+     *
+     *  @return the nesting depth of the current element.
+     **/
+    public int getDepth() {
+        return (END_ELEMENT == event) ? depth + 1 : depth;
+    }
+    
+    /**
+     *  Advances to the next start tag, end tag or the end of the document.
+     *  Text between tags is skipped.
+     *
+     *  @return the new event.
+     **/
+    public int next() {
+        if (END_DOCUMENT == event) {
+            return event;
+        }
+        
+        if (emptyTag) {
+            emptyTag = false;
+            depth--;
+            event = END_ELEMENT;
+            return event;
+        }
+        
+        while (pos < limit) {
+            if ('<' != source[pos]) {
+                pos++;
+                continue;
+            }
+            
+            if (skipMarkup()) {
+                continue;
+            }
+            
+            if (((pos + 1) < limit) && ('/' == source[pos + 1])) {
+                readEndTag();
+            } else {
+                readStartTag();
+            }
+            
+            return event;
+        }
+        
+        if (0 != depth) {
+            throw new IllegalArgumentException("Parsing error in source document : unexpected end of document");
+        }
+        
+        name = null;
+        event = END_DOCUMENT;
+        return event;
+    }
+    
+    /**
+     *  Advances to the next start tag, skipping any end tags. Returns
+     *  <code>false</code> if the document ends first.
+     *
+     *  @return <code>true</code> if positioned on a start tag otherwise
+     *  <code>false</code>.
+     **/
+    public boolean nextStartElement() {
+        while (true) {
+            switch (next()) {
+            case START_ELEMENT:
+                return true;
+                
+            case END_DOCUMENT:
+                return false;
+                
+            default:
+                break;
+            }
+        }
+    }
+    
+    /**
+     *  Returns the value of the named attribute of the current start tag.
+     *
+     *  @param attrName the attribute name.
+     *  @return the attribute value or <code>null</code> if the attribute is
+     *  not present.
+     **/
+    public String getAttributeValue(String attrName) {
+        if (START_ELEMENT != event) {
+            throw new IllegalStateException("Not positioned on a start tag");
+        }
+        
+        // skip the tag name.
+        int current = tagStart + 1 + name.length();
+        
+        while (current < tagEnd) {
+            while ((current < tagEnd) && Character.isWhitespace(source[current])) {
+                current++;
+            }
+            
+            int nameStart = current;
+            
+            while ((current < tagEnd) && ('=' != source[current])) {
+                current++;
+            }
+            
+            int nameEnd = current;
+            
+            while ((nameEnd > nameStart) && Character.isWhitespace(source[nameEnd - 1])) {
+                nameEnd--;
+            }
+            
+            current++;
+            
+            while ((current < tagEnd) && Character.isWhitespace(source[current])) {
+                current++;
+            }
+            
+            if (current >= tagEnd) {
+                return null;
+            }
+            
+            char quote = source[current];
+            
+            if (('\'' != quote) && ('\"' != quote)) {
+                return null;
+            }
+            
+            int valueStart = current + 1;
+            int valueEnd = valueStart;
+            
+            while ((valueEnd < tagEnd) && (quote != source[valueEnd])) {
+                valueEnd++;
+            }
+            
+            if (valueEnd >= tagEnd) {
+                return null;
+            }
+            
+            if (regionEquals(nameStart, nameEnd, attrName)) {
+                return new String(source, valueStart, valueEnd - valueStart);
+            }
+            
+            current = valueEnd + 1;
+        }
+        
+        return null;
+    }
+    
+    /**
+     *  Returns the text content of the current element, excluding the
+     *  content of any child elements. Escaped characters are decoded and
+     *  leading and trailing whitespace is removed. On return the reader is
+     *  positioned on the end tag of the element.
+     *
+     *  @return the text value of the element or <code>null</code> if the
+     *  element contains only whitespace.
+     **/
+    public String getElementText() {
+        if (START_ELEMENT != event) {
+            throw new IllegalStateException("Not positioned on a start tag");
+        }
+        
+        if (emptyTag) {
+            next();
+            return null;
+        }
+        
+        StringBuffer building = new StringBuffer();
+        int elementDepth = depth;
+        int textStart = pos;
+        
+        while (pos < limit) {
+            if ('<' != source[pos]) {
+                pos++;
+                continue;
+            }
+            
+            int markupStart = pos;
+            
+            if (skipMarkup()) {
+                if (depth == elementDepth) {
+                    building.append(source, textStart, markupStart - textStart);
+                }
+                textStart = pos;
+                continue;
+            }
+            
+            if (depth == elementDepth) {
+                building.append(source, textStart, markupStart - textStart);
+            }
+            
+            if ((START_ELEMENT == next()) && emptyTag) {
+                next();
+            }
+            
+            if ((END_ELEMENT == event) && (depth < elementDepth)) {
+                return trim(LiteXMLElement.decodeEscaped(building));
+            }
+            
+            textStart = pos;
+        }
+        
+        throw new IllegalArgumentException("Parsing error in source document : unterminated element " + name);
+    }
+    
+    /**
+     *  Skips the current element and all of its content. On return the
+     *  reader is positioned on the end tag of the element.
+     **/
+    public void skipElement() {
+        if (START_ELEMENT != event) {
+            throw new IllegalStateException("Not positioned on a start tag");
+        }
+        
+        int elementDepth = depth;
+        
+        do {
+            if (END_DOCUMENT == next()) {
+                throw new IllegalArgumentException("Parsing error in source document : unterminated element");
+            }
+        } while ((END_ELEMENT != event) || (depth >= elementDepth));
+    }
+    
+    /**
+     *  Returns the source markup of the current element including its start
+     *  and end tags. On return the reader is positioned on the end tag of the
+     *  element.
+     *
+     *  @return the source markup of the element.
+     **/
+    public String getElementMarkup() {
+        if (START_ELEMENT != event) {
+            throw new IllegalStateException("Not positioned on a start tag");
+        }
+        
+        int start = tagStart;
+        
+        skipElement();
+        
+        return new String(source, start, tagEnd - start + 1);
+    }
+    
+    /**
+     *  Returns the current element as a new document. This is intended for
+     *  elements which must be passed to code expecting a document tree, such
+     *  as embedded advertisements. On return the reader is positioned on the
+     *  end tag of the element.
+     *
+     *  @return the current element as a document.
+     **/
+    public XMLDocument getElementAsDocument() {
+        String markup = getElementMarkup();
+        
+        try {
+            return new LiteXMLDocument(MimeMediaType.XMLUTF8, new StringReader(XML_DECL + markup));
+        } catch (IOException caught) {
+            // StringReader does not throw IOException.
+            throw new UndeclaredThrowableException(caught);
+        }
+    }
+    
+    /**
+     *  If positioned on a declaration, comment, processing instruction or
+     *  DOCTYPE then skip past it.
+     *
+     *  @return <code>true</code> if markup was skipped.
+     **/
+    private boolean skipMarkup() {
+        if ((pos + 1) >= limit) {
+            return false;
+        }
+        
+        char kind = source[pos + 1];
+        
+        if ('?' == kind) {
+            pos = indexOf("?>", pos + 2) + 2;
+            return true;
+        }
+        
+        if ('!' != kind) {
+            return false;
+        }
+        
+        if (regionEquals(pos + 2, pos + 4, "--")) {
+            pos = indexOf("-->", pos + 4) + 3;
+            return true;
+        }
+        
+        // DOCTYPE and friends, possibly with an internal subset.
+        int current = pos + 2;
+        boolean inSubset = false;
+        
+        while (current < limit) {
+            char c = source[current];
+            
+            if ('[' == c) {
+                inSubset = true;
+            } else if (']' == c) {
+                inSubset = false;
+            } else if (('>' == c) && !inSubset) {
+                pos = current + 1;
+                return true;
+            }
+            
+            current++;
+        }
+        
+        throw new IllegalArgumentException("Parsing error in source document : unterminated declaration");
+    }
+    
+    /**
+     *  Reads the start tag at the current position.
+     **/
+    private void readStartTag() {
+        tagStart = pos;
+        
+        int nameEnd = pos + 1;
+        
+        while (nameEnd < limit) {
+            char c = source[nameEnd];
+            
+            if (Character.isWhitespace(c) || ('/' == c) || ('>' == c)) {
+                break;
+            }
+            
+            nameEnd++;
+        }
+        
+        if (nameEnd == (pos + 1)) {
+            throw new IllegalArgumentException("Parsing error in source document : missing element name at " + pos);
+        }
+        
+        // find the end of the tag, '>' may appear in quoted attribute values.
+        int current = nameEnd;
+        char quote = 0;
+        
+        while (current < limit) {
+            char c = source[current];
+            
+            if (0 != quote) {
+                if (quote == c) {
+                    quote = 0;
+                }
+            } else if (('\'' == c) || ('\"' == c)) {
+                quote = c;
+            } else if ('>' == c) {
+                break;
+            }
+            
+            current++;
+        }
+        
+        if (current >= limit) {
+            throw new IllegalArgumentException("Parsing error in source document : unterminated tag at " + pos);
+        }
+        
+        tagEnd = current;
+        name = new String(source, pos + 1, nameEnd - pos - 1);
+        emptyTag = ('/' == source[tagEnd - 1]);
+        pos = tagEnd + 1;
+        depth++;
+        event = START_ELEMENT;
+    }
+    
+    /**
+     *  Reads the end tag at the current position.
+     **/
+    private void readEndTag() {
+        int end = indexOf(">", pos + 2);
+        int nameEnd = end;
+        
+        while ((nameEnd > (pos + 2)) && Character.isWhitespace(source[nameEnd - 1])) {
+            nameEnd--;
+        }
+        
+        if (0 == depth) {
+            throw new IllegalArgumentException("Parsing error in source document : unbalanced end tag at " + pos);
+        }
+        
+        tagStart = pos;
+        tagEnd = end;
+        name = new String(source, pos + 2, nameEnd - pos - 2);
+        pos = end + 1;
+        depth--;
+        event = END_ELEMENT;
+    }
+    
+    /**
+     *  Returns the location of the string within the source at or after the
+     *  specified location.
+     **/
+    private int indexOf(String str, int from) {
+        char first = str.charAt(0);
+        
+        for (int current = from; current <= (limit - str.length()); current++) {
+            if ((first == source[current]) && regionEquals(current, current + str.length(), str)) {
+                return current;
+            }
+        }
+        
+        throw new IllegalArgumentException("Parsing error in source document : expected '" + str + "' after " + from);
+    }
+    
+    /**
+     *  Returns true if the source characters in the specified range match the
+     *  provided string.
+     **/
+    private boolean regionEquals(int start, int end, String str) {
+        if (((end - start) != str.length()) || (end > limit)) {
+            return false;
+        }
+        
+        for (int each = 0; each < str.length(); each++) {
+            if (str.charAt(each) != source[start + each]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     *  Trims whitespace in the same manner as
+     *  {@link LiteXMLElement#getTextValue()}.
+     **/
+    private static String trim(StringBuffer building) {
+        int first = 0;
+        int last = building.length() - 1;
+        
+        while ((first <= last) && Character.isWhitespace(building.charAt(first))) {
+            first++;
+        }
+        
+        if (first > last) {
+            return null;
+        }
+        
+        while (Character.isWhitespace(building.charAt(last))) {
+            last--;
+        }
+        
+        return building.substring(first, last + 1);
+    }
+}
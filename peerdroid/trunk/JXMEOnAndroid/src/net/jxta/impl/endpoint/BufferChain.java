@@ -0,0 +1,336 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  An output stream which collects what is written to it into a sequence of
+ *  ByteBuffers. Small writes are packed into buffers taken from a
+ *  {@link BufferPool}, while large byte arrays may be appended as is,
+ *  without copying, with {@link #append(ByteBuffer)}. The resulting sequence
+ *  is suitable for gathering writes.
+ *
+ *  <p/>Once the contents have been sent {@link #release()} must be called to
+ *  return the pooled buffers.
+ */
+public class BufferChain extends OutputStream {
+
+    /**
+     *  The pool shared by all chains which are not given one.
+     */
+    public static final BufferPool DEFAULT_POOL = new BufferPool(8 * 1024, 64);
+
+    /**
+     *  The pool from which we take buffers.
+     */
+    private final BufferPool pool;
+
+    /**
+     *  The completed buffers, flipped and ready for reading.
+     */
+    private final List buffers = new ArrayList();
+
+    /**
+     *  The buffers which came from the pool and must be returned to it.
+     */
+    private final List pooled = new ArrayList();
+
+    /**
+     *  The pooled buffer we are currently filling or null.
+     */
+    private ByteBuffer current = null;
+
+    /**
+     *  Total number of bytes in the chain.
+     */
+    private long length = 0;
+
+    /**
+     *  Creates a chain using the default pool.
+     */
+    public BufferChain() {
+        this(DEFAULT_POOL);
+    }
+
+    /**
+     *  Creates a chain using the specified pool.
+     *
+     *  @param pool the pool from which buffers are taken.
+     */
+    public BufferChain(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void write(int b) {
+        if ((null == current) || !current.hasRemaining()) {
+            nextBuffer();
+        }
+
+        current.put((byte) b);
+        length++;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if ((null == current) || !current.hasRemaining()) {
+                nextBuffer();
+            }
+
+            int chunk = Math.min(len, current.remaining());
+
+            current.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            length += chunk;
+        }
+    }
+
+    /**
+     *  Writes a big-endian short.
+     *
+     *  @param v the value to write.
+     */
+    public void writeShort(int v) {
+        write(v >>> 8);
+        write(v);
+    }
+
+    /**
+     *  Writes a big-endian int.
+     *
+     *  @param v the value to write.
+     */
+    public void writeInt(int v) {
+        write(v >>> 24);
+        write(v >>> 16);
+        write(v >>> 8);
+        write(v);
+    }
+
+    /**
+     *  Appends a buffer to the chain without copying it. The bytes between
+     *  the buffer's position and limit are part of the chain. The buffer is
+     *  not returned to the pool by {@link #release()}.
+     *
+     *  @param buffer the buffer to append.
+     */
+    public void append(ByteBuffer buffer) {
+        finishCurrent();
+
+        length += buffer.remaining();
+        buffers.add(buffer);
+    }
+
+    /**
+     *  Moves the contents of another chain to the end of this one without
+     *  copying. The other chain is left empty and its pooled buffers will be
+     *  released by this chain.
+     *
+     *  @param other the chain to append. It must use the same pool.
+     */
+    public void append(BufferChain other) {
+        if (other.pool != pool) {
+            throw new IllegalArgumentException("Chains use different pools");
+        }
+
+        finishCurrent();
+        other.finishCurrent();
+
+        buffers.addAll(other.buffers);
+        pooled.addAll(other.pooled);
+        length += other.length;
+
+        other.buffers.clear();
+        other.pooled.clear();
+        other.length = 0;
+    }
+
+    /**
+     *  Returns true if any buffer in the chain has bytes remaining. Gathering
+     *  writes advance the buffers, so this tells whether a chain has been
+     *  completely written.
+     *
+     *  @return true if any bytes remain to be read from the chain.
+     */
+    public boolean hasRemaining() {
+        finishCurrent();
+
+        for (int eachBuffer = 0; eachBuffer < buffers.size(); eachBuffer++) {
+            if (((ByteBuffer) buffers.get(eachBuffer)).hasRemaining()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  Returns the total number of bytes written to the chain.
+     *
+     *  @return the total number of bytes written to the chain.
+     */
+    public long getByteLength() {
+        return length;
+    }
+
+    /**
+     *  Returns the buffers making up the chain, ready for reading.
+     *
+     *  @return the buffers making up the chain.
+     */
+    public ByteBuffer[] getBuffers() {
+        finishCurrent();
+
+        return (ByteBuffer[]) buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     *  Writes the contents of the chain to a channel using gathering writes.
+     *
+     *  @param channel the channel to write to.
+     *  @throws IOException if the write fails.
+     */
+    public void writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] all = getBuffers();
+        long remaining = length;
+
+        while (remaining > 0) {
+            long wrote = channel.write(all);
+
+            if (wrote < 0) {
+                throw new IOException("Channel closed");
+            }
+            remaining -= wrote;
+        }
+    }
+
+    /**
+     *  Writes the contents of the chain to a stream. The backing arrays of
+     *  the buffers are written directly, so a buffered stream will pass large
+     *  buffers through without copying them.
+     *
+     *  @param out the stream to write to.
+     *  @throws IOException if the write fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer[] all = getBuffers();
+
+        for (int eachBuffer = 0; eachBuffer < all.length; eachBuffer++) {
+            ByteBuffer aBuffer = all[eachBuffer];
+
+            out.write(aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), aBuffer.remaining());
+        }
+    }
+
+    /**
+     *  Returns the pooled buffers to the pool and empties the chain.
+     */
+    public void release() {
+        for (int eachBuffer = 0; eachBuffer < pooled.size(); eachBuffer++) {
+            pool.release((ByteBuffer) pooled.get(eachBuffer));
+        }
+
+        pooled.clear();
+        buffers.clear();
+        current = null;
+        length = 0;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Equivalent to {@link #release()}.
+     */
+    public void close() {
+        release();
+    }
+
+    /**
+     *  Completes the current buffer, if any, and starts a new pooled one.
+     */
+    private void nextBuffer() {
+        finishCurrent();
+
+        current = pool.acquire();
+        pooled.add(current);
+    }
+
+    /**
+     *  Flips the current buffer and adds it to the completed buffers.
+     */
+    private void finishCurrent() {
+        if (null == current) {
+            return;
+        }
+
+        current.flip();
+        if (current.hasRemaining()) {
+            buffers.add(current);
+        }
+        current = null;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  A bounded pool of equally sized heap ByteBuffers. Buffers are handed out
+ *  cleared and are returned to the pool with {@link #release(ByteBuffer)}.
+ *  When the pool is empty a new buffer is allocated; when the pool is full
+ *  returned buffers are left for the garbage collector.
+ */
+public final class BufferPool {
+
+    /**
+     *  The size of each buffer in the pool.
+     */
+    private final int bufferSize;
+
+    /**
+     *  The maximum number of idle buffers we keep.
+     */
+    private final int maxBuffers;
+
+    /**
+     *  The idle buffers.
+     */
+    private final List buffers = new ArrayList();
+
+    /**
+     *  Creates a new pool.
+     *
+     *  @param bufferSize the capacity of the buffers handed out.
+     *  @param maxBuffers the maximum number of idle buffers to retain.
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     *  Returns the capacity of the buffers handed out by this pool.
+     *
+     *  @return the capacity of the buffers handed out by this pool.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     *  Gets a cleared buffer from the pool, allocating one if needed.
+     *
+     *  @return a cleared buffer of {@link #getBufferSize()} bytes.
+     */
+    public ByteBuffer acquire() {
+        synchronized (buffers) {
+            int size = buffers.size();
+
+            if (size > 0) {
+                return (ByteBuffer) buffers.remove(size - 1);
+            }
+        }
+
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     *  Returns a buffer to the pool. The buffer must have been obtained from
+     *  {@link #acquire()} and must not be used by the caller afterwards.
+     *
+     *  @param buffer the buffer to return.
+     */
+    public void release(ByteBuffer buffer) {
+        if ((null == buffer) || (buffer.capacity() != bufferSize)) {
+            return;
+        }
+
+        buffer.clear();
+
+        synchronized (buffers) {
+            if (buffers.size() < maxBuffers) {
+                buffers.add(buffer);
+            }
+        }
+    }
+}
@@ -56,18 +56,14 @@
 package net.jxta.impl.endpoint;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
-import java.util.WeakHashMap;
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
@@ -77,6 +73,7 @@ import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.StructuredDocumentUtils;
 import net.jxta.document.XMLDocument;
 import net.jxta.document.XMLElement;
+import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.ChannelMessenger;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointListener;
@@ -98,8 +95,8 @@ import net.jxta.exception.PeerGroupException;
 import net.jxta.id.ID;
 import net.jxta.impl.endpoint.relay.RelayClient;
 import net.jxta.impl.endpoint.router.EndpointRouter;
-import net.jxta.impl.util.FastHashMap;
 import net.jxta.impl.util.SequenceIterator;
+import net.jxta.impl.util.TimeUtils;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.peergroup.PeerGroupID;
 import net.jxta.protocol.AccessPointAdvertisement;
@@ -178,16 +175,40 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      *  Namespace in which the message source peer address will be placed.
      */
     public final static String MESSAGE_SRCPEERHDR_NS = MESSAGE_JXTA_NS;
+
+    /**
+     *  The maximum number of canonical messengers we keep.
+     */
+    private final static int MAX_CANONICAL_MESSENGERS = 128;
+
+    /**
+     *  The maximum number of channels we keep.
+     */
+    private final static int MAX_CHANNEL_MESSENGERS = 256;
+
+    /**
+     *  The maximum number of messengers of each kind we keep for the same destination peer.
+     */
+    private final static int MAX_MESSENGERS_PER_DESTINATION = 16;
+
+    /**
+     *  How long we keep a messenger nobody asked for.
+     */
+    private final static long MESSENGER_IDLE_TIMEOUT = 5L * TimeUtils.AMINUTE;
+
     private ID assignedID = null;
     /**
      *  The cache of channels. If a given owner of this EndpointService
      *  interface object requests channels for the same exact destination
      *  multiple times, we will return the same channel object as much as
-     *  possible. We keep channels in a weak map, so that when channels are
-     *  discarded, they eventually disappear. Channels that have messages in
-     *  them are always referenced. Therefore, this prevents the creation of
-     *  more than one channel with messages in it for the same destination in
-     *  the same context (owner of interface object - typically one module).
+     *  possible. Channels are evicted when they are not asked for during
+     *  {@link #MESSENGER_IDLE_TIMEOUT} or when there are too many of them,
+     *  but never while they have messages in them. Channels are not closed
+     *  when evicted since their owner may still be using them.
+     *  Channels that have messages in them are always referenced. Therefore,
+     *  this prevents the creation of more than one channel with messages in
+     *  it for the same destination in the same context (owner of interface
+     *  object - typically one module).
      *  This is required to properly support the common (and convenient)
      *  pattern:<p/>
      *
@@ -197,7 +218,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      *  create an infinite number of channels with pending messages, thus an
      *  infinite number of messages too.
      */
-    private WeakHashMap channelCache = new WeakHashMap();
+    private final MessengerPool channelCache = new MessengerPool(MAX_CHANNEL_MESSENGERS, MAX_MESSENGERS_PER_DESTINATION, MESSENGER_IDLE_TIMEOUT, false);
     private PeerGroup group = null;
 
     private ModuleImplAdvertisement implAdv = null;
@@ -212,13 +233,11 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     private final List incomingFilterListeners = new ArrayList();
 
     /**
-     *  The set of listener managed by this instance of the endpoint svc. <p/>
-     *
-     *  keys are {@see java.lang.String} <p/>
-     *
-     *  values are {@see net.jxta.endpoint.EndpointListener}
+     *  The set of listener managed by this instance of the endpoint svc,
+     *  indexed by service name and service param. The listeners are
+     *  {@link QuotaIncomingMessageListener}s.
      */
-    private final Map incomingMessageListeners = new FastHashMap(16);
+    private final ListenerTable incomingMessageListeners = new ListenerTable();
 
     /**
      *  if true then this service has been initialized
@@ -231,6 +250,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     private ListenerAdaptor listenerAdaptor = null;
     private String localPeerId = null;
 
+    /**
+     *  The UTF-8 encoding of {@link #localPeerId} for comparison with
+     *  received source peer elements.
+     */
+    private ByteBuffer localPeerIdBytes = null;
+
     /**
      *  The Message Transports which are registered for this endpoint. This is
      *  only the message transport registered locally, it does not include
@@ -242,9 +267,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     private final ArrayList messageTransports = new ArrayList();
 
     /**
-     *  The set of shared transport messengers currently ready for use.
+     *  The set of shared canonical messengers currently ready for use. They
+     *  are held until they have been idle for
+     *  {@link #MESSENGER_IDLE_TIMEOUT} so that their connection survives
+     *  between uses. Evicted ones are closed, releasing their connection.
      */
-    private final Map messengerMap = new WeakHashMap(32);
+    private final MessengerPool messengerMap = new MessengerPool(MAX_CANONICAL_MESSENGERS, MAX_MESSENGERS_PER_DESTINATION, MESSENGER_IDLE_TIMEOUT, true);
     private String myServiceName = null;
     private final List outgoingFilterListeners = new ArrayList();
     private EndpointService parentEndpoint = null;
@@ -371,7 +399,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         }
 
         synchronized (incomingMessageListeners) {
-            if (incomingMessageListeners.containsKey(address)) {
+            if (null != incomingMessageListeners.get(serviceName, serviceParam)) {
                 return false;
             }
 
@@ -379,7 +407,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 listener = new QuotaIncomingMessageListener(address, listener);
             }
 
-            incomingMessageListeners.put(address, listener);
+            incomingMessageListeners.add(serviceName, serviceParam, listener);
         }
 
         if (parentEndpoint != null) {
@@ -669,6 +697,31 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     }
 
 
+    /**
+     *  Returns true if the given source peer element names the local peer.
+     *  Elements received from the wire are compared as bytes rather than
+     *  being decoded to a String.
+     *
+     *@param  srcPeerElement  The source peer element of a message.
+     *@return                 true if the element contains the local peer id.
+     */
+    private boolean isLocalPeer(MessageElement srcPeerElement) {
+        if (srcPeerElement instanceof ByteArrayMessageElement) {
+            String charset = srcPeerElement.getMimeType().getParameter("charset");
+
+            if ((null == charset) || "UTF-8".equalsIgnoreCase(charset)) {
+                if (srcPeerElement.getByteLength() != localPeerIdBytes.remaining()) {
+                    return false;
+                }
+
+                return localPeerIdBytes.equals(((ByteArrayMessageElement) srcPeerElement).getByteBuffer());
+            }
+        }
+
+        return localPeerId.equals(srcPeerElement.toString());
+    }
+
+
     /**
      *  Description of the Method
      *
@@ -804,25 +857,18 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
 
         // Check the canonical map.
         synchronized (messengerMap) {
-            Reference ref = (Reference) messengerMap.get(addr);
+            // If there is a USABLE one, return it.
+            Messenger found = messengerMap.get(addr);
 
-            if (ref != null) {
-                Messenger found = (Messenger) ref.get();
-
-                // If it is USABLE, return it.
-                if ((found != null) && ((found.getState() & Messenger.USABLE) != 0)) {
-                    return found;
-                }
-
-                // It has been GCed or is nolonger USABLE. Make room for a new one.
-                messengerMap.remove(ref);
+            if (found != null) {
+                return found;
             }
 
             if (getLocalSenderForAddress(addr) != null) {
                 // The hint is saved in the canonical messenger and will be used when that virtual messenger first faces the need
                 // to create a transport messenger. As of now, the logical dest is unknown.
                 Messenger m = new CanonicalMessenger(vmQueueSize, addr, null, hint);
-                messengerMap.put(m.getDestinationAddressObject(), new SoftReference(m));
+                messengerMap.putIfAbsent(m.getDestinationAddressObject(), m);
                 return m;
             }
         }
@@ -1042,14 +1088,10 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     public Messenger getMessengerImmediate(EndpointAddress addr, Object hint) {
 
         // Note: for now, the hint is not used for canonicalization (hint != QOS).
-        synchronized (this) {
-            Reference existing = (Reference) channelCache.get(addr);
-            if (existing != null) {
-                Messenger m = (Messenger) existing.get();
-                if ((m != null) && ((m.getState() & Messenger.USABLE) != 0)) {
-                    return m;
-                }
-            }
+        Messenger existing = channelCache.get(addr);
+
+        if (existing != null) {
+            return existing;
         }
 
         // We do not have a good one at hand. Make a new one.
@@ -1073,22 +1115,15 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
 
         ChannelMessenger res = (ChannelMessenger) found.getChannelMessenger(getGroup().getPeerGroupID(),
                 addr.getServiceName(), addr.getServiceParameter());
-        synchronized (this) {
-
-            // We have to check again. May be we did all that in parallel with some other thread and it beat
-            // us to the finish line. In which case, substitute the existing one and throw ours away.
+        // The listenerAdaptor of this interface obj is used to support the sendMessage-with-listener API.
+        res.setMessageWatcher(listenerAdaptor);
 
-            Reference existing = (Reference) channelCache.get(addr);
-            if (existing != null) {
-                Messenger m = (Messenger) existing.get();
-                if ((m != null) && ((m.getState() & Messenger.USABLE) != 0)) {
-                    return m;
-                }
-            }
+        // We have to check again. May be we did all that in parallel with some other thread and it beat
+        // us to the finish line. In which case, substitute the existing one and throw ours away.
+        existing = channelCache.putIfAbsent(res.getDestinationAddressObject(), res);
 
-            // The listenerAdaptor of this interface obj is used to support the sendMessage-with-listener API.
-            res.setMessageWatcher(listenerAdaptor);
-            channelCache.put(res.getDestinationAddressObject(), new WeakReference(res));
+        if (existing != null) {
+            return existing;
         }
 
         return res;
@@ -1117,6 +1152,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         this.assignedID = assignedID;
         this.group = group;
         this.localPeerId = group.getPeerID().toString();
+        try {
+            this.localPeerIdBytes = ByteBuffer.wrap(localPeerId.getBytes("UTF-8")).asReadOnlyBuffer();
+        } catch (java.io.UnsupportedEncodingException never) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException("UTF-8 encoding unsupported");
+        }
         this.listenerAdaptor = new ListenerAdaptor(getGroup().getHomeThreadGroup());
         this.myServiceName = ChannelMessenger.InsertedServicePrefix + group.getPeerGroupID().getUniqueValue().toString();
 
@@ -1396,9 +1437,8 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
 
         if (null != srcPeerElement) {
             msg.removeMessageElement(srcPeerElement);
-            String srcPeer = srcPeerElement.toString();
 
-            if (localPeerId.equals(srcPeer)) {
+            if (isLocalPeer(srcPeerElement)) {
                 // This is a loopback. Discard.
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug(msg + " is a propagate loopback. Discarded");
@@ -1446,30 +1486,47 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             return;
         }
 
-        // Now that we know the original service name is valid, finish building the decoded version.
+        // Listeners for a redirected address are registered under the group
+        // mangling as service name with the original service name and param
+        // as param, so we look them up directly with the components of the
+        // mangled address; no key string is built for the usual cases.
+        String listenerName = dstAddress.getServiceName();
+        String listenerParam;
+        String listenerGenericParam;
+
         if (demangledAddress != dstAddress) {
-            decodedServiceName = dstAddress.getServiceName() + "/" + decodedServiceName;
+            listenerParam = dstAddress.getServiceParameter();
+            listenerGenericParam = decodedServiceName;
+        } else {
+            listenerParam = decodedServiceParam;
+            listenerGenericParam = null;
         }
 
         // First, try the regular destination
         EndpointListener h = null;
 
         if (null != decodedServiceParam) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + "/" + decodedServiceParam);
+            h = incomingMessageListeners.get(listenerName, listenerParam);
         }
 
         // Didn't find it with param, maybe there is a generic listener for the service
         if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName);
+            h = incomingMessageListeners.get(listenerName, listenerGenericParam);
         }
 
         // Didn't find it still, try the compatibility name.
-        if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + decodedServiceParam);
+        if ((h == null) && (null != decodedServiceParam)) {
+            String compatName = (null == listenerGenericParam) ? listenerName : listenerName + "/" + listenerGenericParam;
+
+            h = incomingMessageListeners.get(compatName + decodedServiceParam);
         }
 
         // Still no listener? oh well.
         if (h == null) {
+            if (demangledAddress != dstAddress) {
+                decodedServiceName = dstAddress.getServiceName() + "/" + decodedServiceName;
+            }
+
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("No listener for '" + dstAddress + "' in group " +
                          group +
@@ -1648,7 +1705,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         EndpointListener result = null;
 
         synchronized (incomingMessageListeners) {
-            removedListener = (QuotaIncomingMessageListener) incomingMessageListeners.remove(address);
+            removedListener = (QuotaIncomingMessageListener) incomingMessageListeners.remove(serviceName, serviceParam);
             if (removedListener != null) {
                 result = removedListener.getListener();
                 // We need to explicitly close the  QuotaIncomingMessageListener
@@ -1765,14 +1822,17 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             }
         }
 
-        // Clear up the HashMap
-        if (incomingMessageListeners != null) {
-            try {
-                incomingMessageListeners.clear();
-            } catch (Exception ez) {
-                // Not much can be done
-            }
+        // Clear up the listener table
+        incomingMessageListeners.clear();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Messenger pools for " + localPeerId + " : channels " + poolStatistics(channelCache) +
+                     ", canonical " + poolStatistics(messengerMap));
         }
+
+        // Drop our references to the messengers. Those still in use keep working.
+        channelCache.clear();
+        messengerMap.clear();
         // Avoid cross-reference problems with the GC
 
         // group = null;
@@ -1784,6 +1844,14 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     }
 
 
+    /**
+     *  Describes the usage of a messenger pool for the logs.
+     */
+    private static String poolStatistics(MessengerPool pool) {
+        return pool.size() + " pooled, " + pool.getHits() + " hits, " +
+               pool.getMisses() + " misses, " + pool.getEvictions() + " evictions";
+    }
+
     /**
      *  A non blocking messenger that obtains a backing (possibly blocking)
      *  messenger on-demand.
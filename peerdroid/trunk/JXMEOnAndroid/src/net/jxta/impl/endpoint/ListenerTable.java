@@ -0,0 +1,230 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jxta.endpoint.EndpointListener;
+
+/**
+ *  The incoming message listener table of the endpoint service. Listeners are
+ *  registered by service name and optional service parameter and are looked
+ *  up with the two components separately so that dispatching a message does
+ *  not require building a key string. <p/>
+ *
+ *  The table is copy-on-write: registrations replace an immutable snapshot
+ *  while lookups read the current snapshot without locking or allocating.
+ *  Registrations are rare compared to lookups.
+ */
+final class ListenerTable {
+
+    /**
+     *  The listeners for one service name.
+     */
+    private static final class ServiceEntry {
+
+        /**
+         *  The listener registered without a service parameter, may be null.
+         */
+        final EndpointListener generic;
+
+        /**
+         *  The listeners registered with a service parameter.
+         *
+         *  keys are {@link java.lang.String} <p/>
+         *
+         *  values are {@link net.jxta.endpoint.EndpointListener}
+         */
+        final Map byParam;
+
+        ServiceEntry(EndpointListener generic, Map byParam) {
+            this.generic = generic;
+            this.byParam = byParam;
+        }
+
+        boolean isEmpty() {
+            return (null == generic) && byParam.isEmpty();
+        }
+    }
+
+    /**
+     *  The current snapshot.
+     *
+     *  keys are {@link java.lang.String} service names <p/>
+     *
+     *  values are {@link ServiceEntry}
+     */
+    private volatile Map services = Collections.EMPTY_MAP;
+
+    /**
+     *  Returns the listener registered for exactly the given service name and
+     *  parameter.
+     *
+     *  @param serviceName the service name.
+     *  @param serviceParam the service parameter or null for the listener
+     *  registered without a parameter.
+     *  @return the listener or null if there is none.
+     */
+    EndpointListener get(String serviceName, String serviceParam) {
+        ServiceEntry entry = (ServiceEntry) services.get(serviceName);
+
+        if (null == entry) {
+            return null;
+        }
+
+        if (null == serviceParam) {
+            return entry.generic;
+        }
+
+        return (EndpointListener) entry.byParam.get(serviceParam);
+    }
+
+    /**
+     *  Returns the listener registered for the given address string of the
+     *  form <tt>serviceName[/serviceParam]</tt>.
+     *
+     *  @param address the address string.
+     *  @return the listener or null if there is none.
+     */
+    EndpointListener get(String address) {
+        int slashAt = address.indexOf('/');
+
+        if (-1 == slashAt) {
+            return get(address, null);
+        }
+
+        return get(address.substring(0, slashAt), address.substring(slashAt + 1));
+    }
+
+    /**
+     *  Registers a listener.
+     *
+     *  @param serviceName the service name.
+     *  @param serviceParam the service parameter, may be null.
+     *  @param listener the listener.
+     *  @return false if a listener was already registered for this service
+     *  name and parameter, otherwise true.
+     */
+    synchronized boolean add(String serviceName, String serviceParam, EndpointListener listener) {
+        if (null != get(serviceName, serviceParam)) {
+            return false;
+        }
+
+        ServiceEntry entry = (ServiceEntry) services.get(serviceName);
+        EndpointListener generic = (null == entry) ? null : entry.generic;
+        Map byParam = (null == entry) ? Collections.EMPTY_MAP : entry.byParam;
+
+        if (null == serviceParam) {
+            generic = listener;
+        } else {
+            byParam = new HashMap(byParam);
+            byParam.put(serviceParam, listener);
+        }
+
+        Map newServices = new HashMap(services);
+
+        newServices.put(serviceName, new ServiceEntry(generic, byParam));
+        services = newServices;
+
+        return true;
+    }
+
+    /**
+     *  Unregisters a listener.
+     *
+     *  @param serviceName the service name.
+     *  @param serviceParam the service parameter, may be null.
+     *  @return the listener which was removed or null if there was none.
+     */
+    synchronized EndpointListener remove(String serviceName, String serviceParam) {
+        EndpointListener removed = get(serviceName, serviceParam);
+
+        if (null == removed) {
+            return null;
+        }
+
+        ServiceEntry entry = (ServiceEntry) services.get(serviceName);
+        EndpointListener generic = entry.generic;
+        Map byParam = entry.byParam;
+
+        if (null == serviceParam) {
+            generic = null;
+        } else {
+            byParam = new HashMap(byParam);
+            byParam.remove(serviceParam);
+        }
+
+        ServiceEntry newEntry = new ServiceEntry(generic, byParam);
+        Map newServices = new HashMap(services);
+
+        if (newEntry.isEmpty()) {
+            newServices.remove(serviceName);
+        } else {
+            newServices.put(serviceName, newEntry);
+        }
+        services = newServices;
+
+        return removed;
+    }
+
+    /**
+     *  Unregisters all listeners.
+     */
+    synchronized void clear() {
+        services = Collections.EMPTY_MAP;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Messenger;
+import net.jxta.impl.util.TimeUtils;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  A bounded pool of messengers indexed by address. The pool holds its
+ *  messengers strongly so that they, and the connections behind them, are
+ *  not lost to the garbage collector while they are in use. Messengers are
+ *  evicted when they have not been asked for during the idle timeout, when
+ *  the pool is full (least recently used first) or when there are too many
+ *  of them for the same destination peer. Messengers which are no longer
+ *  {@link Messenger#USABLE} are dropped when found. <p/>
+ *
+ *  Messengers which are not {@link Messenger#IDLE}, that is which have
+ *  messages pending, are never evicted; the pool may then hold more than its
+ *  limits until they drain. Eviction otherwise drops the pool's reference
+ *  and, if the pool was created so, closes the messenger.
+ */
+final class MessengerPool {
+
+    /**
+     *  Log4J Category
+     */
+    private static final Logger LOG = Logger.getLogger(MessengerPool.class.getName());
+
+    /**
+     *  A pooled messenger.
+     */
+    private static final class Entry {
+
+        final Messenger messenger;
+
+        /**
+         *  The destination peer, that is the address without service.
+         */
+        final EndpointAddress destination;
+
+        long lastUsed;
+
+        Entry(Messenger messenger, EndpointAddress destination, long now) {
+            this.messenger = messenger;
+            this.destination = destination;
+            this.lastUsed = now;
+        }
+    }
+
+    /**
+     *  The maximum number of messengers in the pool.
+     */
+    private final int maxEntries;
+
+    /**
+     *  The maximum number of messengers for the same destination peer.
+     */
+    private final int maxPerDestination;
+
+    /**
+     *  How long a messenger may stay in the pool without being asked for.
+     */
+    private final long idleTimeout;
+
+    /**
+     *  If true, evicted messengers are closed.
+     */
+    private final boolean closeEvicted;
+
+    /**
+     *  The messengers in least recently used first order. Keys are
+     *  {@link EndpointAddress}, values are {@link Entry}.
+     */
+    private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    /**
+     *  The number of messengers per destination peer. Keys are
+     *  {@link EndpointAddress}, values are <code>int[1]</code>.
+     */
+    private final Map perDestination = new HashMap();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     *  Creates a new pool.
+     *
+     *  @param maxEntries the maximum number of messengers in the pool.
+     *  @param maxPerDestination the maximum number of messengers for the
+     *  same destination peer.
+     *  @param idleTimeout how long, in milliseconds, a messenger may stay in
+     *  the pool without being asked for.
+     *  @param closeEvicted if true, evicted messengers are closed. Only for
+     *  messengers nobody else is expected to keep.
+     */
+    MessengerPool(int maxEntries, int maxPerDestination, long idleTimeout, boolean closeEvicted) {
+        if ((maxEntries <= 0) || (maxPerDestination <= 0)) {
+            throw new IllegalArgumentException("Pool limits must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxPerDestination = maxPerDestination;
+        this.idleTimeout = idleTimeout;
+        this.closeEvicted = closeEvicted;
+    }
+
+    /**
+     *  Returns the usable messenger pooled for the address.
+     *
+     *  @param addr the address.
+     *  @return the messenger or <code>null</code> if there is no usable one.
+     */
+    Messenger get(EndpointAddress addr) {
+        List evicted = new ArrayList();
+        Messenger found = null;
+
+        synchronized (this) {
+            long now = TimeUtils.timeNow();
+
+            evictIdle(now, evicted);
+
+            Entry entry = (Entry) entries.get(addr);
+
+            if (entry != null) {
+                if ((entry.messenger.getState() & Messenger.USABLE) != 0) {
+                    entry.lastUsed = now;
+                    found = entry.messenger;
+                } else {
+                    // No longer usable. Make room for a new one.
+                    remove(addr, entry);
+                }
+            }
+
+            if (found != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        close(evicted);
+        return found;
+    }
+
+    /**
+     *  Pools the messenger for the address unless there already is a usable
+     *  one.
+     *
+     *  @param addr the address.
+     *  @param messenger the messenger.
+     *  @return the usable messenger already pooled for the address or
+     *  <code>null</code> if the messenger provided was pooled.
+     */
+    Messenger putIfAbsent(EndpointAddress addr, Messenger messenger) {
+        List evicted = new ArrayList();
+
+        synchronized (this) {
+            long now = TimeUtils.timeNow();
+            Entry entry = (Entry) entries.get(addr);
+
+            if (entry != null) {
+                if ((entry.messenger.getState() & Messenger.USABLE) != 0) {
+                    entry.lastUsed = now;
+                    return entry.messenger;
+                }
+
+                remove(addr, entry);
+            }
+
+            EndpointAddress destination = new EndpointAddress(addr, null, null);
+
+            entries.put(addr, new Entry(messenger, destination, now));
+
+            int[] count = (int[]) perDestination.get(destination);
+
+            if (count == null) {
+                count = new int[1];
+                perDestination.put(destination, count);
+            }
+            count[0]++;
+
+            if (count[0] > maxPerDestination) {
+                evictOldest(destination, addr, evicted);
+            }
+
+            if (entries.size() > maxEntries) {
+                evictOldest(null, addr, evicted);
+            }
+        }
+
+        close(evicted);
+        return null;
+    }
+
+    /**
+     *  Drops every messenger from the pool.
+     */
+    synchronized void clear() {
+        entries.clear();
+        perDestination.clear();
+    }
+
+    /**
+     *  Returns the number of messengers in the pool.
+     *
+     *  @return the number of messengers in the pool.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *  Returns the number of lookups which found a usable messenger.
+     *
+     *  @return the number of lookups which found a usable messenger.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     *  Returns the number of lookups which did not find a usable messenger.
+     *
+     *  @return the number of lookups which did not find a usable messenger.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     *  Returns the number of messengers evicted because they were idle or
+     *  because of the pool limits.
+     *
+     *  @return the number of messengers evicted.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     *  Evicts the messengers which have not been asked for during the idle
+     *  timeout. They are the first ones in access order.
+     */
+    private void evictIdle(long now, List evicted) {
+        Iterator eachEntry = entries.values().iterator();
+
+        while (eachEntry.hasNext()) {
+            Entry entry = (Entry) eachEntry.next();
+
+            if (TimeUtils.toRelativeTimeMillis(now, entry.lastUsed) < idleTimeout) {
+                break;
+            }
+
+            if (isBusy(entry)) {
+                continue;
+            }
+
+            eachEntry.remove();
+            forget(entry.destination);
+            evicted(entry, "idle", evicted);
+        }
+    }
+
+    /**
+     *  Evicts the least recently used messenger which has no messages
+     *  pending, optionally restricted to a destination peer, other than the
+     *  one for the address provided.
+     */
+    private void evictOldest(EndpointAddress destination, EndpointAddress keep, List evicted) {
+        Iterator eachEntry = entries.entrySet().iterator();
+
+        while (eachEntry.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachEntry.next();
+            Entry entry = (Entry) anEntry.getValue();
+
+            if (keep.equals(anEntry.getKey())) {
+                continue;
+            }
+
+            if ((destination != null) && !destination.equals(entry.destination)) {
+                continue;
+            }
+
+            if (isBusy(entry)) {
+                continue;
+            }
+
+            eachEntry.remove();
+            forget(entry.destination);
+            evicted(entry, (destination == null) ? "pool full" : "destination full", evicted);
+            return;
+        }
+    }
+
+    /**
+     *  Messengers with messages pending must stay referenced so that there
+     *  is only one of them per address.
+     */
+    private static boolean isBusy(Entry entry) {
+        return (entry.messenger.getState() & Messenger.IDLE) == 0;
+    }
+
+    private void remove(EndpointAddress addr, Entry entry) {
+        entries.remove(addr);
+        forget(entry.destination);
+    }
+
+    private void forget(EndpointAddress destination) {
+        int[] count = (int[]) perDestination.get(destination);
+
+        if ((count != null) && (--count[0] <= 0)) {
+            perDestination.remove(destination);
+        }
+    }
+
+    private void evicted(Entry entry, String reason, List evicted) {
+        evictions++;
+
+        if (closeEvicted) {
+            evicted.add(entry.messenger);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Evicted messenger for " + entry.messenger.getDestinationAddress() + " (" + reason + ")");
+        }
+    }
+
+    /**
+     *  Closes the evicted messengers. Called without holding the pool lock
+     *  since closing may call back listeners.
+     */
+    private static void close(List evicted) {
+        Iterator eachMessenger = evicted.iterator();
+
+        while (eachMessenger.hasNext()) {
+            ((Messenger) eachMessenger.next()).close();
+        }
+    }
+}
@@ -55,8 +55,11 @@
  */
 package net.jxta.impl.endpoint;
 
-import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
@@ -64,7 +67,7 @@ import org.apache.log4j.Level;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.Message;
-import net.jxta.impl.util.UnbiasedQueue;
+import net.jxta.impl.util.FairQueue;
 import net.jxta.impl.util.ResourceDispatcher;
 import net.jxta.util.ResourceAccount;
 import net.jxta.impl.util.Cache;
@@ -233,7 +236,11 @@ public class QuotaIncomingMessageListener implements EndpointListener {
      */
     private final static Cache allSources = new Cache(100, new MyCacheListener());
 
-    private final UnbiasedQueue messageQueue = new UnbiasedQueue(Integer.MAX_VALUE, false, new LinkedList());
+    /**
+     *  The messages waiting for a thread, queued per source account so that
+     *  a source sending a burst does not delay the others.
+     */
+    private final FairQueue messageQueue = new FairQueue();
 
     private final String name;
 
@@ -276,175 +283,44 @@ public class QuotaIncomingMessageListener implements EndpointListener {
     }
 
     /**
-     *  The thread which services removing items from the queue
+     *  The threads which service removing items from the queues of all the
+     *  listeners. A listener is given a thread only when the thread
+     *  dispatcher grants one, which bounds the threads in use; idle threads
+     *  retire after a few seconds.
      */
-    static class ListenerThread extends Thread {
-
-        /**
-         *  We put all of the listeners into a single thread group
-         *
-         */
-        // FIXME 20020910 bondolo@jxta.org We need a way to make this group appear in the top group
-        private final static ThreadGroup listenerGroup = new ThreadGroup("Quota Incoming Message Listeners");
-
-        private final static List idleThreads = new LinkedList();
-
-        private QuotaIncomingMessageListener current;
-
-        private boolean terminated = false;
-
-        static ListenerThread newListenerThread(QuotaIncomingMessageListener current) {
+    private final static ThreadPoolExecutor listenerThreads =
+        new ThreadPoolExecutor(0, Integer.MAX_VALUE, 4 * TimeUtils.ASECOND, TimeUnit.MILLISECONDS,
+                               new SynchronousQueue(), new ThreadFactory() {
+            // FIXME 20020910 bondolo@jxta.org We need a way to make this group appear in the top group
+            private final ThreadGroup listenerGroup = new ThreadGroup("Quota Incoming Message Listeners");
 
-            ListenerThread lt = null;
-            synchronized(idleThreads) {
-                if (idleThreads.isEmpty()) {
-                    return new ListenerThread(current);
-                }
-
-                lt = (ListenerThread) idleThreads.remove(0);
-            }
-
-            // As long as the listenerThread is not in the idle list, it is not
-            // allowed top die. It will keep waiting for that new job.
-            // Since we removed it from the list, only us can give it a new job.
-            lt.newJob(current);
-            return lt;
-        }
-
-        private ListenerThread(QuotaIncomingMessageListener current) {
-            super(listenerGroup, "QuotaListenerThread");
-            this.current = current;
-            setDaemon(true);
-            start();
-        }
+            public Thread newThread(Runnable job) {
+                Thread listenerThread = new Thread(listenerGroup, job, "QuotaListenerThread");
 
-        // Not thread safe: only one thread should be able to give a
-        // job at any point in time.  The use of "synchronized" here,
-        // is for handshake with wait.
-        void newJob(QuotaIncomingMessageListener current) {
-            synchronized(this) {
-                this.current = current;
-                notify();
+                listenerThread.setDaemon(true);
+                return listenerThread;
             }
-        }
-
-        void terminate() {
-            synchronized(idleThreads) {
-                terminated = true;
-            }
-            interrupt();
-        }
-
-        // Wait for a job until we are allowed to retire.
-        // We are forbidden to retire before we can
-        // prove that we can no-longer be given a job: that is, hold
-        // the idle list lock, verify that we're still in the list,
-        // remove ourselves from the idle list, release the lock. If
-        // we believe we're unemployed and then discover that we've
-        // been removed from the idle list, we have or will have a job
-        // soon.
-
-        boolean getJob() {
-
-            // We cannot get a job if we do not register
-            // with the employment agency. It is garanteed that we're not in it
-            // at this point: the only add() is below and we never leave this
-            // routine while being on the list.
-
-            synchronized(idleThreads) {
-                // Since we're perfectly idle and immune from getting a
-                // new job at this point. This is the best time to comply
-                // with a pending termination request. If the request happens
-                // while we wait, then interrupt will expedite the process.
-                // If, wakeing up due to that, we find that we have a job,
-                // then we will comply the next time we are idle again and come
-                // back here.
-
-                if (terminated) {
-                    return false;
-                }
-
-                idleThreads.add(0, this); // == generic list parlance for addFirst.
-            }
-
-            // From this point, we could have a new job
-
-            // Wait until we're given something to do again or
-            // we've waited too long.  Three sources of wakeing
-            // up: timeout, new job, interrupted. In all cases we
-            // move on. If we want to retire, we must check that we
-            // truely have nothing to do. In case of collision,
-            // go back to work.
-
-
-            while (true) {
-                synchronized(this) {
-                    if (current != null) {
-                        return true; // Have job already. Go back to work.
-                    }
+        });
 
-                    // Wait for a job until we're so bored that we try
-                    // to retire.
-
-                    try {
-                        wait(4 * TimeUtils.ASECOND);
-                    } catch(InterruptedException ie) {
-                        Thread.interrupted();
-                    }
-
-                    // Ok, did we wake up because we have a job or what ?
-
-                    // If we have job, nomatter what "terminated" or the clock says,
-                    // we have to process it.
-
-                    if (current != null) {
-                        return true;
-                    }
-                }
-
-                // Can't get a job. We're supposed to go away, but we
-                // must make sure that we are not going to be given a
-                // job while we do it.  For that, we need the lock on
-                // the idleList, which means we must release the lock
-                // on this.
+    /**
+     *  Runs listeners until the thread dispatcher no longer chains one to
+     *  the thread.
+     */
+    static class ListenerJob implements Runnable {
 
-                synchronized(idleThreads) {
+        private final QuotaIncomingMessageListener first;
 
-                    if (idleThreads.remove(this)) {
-                        // Good, we did remove ourselves; which means no other
-                        // thread had nor can. Which means that we have not
-                        // and will not be given a job. So we can go away.
-                        return false;
-                    }
-
-                    // We did not remove ourselves; we were already out.
-                    // this means that we have been given a job or will be
-                    // given one for sure. Go back and wait for it.
-                }
-            }
+        ListenerJob(QuotaIncomingMessageListener first) {
+            this.first = first;
         }
 
-        // When we first run, we always have a job. When we have a job
-        // we can treat current as a local variable. As long as we
-        // have chained job it is forbidden to quit.  Once we run out
-        // of chained job, we return to wait for a new one or for a
-        // reason to quit.
-
-
         public void run() {
-
             try {
-                do {
-                    // Process chained jobs.
+                QuotaIncomingMessageListener current = first;
 
-                    while (current != null) {
-                        current = current.doOne();
-                    }
-
-                    // Ran out. Time to deal with employment.
+                while (current != null) {
+                    current = current.doOne();
                 }
-                while(getJob());
-
             } catch (Throwable all) {
                 LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
             }
@@ -519,11 +395,6 @@ public class QuotaIncomingMessageListener implements EndpointListener {
             }
 
             // Drain the queue into a local list
-            // Do not use (pop(0));
-            // we do not need to block and since we're not using a
-            // synchronizedUnbiasedQueue, we're not supposed to use the
-            // timeout based routines; they're inconsistent with the
-            // non timeout ones, synch-wise
 
             MessageFromSource mfs = null;
             while ((mfs = (MessageFromSource) messageQueue.pop()) != null) {
@@ -569,8 +440,14 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         MessageFromSource mfs = null;
 
         // Dequeue a message and update the thread's account "need" status.
+        // The queue has its own lock; only the accounting needs the
+        // dispatcher's. Reading the queue length while holding the
+        // dispatcher's lock is enough to never miss a message pushed
+        // concurrently: the pusher asks for a thread under that lock after
+        // it has queued its message.
+        mfs = (MessageFromSource) messageQueue.pop();
+
         synchronized(threadDispatcher) {
-            mfs = (MessageFromSource) messageQueue.pop();
             myAccount.inNeed(messageQueue.getCurrentInQueue() != 0);
             threadDispatcher.notify(); // makes a contender run earlier
         }
@@ -726,27 +603,20 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         }
 
         boolean obtained = false;
-        boolean pushed = false;
+        boolean pushed = messageQueue.push(msgSrcAccount, new MessageFromSource(message, srcAddr, dstAddr, msgSrcAccount, timeReceived, msgSize));
 
-        synchronized(threadDispatcher) {
-            do {
-                pushed = messageQueue.push(new MessageFromSource(message, srcAddr, dstAddr, msgSrcAccount, timeReceived, msgSize));
-
-                if((!pushed) && messageQueue.isClosed()) {
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("queue closed, message discarded");
-                    }
-                    break;
-                }
-            } while(!pushed);
+        if ((!pushed) && LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("queue closed, message discarded");
+        }
 
-            if (LOG.isEnabledFor(Level.WARN)) {
+        synchronized(threadDispatcher) {
+            if (pushed && LOG.isEnabledFor(Level.WARN)) {
                 int queueLen = messageQueue.getCurrentInQueue();
                 long timeNow = TimeUtils.timeNow();
 
                 if ((queueLen > 100) && (TimeUtils.toRelativeTimeMillis(timeNow, lastLongQueueNotification) > TimeUtils.ASECOND)) {
                     lastLongQueueNotification = timeNow;
-                    LOG.warn("Very long queue (" + queueLen + ") for listener: " + this);
+                    LOG.warn("Very long queue (" + queueLen + " from " + messageQueue.getCurrentSources() + " sources) for listener: " + this);
                 }
             }
 
@@ -777,7 +647,7 @@ public class QuotaIncomingMessageListener implements EndpointListener {
         }
 
         if (obtained) {
-            ListenerThread.newListenerThread(this);
+            listenerThreads.execute(new ListenerJob(this));
         } else {
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("Listener '" + this +  "' exceeds thread's limits; msg waits.");
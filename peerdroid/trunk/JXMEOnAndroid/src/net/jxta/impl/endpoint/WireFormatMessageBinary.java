@@ -106,6 +106,32 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
     protected static final int MESSAGE_VERSION = 0;
 
+    /**
+     *  Byte array element bodies at least this long are appended to a
+     *  {@link BufferChain} without being copied.
+     */
+    static final int SLICE_THRESHOLD = 1024;
+
+    private static final byte [] MESSAGE_MAGIC = { 'j', 'x', 'm', 'g' };
+
+    private static final byte [] ELEMENT_MAGIC = { 'j', 'x', 'e', 'l' };
+
+    /**
+     *  Strings longer than this many bytes are not cached by the decoder.
+     */
+    private static final int MAX_CACHED_STRING = 64;
+
+    /**
+     *  Recently decoded element names and namespaces, indexed by a hash of
+     *  their encoded bytes. Shared by all decoders; races only cost a miss.
+     */
+    private static final decodedValue [] nameCache = new decodedValue [256];
+
+    /**
+     *  Recently decoded element mime types, indexed as for the name cache.
+     */
+    private static final decodedValue [] typeCache = new decodedValue [64];
+
     /**
      * Our Mime Media Type(s)
      */
@@ -855,4 +881,434 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     public MimeMediaType getContentEncoding() {
         return contentEncoding;
     }
+
+    /**
+     *  Serializes a message in binary wire format directly into a chain of
+     *  pooled buffers. The result is byte for byte identical to what
+     *  {@link #sendToStream(OutputStream)} produces, but no intermediate
+     *  header arrays are built and large {@link ByteArrayMessageElement}
+     *  bodies are referenced rather than copied. The caller must call
+     *  {@link BufferChain#release()} once the buffers have been sent.
+     *
+     *  @param msg the message to serialize.
+     *  @return the serialized message.
+     *  @throws IOException if an element cannot be serialized.
+     */
+    public static BufferChain toBuffers(Message msg) throws IOException {
+        BufferChain chain = new BufferChain();
+        boolean success = false;
+
+        try {
+            List namespaces = new ArrayList();
+
+            namespaces.add("");
+            namespaces.add("jxta");
+
+            Iterator eachNamespace = msg.getMessageNamespaces();
+            while(eachNamespace.hasNext()) {
+                String namespace = (String) eachNamespace.next();
+                if(!namespaces.contains(namespace)) {
+                    namespaces.add(namespace);
+                }
+            }
+
+            if(namespaces.size() >= 256) {
+                throw new IllegalStateException("WireFormatMessageBinary does not support more than 255 namespaces");
+            }
+
+            int elementCount = 0;
+            Message.ElementIterator eachElement = msg.getMessageElements();
+            while(eachElement.hasNext()) {
+                eachElement.next();
+                elementCount++;
+            }
+
+            chain.write(MESSAGE_MAGIC, 0, MESSAGE_MAGIC.length);
+            chain.write(MESSAGE_VERSION);
+            chain.writeShort(namespaces.size() - 2);
+
+            for(int each = 2; each < namespaces.size(); each++) {
+                writeString(chain, (String) namespaces.get(each));
+            }
+
+            chain.writeShort(elementCount);
+
+            eachElement = msg.getMessageElements();
+            while(eachElement.hasNext()) {
+                MessageElement anElement = (MessageElement) eachElement.next();
+                int namespaceid = namespaces.indexOf(eachElement.getNamespace());
+
+                writeElement(chain, namespaceid, anElement);
+            }
+
+            success = true;
+        } finally {
+            if(!success) {
+                chain.release();
+            }
+        }
+
+        return chain;
+    }
+
+    /**
+     *  Decodes a message which has been read in its entirety into a byte
+     *  array. Element values are not copied; each element is a view on the
+     *  provided array which must therefore not be modified afterwards.
+     *  Element names, namespaces and types which were recently seen are
+     *  shared rather than decoded again.
+     *
+     *  @param buf the array containing the message.
+     *  @param offset the offset of the message within the array.
+     *  @param length the length of the message.
+     *  @return the decoded message.
+     *  @throws IOException if the message is malformed.
+     */
+    public static Message fromBuffer(byte [] buf, int offset, int length) throws IOException {
+        if((offset < 0) || (length < 0) || (offset + length > buf.length)) {
+            throw new IllegalArgumentException("Bad offset or length");
+        }
+
+        return new bufferReader(buf, offset, offset + length).readMessage();
+    }
+
+    /**
+     *  A value decoded from its wire bytes.
+     */
+    private static class decodedValue {
+        final byte [] bytes;
+
+        final Object value;
+
+        decodedValue(byte [] bytes, Object value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }
+
+    /**
+     *  Reads a binary message from a byte array without copying element
+     *  values.
+     */
+    private static class bufferReader {
+        final byte [] buf;
+
+        int pos;
+
+        final int end;
+
+        bufferReader(byte [] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        Message readMessage() throws IOException {
+            Message msg = new Message();
+
+            if(!magic(MESSAGE_MAGIC)) {
+                throw new IOException("Not a message (incorrect signature)");
+            }
+
+            if(readByte() != MESSAGE_VERSION) {
+                throw new IOException("Message not version " + MESSAGE_VERSION);
+            }
+
+            int namespaceCnt = readShort();
+
+            if((namespaceCnt < 0) || (namespaceCnt > 253)) {
+                throw new IOException("Message contains too many namespaces (>253)");
+            }
+
+            String [] namespaces = new String [2 + namespaceCnt];
+            namespaces[0] = "";
+            namespaces[1] = "jxta";
+
+            for(int eachNamespace = 2; eachNamespace < namespaces.length; eachNamespace++) {
+                namespaces[eachNamespace] = readName();
+            }
+
+            int elementCnt = readShort();
+            int eachElement = 0;
+
+            while(((0 == elementCnt) && (pos < end)) || (eachElement < elementCnt)) {
+                require(5);
+                int nsid = buf[pos + 4] & 0xFF;
+                MessageElement anElement = readElement();
+
+                if(nsid >= namespaces.length) {
+                    throw new IOException("Element identified a namespace which was not defined for this message.");
+                }
+
+                msg.addMessageElement(namespaces[nsid], anElement);
+                eachElement++;
+            }
+
+            if((elementCnt != 0) && (eachElement != elementCnt)) {
+                throw new IOException("Found wrong number of elements in message.");
+            }
+
+            if (LOG.isEnabledFor(Level.DEBUG))
+                LOG.debug("fromBuffer : read " + eachElement + " elements for " + msg);
+
+            return msg;
+        }
+
+        MessageElement readElement() throws IOException {
+            if(!magic(ELEMENT_MAGIC)) {
+                throw new IOException("Not a message element (incorrect signature)");
+            }
+
+            readByte(); // namespace id, read by the caller.
+
+            int flags = readByte();
+
+            String name = readName();
+
+            MimeMediaType type = MimeMediaType.AOS;
+            if((flags & HAS_TYPE) != 0) {
+                type = readType();
+            }
+
+            int dataLen = readInt();
+
+            if((dataLen < 0) || (dataLen > end - pos)) {
+                throw new IOException("Element length " + dataLen + " exceeds message");
+            }
+
+            int dataOffset = pos;
+            pos += dataLen;
+
+            MessageElement sig = null;
+            if((flags & HAS_SIGNATURE) != 0) {
+                sig = readElement();
+            }
+
+            if(type.equalsIngoringParams(myTypes [0])) {
+                Message submsg = new bufferReader(buf, dataOffset, dataOffset + dataLen).readMessage();
+
+                return new JxtaMessageMessageElement(name, type, submsg, sig);
+            }
+
+            return new ByteArrayMessageElement(name, type, buf, dataOffset, dataLen, sig);
+        }
+
+        boolean magic(byte [] expected) throws IOException {
+            require(expected.length);
+
+            for(int each = 0; each < expected.length; each++) {
+                if(buf[pos++] != expected[each]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        int readByte() throws IOException {
+            require(1);
+
+            return buf[pos++];
+        }
+
+        int readShort() throws IOException {
+            require(2);
+
+            int result = (short) (((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF));
+            pos += 2;
+
+            return result;
+        }
+
+        int readInt() throws IOException {
+            require(4);
+
+            int result = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) |
+                         ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+            pos += 4;
+
+            return result;
+        }
+
+        String readName() throws IOException {
+            int len = stringLength();
+            Object cached = lookup(nameCache, len);
+
+            if(null == cached) {
+                cached = new String(buf, pos, len, "UTF8");
+                remember(nameCache, len, cached);
+            }
+
+            pos += len;
+
+            return (String) cached;
+        }
+
+        MimeMediaType readType() throws IOException {
+            int len = stringLength();
+            Object cached = lookup(typeCache, len);
+
+            if(null == cached) {
+                try {
+                    cached = new MimeMediaType(new String(buf, pos, len, "UTF8")).intern();
+                } catch (IllegalArgumentException uhoh) {
+                    throw new IOException("Bad MimeType in message element header : " + uhoh.getMessage());
+                }
+                remember(typeCache, len, cached);
+            }
+
+            pos += len;
+
+            return (MimeMediaType) cached;
+        }
+
+        int stringLength() throws IOException {
+            int len = readShort();
+
+            if(len < 0) {
+                throw new IOException("Bad string length in message");
+            }
+
+            require(len);
+
+            return len;
+        }
+
+        void require(int count) throws IOException {
+            if(end - pos < count) {
+                throw new EOFException("Message truncated");
+            }
+        }
+
+        int hash(int len) {
+            int h = len;
+
+            for(int each = pos; each < pos + len; each++) {
+                h = 31 * h + buf[each];
+            }
+
+            return h ^ (h >>> 16);
+        }
+
+        Object lookup(decodedValue [] cache, int len) {
+            if(len > MAX_CACHED_STRING) {
+                return null;
+            }
+
+            decodedValue entry = cache[hash(len) & (cache.length - 1)];
+
+            if((null == entry) || (entry.bytes.length != len)) {
+                return null;
+            }
+
+            for(int each = 0; each < len; each++) {
+                if(entry.bytes[each] != buf[pos + each]) {
+                    return null;
+                }
+            }
+
+            return entry.value;
+        }
+
+        void remember(decodedValue [] cache, int len, Object value) {
+            if(len > MAX_CACHED_STRING) {
+                return;
+            }
+
+            byte [] bytes = new byte [len];
+            System.arraycopy(buf, pos, bytes, 0, len);
+
+            cache[hash(len) & (cache.length - 1)] = new decodedValue(bytes, value);
+        }
+    }
+
+    /**
+     *  Serializes an element and its signature into a buffer chain.
+     */
+    private static void writeElement(BufferChain chain, int namespaceid, MessageElement element) throws IOException {
+        MessageElement sig = element.getSignature();
+        MimeMediaType elementType = element.getMimeType();
+        boolean hasType = !MimeMediaType.AOS.equals(elementType);
+
+        chain.write(ELEMENT_MAGIC, 0, ELEMENT_MAGIC.length);
+        chain.write(namespaceid);
+        chain.write((hasType ? HAS_TYPE : 0) | ((null != sig) ? HAS_SIGNATURE : 0));
+
+        writeString(chain, element.getElementName());
+
+        if(hasType) {
+            writeString(chain, elementType.toString());
+        }
+
+        long dataLen = element.getByteLength();
+
+        if(dataLen > Integer.MAX_VALUE) {
+            throw new IllegalStateException("WireFormatMessageBinary does not support elements longer than 4GB");
+        }
+
+        chain.writeInt((int) dataLen);
+
+        if((element instanceof ByteArrayMessageElement) && (dataLen >= SLICE_THRESHOLD)) {
+            chain.append(((ByteArrayMessageElement) element).getByteBuffer());
+        } else {
+            element.sendToStream(chain);
+        }
+
+        if(null != sig) {
+            writeElement(chain, namespaceid, sig);
+        }
+    }
+
+    /**
+     *  Writes a string as a short length followed by its UTF-8 encoding,
+     *  encoding straight into the chain. Unpaired surrogates are written as
+     *  '?' as the platform encoder does.
+     */
+    private static void writeString(BufferChain chain, String str) {
+        int chars = str.length();
+        int utflen = 0;
+
+        for(int each = 0; each < chars; each++) {
+            char c = str.charAt(each);
+
+            if(c < 0x80) {
+                utflen++;
+            } else if(c < 0x800) {
+                utflen += 2;
+            } else if(Character.isHighSurrogate(c) && (each + 1 < chars) && Character.isLowSurrogate(str.charAt(each + 1))) {
+                utflen += 4;
+                each++;
+            } else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                utflen++;
+            } else {
+                utflen += 3;
+            }
+        }
+
+        chain.writeShort(utflen);
+
+        for(int each = 0; each < chars; each++) {
+            char c = str.charAt(each);
+
+            if(c < 0x80) {
+                chain.write(c);
+            } else if(c < 0x800) {
+                chain.write(0xC0 | (c >> 6));
+                chain.write(0x80 | (c & 0x3F));
+            } else if(Character.isHighSurrogate(c) && (each + 1 < chars) && Character.isLowSurrogate(str.charAt(each + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++each));
+
+                chain.write(0xF0 | (cp >> 18));
+                chain.write(0x80 | ((cp >> 12) & 0x3F));
+                chain.write(0x80 | ((cp >> 6) & 0x3F));
+                chain.write(0x80 | (cp & 0x3F));
+            } else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                chain.write('?');
+            } else {
+                chain.write(0xE0 | (c >> 12));
+                chain.write(0x80 | ((c >> 6) & 0x3F));
+                chain.write(0x80 | (c & 0x3F));
+            }
+        }
+    }
 }
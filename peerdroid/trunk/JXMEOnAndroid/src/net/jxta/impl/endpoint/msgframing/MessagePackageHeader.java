@@ -175,6 +175,40 @@ public class MessagePackageHeader {
         }
     }
     
+    /**
+     *  Finds the length of a complete header block at the start of a buffer.
+     *  Used by readers which cannot block waiting for the rest of the
+     *  headers.
+     *
+     *  @param buf the buffer.
+     *  @param offset the offset of the header block within the buffer.
+     *  @param length the number of bytes available.
+     *  @return the length of the header block, including its terminating
+     *  empty header, or -1 if the block is not yet complete.
+     */
+    public static int getHeaderLength(byte [] buf, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+
+        while(pos < end) {
+            int headerNameLength = buf[pos++] & 0xFF;
+
+            if(0 == headerNameLength)
+                return pos - offset;
+
+            pos += headerNameLength;
+
+            if(pos + 2 > end)
+                return -1;
+
+            int headerValueLength = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+
+            pos += 2 + headerValueLength;
+        }
+
+        return -1;
+    }
+
     /**
      *  Add a header.
      *
@@ -62,15 +62,17 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -104,7 +106,6 @@ import net.jxta.protocol.RouteAdvertisement;
 import net.jxta.exception.PeerGroupException;
 
 import net.jxta.impl.endpoint.LoopbackMessenger;
-import net.jxta.impl.util.FastHashMap;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.impl.util.TimerThreadNamer;
 
@@ -123,24 +124,11 @@ public class EndpointRouter implements EndpointListener,
     private static transient final Logger LOG = Logger.getLogger(EndpointRouter.class.getName());
 
     /**
-     *  These are peers which we know multi-hop routes for.
-     *
-     *  <p/><ul>
-     *      <li>Key is peer id as a {@link et.jxta.endpoint.EndpointAddress}</li>
-     *      <li>value is a {@link Route}.</li>
-     *  </ul>
-     */
-    private Map routedRoutes = new FastHashMap(16);
-
-    /**
-     *  A record of failures.
-     *
-     *  <p/><ul>
-     *      <li>keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>values are the time of failure as {@link java.lang.Long}.</li>
-     *  </ul>
+     *  What we know about the destinations: the peers which we know
+     *  multi-hop routes for, the record of failures, the routes which were
+     *  NACKed and the pending route queries.
      */
-    private Map triedAndFailed = new HashMap();
+    private final RouteTable routeTable = new RouteTable();
 
     /**
      * local peer ID as a endpointAddress.
@@ -175,32 +163,24 @@ public class EndpointRouter implements EndpointListener,
     public static final String routerSName = "EndpointRouter";
 
     /**
-     * Whenever we initiate connectivity to a peer (creating a direct route).
-     * we remember that we need to send our route adv to that peer. So that
-     * it has a chance to re-establish the connection from its side, if need
-     * be. The route adv is actually sent piggy-backed on the first message
-     * that goes there.
+     * The peers which declared in the router messages they sent us that they
+     * understand the binary encoding of the router message. We use it for
+     * the messages we send them.
      *
      * <p>Values are {@link net.jxta.endpoint.EndpointAddress}.
      */
-    private Set newDestinations = Collections.synchronizedSet(new HashSet());
+    private Set binaryPeers = Collections.synchronizedSet(new HashSet());
 
     /**
-     * A pool of messengers categorized by logical address.
-     * This actually is the direct routes map.
+     * The maximum number of peers we remember in {@link #binaryPeers}.
      */
-    private Destinations destinations;
+    private static final int MAX_BINARY_PEERS = 1024;
 
     /**
-     *  A record of expiration time of known bad routes we received a NACK route
-     *
-     *  <p/><ul>
-     *      <li>Keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>Values are {@link net.jxta.impl.endpoint.router.BadRoute}.</li>
-     *  </ul>
-     *
+     * A pool of messengers categorized by logical address.
+     * This actually is the direct routes map.
      */
-    private Map badRoutes = new HashMap();
+    private Destinations destinations;
 
     /**
      * We record queries when first started and keep them pending for
@@ -215,21 +195,23 @@ public class EndpointRouter implements EndpointListener,
      * FIXME: jice@jxta.org 20020903 this is approximate. We can do
      * cleaner/better than that, but it's an inexpensive improvement over what
      * was there before.
-     * FIXME: tra@jxta.org 20030818 the pending hashmap should be moved
-     * in the routeResolver class as this will allow to only synchronize
-     * on the routeResolver object rather than the router object.
-     *  <p/><ul>
-     *      <li>Keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>Values are {@link ClearPendingQuery}.</li>
-     *  </ul>
+     * The pending queries are kept in the {@link #routeTable}.
      */
-    protected Map pendingQueries = new HashMap();
 
     /**
      * Timer by which we schedule the clearing of peinding queries.
      */
     private Timer timer;
 
+    /**
+     * Threads performing the route resolutions requested with a
+     * {@link RouteResolution.Listener}. A search may wait for
+     * MAXFINDROUTE_TIMEOUT, so each gets its own thread rather than waiting
+     * for one; there is at most one search per destination without a hint.
+     * Idle threads retire.
+     */
+    private ExecutorService resolvers;
+
     protected class ClearPendingQuery extends TimerTask {
         EndpointAddress pid;
         volatile boolean failed = false;
@@ -251,9 +233,7 @@ public class EndpointRouter implements EndpointListener,
                 if (failed) {
                     // Second tick.
                     // This negative cache info is expired.
-                    synchronized (EndpointRouter.this) {
-                        pendingQueries.remove(pid);
-                    }
+                    routeTable.removePendingQuery(pid, this);
                     this.cancel();
                 } else {
                     // First timer tick. We're done trying. This is now a negative
@@ -662,6 +642,14 @@ public class EndpointRouter implements EndpointListener,
 
         timer = new Timer(true);
         timer.schedule(new TimerThreadNamer("EndpointRouter Timer for " + g.getPeerGroupID()), 0);
+        final String resolverName = "Route resolution for " + g.getPeerGroupID();
+        resolvers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable resolution) {
+                Thread resolver = new Thread(resolution, resolverName);
+                resolver.setDaemon(true);
+                return resolver;
+            }
+        });
         group = g;
         endpoint = group.getEndpointService();
         localPeerId = group.getPeerID();
@@ -748,6 +736,8 @@ public class EndpointRouter implements EndpointListener,
         destinations.close();
         timer.cancel();
         timer = null;
+        resolvers.shutdown();
+        routeTable.clear();
         //routeResolver = null;
 
         if (LOG.isEnabledFor(Level.INFO)) {
@@ -829,6 +819,9 @@ public class EndpointRouter implements EndpointListener,
      * Peer Routing Protocol to try to discover one.  We will
      * wait up to 30 seconds for a route to be discovered.
      *
+     * <p/>Only one thread at a time searches for a route to a given
+     * destination; the others wait for its result.
+     *
      * @param dest the peer we are trying to reach.
      * @param seekRoute whether to go as far as issuing a route query, or just fish in our cache.
      * when forwarding a message we allow ourselves to mend a broken source-issued route but we
@@ -846,12 +839,96 @@ public class EndpointRouter implements EndpointListener,
 
     EndpointAddress getGatewayAddress(EndpointAddress dest, boolean seekRoute, Object hint) {
 
+        // Searches which only look at what we know or which are driven by a
+        // hint are not shared.
+        if (!seekRoute || (hint != null)) {
+            return findGatewayAddress(dest, seekRoute, hint);
+        }
+
+        EndpointAddress pId = new EndpointAddress(dest, null, null);
+        RouteResolution resolution = new RouteResolution(pId);
+        RouteResolution pending = routeTable.putResolutionIfAbsent(pId, resolution);
+
+        if (pending == null) {
+            return resolve(pId, resolution);
+        }
+
+        if (pending.isResolver()) {
+            // We are re-entering from the search for this very destination
+            // (the route query may have to go there). Do not wait for
+            // ourself.
+            return findGatewayAddress(pId, true, null);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Joining route resolution in progress for " + pId);
+        }
+
+        return pending.waitFor(MAXFINDROUTE_TIMEOUT);
+    }
+
+    /**
+     *  Searches for the gateway address of the destination on one of the
+     *  resolver threads and tells the listener about the outcome. Concurrent
+     *  searches for the same destination without a hint share a single
+     *  resolution.
+     *
+     *  @param dest the peer we are trying to reach.
+     *  @param hint the route hint, or <code>null</code>. A search driven by a
+     *  hint is not shared, as with the blocking search.
+     *  @param listener the listener to tell about the outcome.
+     */
+    void getGatewayAddress(EndpointAddress dest, Object hint, RouteResolution.Listener listener) {
+
+        final EndpointAddress pId = new EndpointAddress(dest, null, null);
+        final RouteResolution resolution = new RouteResolution(pId, hint);
+
+        if (hint == null) {
+            RouteResolution pending = routeTable.putResolutionIfAbsent(pId, resolution);
+
+            if (pending != null) {
+                pending.addListener(listener);
+                return;
+            }
+        }
+
+        resolution.addListener(listener);
+
         try {
-            EndpointAddress pId = new EndpointAddress(dest, null, null);
+            resolvers.execute(new Runnable() {
+                public void run() {
+                    resolve(pId, resolution);
+                }
+            });
+        } catch (RejectedExecutionException stopped) {
+            // The router is stopping. Release the listeners.
+            routeTable.removeResolution(pId, resolution);
+            resolution.complete(null);
+        }
+    }
+
+    /**
+     *  Performs the search registered as the resolution for the destination
+     *  and releases those waiting for it.
+     */
+    private EndpointAddress resolve(EndpointAddress pId, RouteResolution resolution) {
+        EndpointAddress gateway = null;
 
-            // FIXME: jice@jxta.org - 20021215 replace that junk with a background
-            // task; separate the timings of route disco from the timeouts of
-            // the requesting threads. EndpointAddress result = null;
+        resolution.startResolving();
+        try {
+            gateway = findGatewayAddress(pId, true, resolution.getHint());
+        } finally {
+            routeTable.removeResolution(pId, resolution);
+            resolution.complete(gateway);
+        }
+
+        return gateway;
+    }
+
+    private EndpointAddress findGatewayAddress(EndpointAddress dest, boolean seekRoute, Object hint) {
+
+        try {
+            EndpointAddress pId = new EndpointAddress(dest, null, null);
 
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Searching local" + (seekRoute ? " & remote" : "") + " for route for " + pId);
@@ -878,20 +955,22 @@ public class EndpointRouter implements EndpointListener,
 
                 // Otherwise, look for a long route.
                 // check if we got a hint. If that's the case use it
-                RouteAdvertisement route = null;
+                RouteTable.Route route = null;
 
                 if (hint != null) {
-                    route = (RouteAdvertisement) hint;
+                    if (((RouteAdvertisement) hint).size() > 0) {
+                        route = new RouteTable.Route((RouteAdvertisement) hint);
+                    }
                 } else {
-                    route = getRoute(pId, seekRoute);
+                    route = routeTable.getRoute(pId);
                 }
 
-                if (route != null && route.size() > 0) {
+                if (route != null && route.adv.size() > 0) {
 
-                    addr = pid2addr(route.getLastHop().getPeerID());
+                    addr = route.lastHop;
                     if (ensureLocalRoute(addr, null) != null) {
                         if (LOG.isEnabledFor(Level.DEBUG)) {
-                            LOG.debug("Found last hop remote address: " + pId + " -> " + route.getLastHop().getPeerID());
+                            LOG.debug("Found last hop remote address: " + pId + " -> " + addr);
                         }
 
                         // Ensure local route removes negative cache info about
@@ -899,11 +978,11 @@ public class EndpointRouter implements EndpointListener,
                         return addr;
 
                     } else { // need to try the first hop
-                        addr = pid2addr(route.getFirstHop().getPeerID());
+                        addr = route.firstHop;
 
                         if (ensureLocalRoute(addr, null) != null) {
                             if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("Found first hop remote address first hop: " + pId + " -> " + route.getFirstHop().getPeerID());
+                                LOG.debug("Found first hop remote address first hop: " + pId + " -> " + addr);
                             }
 
                             // Ensure local route removes negative cache info about
@@ -941,9 +1020,9 @@ public class EndpointRouter implements EndpointListener,
                 // we failed, or we waited at least ASYNC_MESSENGER_WAIT to get
                 // a chance for the async request to respond before we can
                 // issue the route discovery
-                Long nextTry = (Long) triedAndFailed.get(pId);
+                long nextTry = routeTable.getRetryTime(pId);
 
-                if ((nextTry == null) || (nextTry.longValue() < TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY))
+                if ((nextTry == 0) || (nextTry < TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY))
                     || (TimeUtils.toRelativeTimeMillis(findRouteAt) <= 0)) {
 
                     // If it is already hopeless (negative cache), just give up.
@@ -964,20 +1043,27 @@ public class EndpointRouter implements EndpointListener,
                     boolean doFind = false;
                     ClearPendingQuery t = null;
 
-                    synchronized (this) {
-                        t = (ClearPendingQuery) pendingQueries.get(pId);
+                    t = routeTable.getPendingQuery(pId);
 
+                    if (t == null) {
+                        ClearPendingQuery query = new ClearPendingQuery(pId);
+
+                        t = routeTable.putPendingQueryIfAbsent(pId, query);
                         if (t == null) {
                             doFind = true;
-                            t = new ClearPendingQuery(pId);
-                            pendingQueries.put(pId, t);
+                            t = query;
                         } else {
-                            if (t.isFailed()) {
-                                break;
-                            }
-                            if (t.isTimeToRetry()) {
-                                doFind = true;
-                            }
+                            // Lost the race; the other thread's query stands.
+                            query.cancel();
+                        }
+                    }
+
+                    if (!doFind) {
+                        if (t.isFailed()) {
+                            break;
+                        }
+                        if (t.isTimeToRetry()) {
+                            doFind = true;
                         }
                     }
 
@@ -1114,13 +1200,7 @@ public class EndpointRouter implements EndpointListener,
         // look at the value only in the hope it is less expensive
         // than doing a redundant put.
 
-        synchronized (this) {
-            Long curr = (Long) triedAndFailed.get(logDest);
-
-            if (curr != null && curr.longValue() > TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)) {
-                triedAndFailed.put(logDest, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
-            }
-        }
+        routeTable.shortenRetryTime(logDest, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
     }
 
     /**
@@ -1158,16 +1238,9 @@ public class EndpointRouter implements EndpointListener,
     protected RouteAdvertisement getRoute(EndpointAddress pId, boolean seekRoute) {
 
         // check if we have a valid route
-        RouteAdvertisement route = null;
-
-        synchronized (this) {
-            route = (RouteAdvertisement) routedRoutes.get(pId);
-        }
+        RouteTable.Route route = routeTable.getRoute(pId);
 
-        if (route != null || !seekRoute) { // done
-            return route;
-        }
-        return null;
+        return (route == null) ? null : route.adv;
     }
 
     // Check if a route is valid.
@@ -1270,7 +1343,7 @@ public class EndpointRouter implements EndpointListener,
                 if (!force) {
                     // check if we have some bad NACK route info for
                     // this destination
-                    BadRoute badRoute = (BadRoute) badRoutes.get(pidAddr);
+                    BadRoute badRoute = routeTable.getBadRoute(pidAddr);
 
                     if (badRoute != null) {
                         Long nextTry = badRoute.getExpiration();
@@ -1290,12 +1363,12 @@ public class EndpointRouter implements EndpointListener,
                                 return false;
                             }
                         } else { // expired info, just flush NACK route cache
-                            badRoutes.remove(pidAddr);
+                            routeTable.setBadRoute(pidAddr, null);
                         }
                     }
                 } else {
                     // we get a new route
-                    badRoutes.remove(pidAddr);
+                    routeTable.setBadRoute(pidAddr, null);
                 }
 
                 // Check if the route makes senses (loop detection)
@@ -1335,26 +1408,22 @@ public class EndpointRouter implements EndpointListener,
                 // that this peer has a route is more important that the precise
                 // route information
 
-                // SRDI is run only if the peer is acting as a rendezvous
-                if (group.isRendezvous()) {
-                    if (!routedRoutes.containsKey(pidAddr)) {
-                        if (LOG.isEnabledFor(Level.DEBUG)) {
-                            LOG.debug("push new SRDI route " + pid);
-                        }
-                        pushNeeded = true;
-                    }
-                }
-
                 // Remove any endpoint addresses from the route
                 // as part of the cloning. We just keep track
                 // of PIDs in our route table
                 RouteAdvertisement newRoute = (RouteAdvertisement) r.cloneOnlyPIDs();
 
-                routedRoutes.put(pidAddr, newRoute);
-
-                // We can get rid of any negative info we had. We have
+                // This also gets rid of any negative info we had. We have
                 // a new and different route.
-                badRoutes.remove(pidAddr);
+                boolean isNew = routeTable.putRoute(pidAddr, newRoute);
+
+                // SRDI is run only if the peer is acting as a rendezvous
+                if (isNew && group.isRendezvous()) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("push new SRDI route " + pid);
+                    }
+                    pushNeeded = true;
+                }
 
                 notifyAll(); // Wakeup those waiting for a route.
 
@@ -1377,19 +1446,15 @@ public class EndpointRouter implements EndpointListener,
      */
     protected void removeRoute(EndpointAddress pId) {
 
-        boolean needRemove;
+        boolean needRemove = false;
 
-        synchronized (this) {
-            needRemove = false;
-            if (routedRoutes.containsKey(pId)) {
-                if (group.isRendezvous()) {
-                    // Remove the SRDI cache entry from the SRDI cache
-                    needRemove = true;
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("remove SRDI route " + pId);
-                    }
+        if (routeTable.removeRoute(pId)) {
+            if (group.isRendezvous()) {
+                // Remove the SRDI cache entry from the SRDI cache
+                needRemove = true;
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("remove SRDI route " + pId);
                 }
-                routedRoutes.remove(pId);
             }
         }
     }
@@ -1441,11 +1506,17 @@ public class EndpointRouter implements EndpointListener,
 
             // convert the src and dest addresses into canonical
             // form stripping service info
-            srcPeer = new EndpointAddress(origSrcAddr, null, null);
-            destPeer = new EndpointAddress(origDstAddr, null, null);
+            srcPeer = new EndpointAddress(origSrcAddr, null, null).intern();
+            destPeer = new EndpointAddress(origDstAddr, null, null).intern();
 
             if (routerMsg.getLastHop() != null) {
-                lastHop = new EndpointAddress(routerMsg.getLastHop());
+                lastHop = new EndpointAddress(routerMsg.getLastHop()).intern();
+
+                if (routerMsg.isBinaryCapable()) {
+                    addBinaryPeer(lastHop);
+                } else {
+                    binaryPeers.remove(lastHop);
+                }
             }
 
             // See if there's an originator full route adv inthere.
@@ -1635,12 +1706,12 @@ public class EndpointRouter implements EndpointListener,
                 // check if we have route to the src and use it as
                 // our reverse route. We could do more. But let's keep
                 // it to the minimum at this point.
-                RouteAdvertisement newReverseRoute = (RouteAdvertisement) routedRoutes.get(srcPeer);
+                RouteTable.Route newReverseRoute = routeTable.getRoute(srcPeer);
 
                 if (newReverseRoute != null) {
                     // we found a new route back from our cache so let's use it
                     reverseHops = (Vector)
-                                  newReverseRoute.getVectorHops().clone();
+                                  newReverseRoute.adv.getVectorHops().clone();
 
                     // ok add ourselve to the reverse route
                     reverseHops.add(0, selfAp);
@@ -1716,14 +1787,14 @@ public class EndpointRouter implements EndpointListener,
                     // we'd want to get rid of all routes that start from there
                     // but that's one more map to maintain.
 
-                    RouteAdvertisement route = getRoute(destPeer, false);
+                    RouteTable.Route route = routeTable.getRoute(destPeer);
 
                     if (route == null) {
                         cantRoute("No new route to repair the route - drop message", null, origSrcAddr, destPeer, origHops);
                         return;
                     }
 
-                    if (pid2addr(route.getFirstHop().getPeerID()).equals(nextHop)) {
+                    if (route.firstHop.equals(nextHop)) {
                         // Our own route is just as rotten as the sender's. Get rid
                         // of it.
                         removeRoute(destPeer);
@@ -1733,7 +1804,7 @@ public class EndpointRouter implements EndpointListener,
 
                     // optimization to see if we can reach
                     // directly the last hop of that route
-                    EndpointAddress addr = pid2addr(route.getLastHop().getPeerID());
+                    EndpointAddress addr = route.lastHop;
 
                     if (isLocalRoute(addr)) {
 
@@ -1754,14 +1825,15 @@ public class EndpointRouter implements EndpointListener,
 
                     } else { // need to check the first hop
 
-                        Vector newHops = (Vector) route.getVectorHops().clone();
+                        Vector newHops = (Vector) route.adv.getVectorHops().clone();
 
                         // FIXME: remove(0) seems wrong
                         // There could be a need for us receiving a NACK and that won't be
                         // possible. We should leave the next hop in the fw path. Just like
                         // we do when forwarding along the existing route.
 
-                        addr = pid2addr(((AccessPointAdvertisement) newHops.remove(0)).getPeerID());
+                        newHops.remove(0);
+                        addr = route.firstHop;
 
                         if (!isLocalRoute(addr)) {
                             // Our own route is provably rotten
@@ -1803,7 +1875,7 @@ public class EndpointRouter implements EndpointListener,
 
             // We always modify the router message within the message
             routerMsg.setLastHop(localPeerAddr.toString());
-            routerMsg.updateMessage();
+            routerMsg.updateMessage(binaryPeers.contains(nextHop));
 
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Trying to forward to " + nextHop);
@@ -1835,6 +1907,26 @@ public class EndpointRouter implements EndpointListener,
 
     }
 
+    /**
+     * Remembers that a peer understands the binary encoding of the router
+     * message.
+     *
+     * @param peer the pid address of the peer.
+     */
+    private void addBinaryPeer(EndpointAddress peer) {
+        if (binaryPeers.contains(peer)) {
+            return;
+        }
+
+        synchronized (binaryPeers) {
+            if (binaryPeers.size() >= MAX_BINARY_PEERS) {
+                // Forget them all; they will tell us again.
+                binaryPeers.clear();
+            }
+            binaryPeers.add(peer);
+        }
+    }
+
     /**
      * Return the address of the next hop in this vector
      *
@@ -2018,9 +2110,7 @@ public class EndpointRouter implements EndpointListener,
                     // failed as it currently holds an infinite timeout to permit
                     // another thread to retry that destination. We only retry
                     // every MAXASYNC_GETMESSENGER_RETRY seconds
-                    synchronized (this) {
-                        triedAndFailed.put(dest, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
-                    }
+                    routeTable.setRetryTime(dest, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
                     continue;
                 }
 
@@ -2033,7 +2123,7 @@ public class EndpointRouter implements EndpointListener,
                 // this test is not entirely accurate. We might still decide
                 // to wait when we shouldn't (we're no worse than before, then)
                 // But, in most cases, this is going to help.
-                boolean quick = (getRoute(dest, false) != null);
+                boolean quick = routeTable.hasRoute(dest);
 
                 messenger = getMessengerListener.waitForMessenger(quick);
                 if (messenger == null) {
@@ -2048,8 +2138,8 @@ public class EndpointRouter implements EndpointListener,
 
                     // Success we got a messenger synchronously. Remove
                     // the negative cache entry.
+                    routeTable.clearRetryTime(dest, Long.MAX_VALUE);
                     synchronized (this) {
-                        triedAndFailed.remove(dest);
                         notifyAll();
                     }
 
@@ -2081,23 +2171,14 @@ public class EndpointRouter implements EndpointListener,
         // findEndpoint is really lazy because what it does is expensive.
         // When needed, the negative info that prevents its from working
         // too much is removed. (see calls to ensureLocalRoute).
-        synchronized (this) {
-            Long nextTry = (Long) triedAndFailed.get(destPeer);
-
-            if (nextTry != null) {
-                if (nextTry.longValue() > TimeUtils.timeNow()) {
-                    return null;
-                }
-            }
-            // We are the first thread trying this destination.
-            // Let's preclude any other threads from attempting to do
-            // anything while we are trying that destination. Other
-            // threads will have a chance if they are still waiting
-            // when this thread is done. We will update triedAndFailed
-            // when we get the async notification that we got or we
-            // failed to get a messenger.
-            triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE)));
-
+        // If we are the first thread trying this destination, preclude any
+        // other threads from attempting to do anything while we are trying
+        // that destination. Other threads will have a chance if they are
+        // still waiting when this thread is done. We will update the retry
+        // time when we get the async notification that we got or we failed
+        // to get a messenger.
+        if (!routeTable.startAttempt(destPeer, TimeUtils.timeNow(), TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE))) {
+            return null;
         }
 
         // Never tried or it was a long time ago.
@@ -2153,15 +2234,11 @@ public class EndpointRouter implements EndpointListener,
             // There is a small chance that another thread did find
             // something in parallel, but that's very unlikely and
             // if it is rare enough then the damage is small.
-            synchronized (this) {
-                triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
-            }
+            routeTable.setRetryTime(destPeer, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
         } catch (Throwable e) {
             // If something weird happened be conservative and set a standard
             // finite timeout.
-            synchronized (this) {
-                triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
-            }
+            routeTable.setRetryTime(destPeer, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("error looking for an address ", e);
             }
@@ -2227,7 +2304,7 @@ public class EndpointRouter implements EndpointListener,
                     // as a destination.
                     // we only need to publish this route if
                     // we don't know about it yet.
-                    if (!(isLocalRoute(firstHopAddr) || routedRoutes.containsKey(firstHopAddr))) {
+                    if (!(isLocalRoute(firstHopAddr) || routeTable.hasRoute(firstHopAddr))) {
 
                         routeFirstHop = (RouteAdvertisement)
                                         AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
@@ -2285,8 +2362,8 @@ public class EndpointRouter implements EndpointListener,
     /**
      * Updates the router element of a message and returns the pid address of the next
      * hop (where to send the message).
-     * Currently, address message is only called for messages that we originate. As a result
-     * we will always agressively seek a route if needed.
+     * Currently, address message is only called for messages that we originate. It only
+     * uses the routes we know; the caller seeks a route in the background if needed.
      * @param message the message for which to compute/update a route.
      * @param destAddress the final destination of the route which the message be set to follow.
      * @return EndpointAddress The address (logical) where to send the message next. Null if there
@@ -2328,7 +2405,9 @@ public class EndpointRouter implements EndpointListener,
         try {
             RouteAdvertisement route = null;
 
-            theGatewayAddress = getGatewayAddress(dstAddress, true);
+            // Only use what we know. The RouterMessenger resolves missing
+            // routes in the background, it must never block here.
+            theGatewayAddress = getGatewayAddress(dstAddress, false);
 
             if (theGatewayAddress == null) {
                 // Cleanup the message, so that the invoker
@@ -2355,8 +2434,7 @@ public class EndpointRouter implements EndpointListener,
             // If we're going through a route for that, stuff it in the
             // message. NB: setForwardHops does not clone.
             if (route != null) {
-                routerMsg.setForwardHops((Vector)
-                                         route.getVectorHops().clone());
+                routerMsg.setForwardRoute(route);
             }
 
             // set the last hop info to point to the local peer info
@@ -2370,11 +2448,9 @@ public class EndpointRouter implements EndpointListener,
             RouteAdvertisement myRoute = getMyLocalRoute();
 
             if (myRoute != null) {
-                // FIXME - jice@jxta.org 20040430 : use destinations instead of newDestinations, even for routed ones.
-                boolean newDest = newDestinations.remove(dstAddressPlain);
                 boolean newGatw = destinations.isWelcomeNeeded(theGatewayAddress);
 
-                if (newDest || newGatw) {
+                if (newGatw) {
                     routerMsg.setRouteAdv(myRoute);
                 }
             }
@@ -2382,7 +2458,7 @@ public class EndpointRouter implements EndpointListener,
             // Push the router header onto the message.
             // That's all we have to do for now.
 
-            routerMsg.updateMessage();
+            routerMsg.updateMessage(binaryPeers.contains(theGatewayAddress));
 
         } catch (Exception ez1) {
             // Not much we can do
@@ -2433,10 +2509,11 @@ public class EndpointRouter implements EndpointListener,
     }
 
     /**
-     * convert a PeerID into an EndpointRouter Address
+     * convert a PeerID into an EndpointRouter Address. The result is interned
+     * and therefore unmodifiable.
      */
     protected static EndpointAddress pid2addr(PeerID pid) {
-        return new EndpointAddress(routerPName, pid.getUniqueValue().toString(), null, null);
+        return new EndpointAddress(routerPName, pid.getUniqueValue().toString(), null, null).intern();
     }
 
     /**
@@ -2456,17 +2533,12 @@ public class EndpointRouter implements EndpointListener,
                     LOG.debug("Route for " + pID + " is same as existing route, not publishing it");
                 }
                 if (force) {
-                    synchronized (this) {
-                        Long nextTry = (Long) triedAndFailed.get(pid2addr(pID));
-
-                        if (nextTry != null) {
-                            // only remove if we do not have a pending request (infinite retry)
-                            // we take the conservative approach to avoid creating multiple
-                            // async thread blocked on the same destination
-                            if (nextTry.longValue() <= TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)) {
-                                triedAndFailed.remove(pid2addr(pID));
-                                notifyAll();
-                            }
+                    // only remove if we do not have a pending request (infinite retry)
+                    // we take the conservative approach to avoid creating multiple
+                    // async thread blocked on the same destination
+                    if (routeTable.clearRetryTime(pid2addr(pID), TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY))) {
+                        synchronized (this) {
+                            notifyAll();
                         }
                     }
                 }
@@ -2484,8 +2556,8 @@ public class EndpointRouter implements EndpointListener,
      *
      * @return true or false
      */
-    protected synchronized boolean isPendingRouteQuery(EndpointAddress addr) {
-        return pendingQueries.containsKey(addr);
+    protected boolean isPendingRouteQuery(EndpointAddress addr) {
+        return routeTable.getPendingQuery(addr) != null;
     }
 
     /**
@@ -2495,8 +2567,8 @@ public class EndpointRouter implements EndpointListener,
      *
      * @return pending route query info
      */
-    protected synchronized ClearPendingQuery getPendingRouteQuery(EndpointAddress addr) {
-        return (ClearPendingQuery) pendingQueries.get(addr);
+    protected ClearPendingQuery getPendingRouteQuery(EndpointAddress addr) {
+        return routeTable.getPendingQuery(addr);
     }
 
     /**
@@ -2507,7 +2579,7 @@ public class EndpointRouter implements EndpointListener,
      * @return true or false
      */
     protected boolean isRoutedRoute(EndpointAddress addr) {
-        return routedRoutes.containsKey(addr);
+        return routeTable.hasRoute(addr);
     }
 
     /**
@@ -2536,7 +2608,7 @@ public class EndpointRouter implements EndpointListener,
      * @return Iterator iterations of all routed route destinations
      */
     protected Iterator getRoutedRouteAllDestinations() {
-        return routedRoutes.entrySet().iterator();
+        return routeTable.getRoutes().entrySet().iterator();
     }
 
     /**
@@ -2544,9 +2616,8 @@ public class EndpointRouter implements EndpointListener,
      *
      * @return Iterator iterations of all routed route addresses
      */
-    protected synchronized Iterator getAllRoutedRouteAddresses() {
-        // XXX 20041107 bondolo Being synchronized does not make this itertor safe.
-        return routedRoutes.keySet().iterator();
+    protected Iterator getAllRoutedRouteAddresses() {
+        return routeTable.getRoutes().keySet().iterator();
     }
 
     /**
@@ -2555,7 +2626,7 @@ public class EndpointRouter implements EndpointListener,
      * @return Iterator iterations of all pending route query destinations
      */
     protected Iterator getPendingQueriesAllDestinations() {
-        return pendingQueries.entrySet().iterator();
+        return routeTable.getPendingQueries().entrySet().iterator();
     }
 
     /**
@@ -2572,8 +2643,8 @@ public class EndpointRouter implements EndpointListener,
      * @param addr of the bad route
      * @param badRoute bad route info
      */
-    protected synchronized void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
-        badRoutes.put(addr, badRoute);
+    protected void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
+        routeTable.setBadRoute(addr, badRoute);
     }
 
     /**
@@ -2582,7 +2653,7 @@ public class EndpointRouter implements EndpointListener,
      * @param addr of the bad route
      * @return BadRoute bad route info
      */
-    protected synchronized BadRoute  getBadRoute(EndpointAddress addr) {
-        return (BadRoute) badRoutes.get(addr);
+    protected BadRoute getBadRoute(EndpointAddress addr) {
+        return routeTable.getBadRoute(addr);
     }
 }
@@ -58,12 +58,20 @@
 package net.jxta.impl.endpoint.router;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Vector;
 import java.util.Enumeration;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
+import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
@@ -76,7 +84,10 @@ import net.jxta.document.Element;
 import net.jxta.document.TextElement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Attributable;
+import net.jxta.document.Attribute;
 import net.jxta.document.MimeMediaType;
+import net.jxta.id.IDFactory;
+import net.jxta.peer.PeerID;
 import net.jxta.protocol.AccessPointAdvertisement;
 import net.jxta.protocol.RouteAdvertisement;
 
@@ -84,6 +95,12 @@ import net.jxta.protocol.RouteAdvertisement;
 /**
  * Message element Router. This element is added to every
  * message to carry route information for the EndpointRouter service
+ *
+ * <p/>The element is either an XML document or, between peers which both
+ * understand it, a compact binary encoding identified by {@link #BINARY_MIME}.
+ * A peer declares that it understands the binary encoding by setting the
+ * {@link #BinaryAttr} attribute on the XML documents it sends. Since every
+ * hop rewrites the element, the declaration always comes from the last hop.
  */
 
 public class EndpointRouterMessage {
@@ -102,6 +119,24 @@ public class EndpointRouterMessage {
     public static final String LastHopTag = "Last";
     public static final String GatewayForwardTag = "Fwd";
     public static final String GatewayReverseTag = "Rvs";
+    public static final String BinaryAttr = "Bin";
+
+    /**
+     *  The mime type of the binary encoding of the element.
+     */
+    public static final MimeMediaType BINARY_MIME = new MimeMediaType("application/x-jxta-erm").intern();
+
+    /**
+     *  The version of the binary encoding we produce.
+     */
+    public static final int BINARY_VERSION = 1;
+
+    private static final int HAS_SRC = 0x01;
+    private static final int HAS_DEST = 0x02;
+    private static final int HAS_LAST = 0x04;
+    private static final int HAS_FWD = 0x08;
+    private static final int HAS_RVS = 0x10;
+    private static final int HAS_RADV = 0x20;
     
     private String srcAddress = null; // PeerID-based EndpointAddress
     private String destAddress = null; // PeerID-based EndpointAddress
@@ -112,6 +147,19 @@ public class EndpointRouterMessage {
     private Vector reverseCache = null;
     private RouteAdvertisement radv = null;
 
+    // The cached encodings of the route the forward hops were taken from,
+    // if they were set from one.
+    private RouteEncoding forwardEncoding = null;
+
+    // The cached encodings of radv if it is one of ours.
+    private RouteEncoding radvEncoding = null;
+
+    // The original element of radv if it was received in an XML element.
+    private Element radvCache = null;
+
+    // True if the last hop declared that it understands the binary encoding.
+    private boolean binaryCapable = false;
+
     // A flag that represents the existence of data.  Which is
     // different from all fields being empty.
     private boolean rmExists = false;
@@ -156,8 +204,24 @@ public class EndpointRouterMessage {
                 return;
             }
 
+            if (BINARY_MIME.equals(rmElem.getMimeType())) {
+                readBinary(rmElem.getBytes(false));
+
+                // All parsed ok, we're in sync.
+                binaryCapable = true;
+                rmExists = true;
+                rmDirty = false;
+                return;
+            }
+
             StructuredTextDocument doc = (StructuredTextDocument) StructuredDocumentFactory.newStructuredDocument(rmElem.getMimeType(),
                     rmElem.getStream());
+
+            if (doc instanceof Attributable) {
+                Attribute bin = ((Attributable) doc).getAttribute(BinaryAttr);
+
+                binaryCapable = (null != bin) && Integer.toString(BINARY_VERSION).equals(bin.getValue());
+            }
         
             Enumeration each = null;
             TextElement e = null;
@@ -228,6 +292,7 @@ public class EndpointRouterMessage {
                     if (e.getName().equals(RouteAdvertisement.getAdvertisementType())) {
                         radv = (RouteAdvertisement)
                                 AdvertisementFactory.newAdvertisement(e);
+                        radvCache = e; // Save the original element
                     }
                 } catch (Exception ee) {// keep going 
                 }
@@ -244,7 +309,31 @@ public class EndpointRouterMessage {
         }
     }
     
+    /**
+     *  Returns true if the peer which sent us this element declared that it
+     *  understands the binary encoding.
+     *
+     *  @return true if the last hop understands the binary encoding.
+     */
+    public boolean isBinaryCapable() {
+        return binaryCapable;
+    }
+
+    /**
+     *  Updates the message with the XML encoding of the element.
+     */
     public void updateMessage() {
+        updateMessage(false);
+    }
+
+    /**
+     *  Updates the message with the element.
+     *
+     *  @param binary if true then the binary encoding is used, otherwise the
+     *  XML encoding. The binary encoding must only be used if the next hop
+     *  understands it.
+     */
+    public void updateMessage(boolean binary) {
 
         if (!rmDirty) {
             return;
@@ -272,12 +361,21 @@ public class EndpointRouterMessage {
 
         // The element was either created or changed. Replace whatever
         // if anything was in the message
-        
+
+        if (binary) {
+            rmElem = new ByteArrayMessageElement(MESSAGE_NAME, BINARY_MIME, toBytes(), null);
+            message.replaceMessageElement(MESSAGE_NS, rmElem);
+
+            rmDirty = false;
+            return;
+        }
+
         StructuredTextDocument doc = (StructuredTextDocument)
                 StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, Name);
         
         if (doc instanceof Attributable) {
             ((Attributable) doc).addAttribute("xmlns:jxta", "http://jxta.org");
+            ((Attributable) doc).addAttribute(BinaryAttr, Integer.toString(BINARY_VERSION));
         }
         
         Element e = null;
@@ -301,6 +399,9 @@ public class EndpointRouterMessage {
 
         e = doc.createElement(GatewayForwardTag);
         doc.appendChild(e);
+        if ((forwardCache == null) && (forwardEncoding != null)) {
+            forwardCache = forwardEncoding.getHopDocuments();
+        }
         if ((forwardGateways != null) && (forwardGateways.size() > 0)) {
             if (forwardCache != null) {
                 for (int i = 0; i < forwardCache.size(); ++i) {
@@ -368,8 +469,15 @@ public class EndpointRouterMessage {
         
         if (radv != null) {
             try {
-                StructuredTextDocument radvDoc = (StructuredTextDocument)
-                        radv.getDocument(MimeMediaType.XMLUTF8);
+                Element radvDoc;
+
+                if (radvCache != null) {
+                    radvDoc = radvCache;
+                } else if (radvEncoding != null) {
+                    radvDoc = radvEncoding.getRouteDocument();
+                } else {
+                    radvDoc = (StructuredTextDocument) radv.getDocument(MimeMediaType.XMLUTF8);
+                }
 
                 StructuredDocumentUtils.copyElements(doc, doc, radvDoc);
             } catch (Exception e1) {
@@ -420,6 +528,22 @@ public class EndpointRouterMessage {
         rmDirty = true;
         forwardGateways = v;
         forwardCache = null;
+        forwardEncoding = null;
+    }
+
+    /**
+     *  Sets the forward hops to those of the given route. Unlike with {@link
+     *  #setForwardHops(Vector)} the encodings of the hops are cached with the
+     *  route and reused.
+     *
+     *  @param route the route.
+     */
+    public void setForwardRoute(RouteAdvertisement route) {
+        forwardEncoding = RouteEncoding.get(route);
+        forwardGateways = (Vector) route.getVectorHops().clone();
+        forwardCache = null;
+        rmExists = true;
+        rmDirty = true;
     }
     
     public Vector getForwardHops() {
@@ -485,6 +609,8 @@ public class EndpointRouterMessage {
         rmExists = true;
         rmDirty = true;
         this.radv = radv;
+        radvCache = null;
+        radvEncoding = (radv != null) ? RouteEncoding.get(radv) : null;
     }
     
     // Used only for debugging
@@ -543,9 +669,264 @@ public class EndpointRouterMessage {
             lastHop = null;
             forwardGateways = null;
             reverseGateways = null;
+            forwardCache = null;
+            reverseCache = null;
+            forwardEncoding = null;
             radv = null;
+            radvEncoding = null;
+            radvCache = null;
             rmExists = false;
         }
     }
-}
 
+    /**
+     *  Returns the binary encoding of the element.
+     *
+     *  @return the binary encoding of the element.
+     */
+    private byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        boolean hasFwd = (forwardGateways != null) && !forwardGateways.isEmpty();
+        boolean hasRvs = (reverseGateways != null) && !reverseGateways.isEmpty();
+
+        int flags = 0;
+
+        if (srcAddress != null) {
+            flags |= HAS_SRC;
+        }
+        if (destAddress != null) {
+            flags |= HAS_DEST;
+        }
+        if (lastHop != null) {
+            flags |= HAS_LAST;
+        }
+        if (hasFwd) {
+            flags |= HAS_FWD;
+        }
+        if (hasRvs) {
+            flags |= HAS_RVS;
+        }
+        if (radv != null) {
+            flags |= HAS_RADV;
+        }
+
+        try {
+            out.writeByte(BINARY_VERSION);
+            out.writeByte(flags);
+            if (srcAddress != null) {
+                out.writeUTF(srcAddress);
+            }
+            if (destAddress != null) {
+                out.writeUTF(destAddress);
+            }
+            if (lastHop != null) {
+                out.writeUTF(lastHop);
+            }
+            if (hasFwd) {
+                if (forwardEncoding != null) {
+                    out.write(forwardEncoding.getHopBytes());
+                } else {
+                    writeHops(out, forwardGateways);
+                }
+            }
+            if (hasRvs) {
+                writeHops(out, reverseGateways);
+            }
+            if (radv != null) {
+                if (radvEncoding != null) {
+                    out.write(radvEncoding.getRouteBytes());
+                } else {
+                    writeRoute(out, radv);
+                }
+            }
+            out.flush();
+        } catch (IOException never) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException("Could not encode router message");
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     *  Reads the binary encoding of the element.
+     *
+     *  @param buf the binary encoding.
+     *  @throws IOException if the encoding is invalid.
+     */
+    private void readBinary(byte[] buf) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+
+        int version = in.readUnsignedByte();
+
+        if (BINARY_VERSION != version) {
+            throw new IOException("Unsupported router message version : " + version);
+        }
+
+        int flags = in.readUnsignedByte();
+
+        if (0 != (flags & HAS_SRC)) {
+            srcAddress = in.readUTF();
+        }
+        if (0 != (flags & HAS_DEST)) {
+            destAddress = in.readUTF();
+        }
+        if (0 != (flags & HAS_LAST)) {
+            lastHop = in.readUTF();
+        }
+        if (0 != (flags & HAS_FWD)) {
+            forwardGateways = readHops(in);
+        }
+        if (0 != (flags & HAS_RVS)) {
+            reverseGateways = readHops(in);
+        }
+        if (0 != (flags & HAS_RADV)) {
+            radv = readRoute(in);
+        }
+    }
+
+    /**
+     *  Returns the binary encoding of a list of hops.
+     *
+     *  @param hops a Vector of {@link net.jxta.protocol.AccessPointAdvertisement}.
+     *  @return the binary encoding of the hops.
+     */
+    static byte[] encodeHops(Vector hops) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * hops.size() + 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            writeHops(out, hops);
+            out.flush();
+        } catch (IOException never) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException("Could not encode hops");
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     *  Returns the binary encoding of a route.
+     *
+     *  @param route the route.
+     *  @return the binary encoding of the route.
+     */
+    static byte[] encodeRoute(RouteAdvertisement route) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            writeRoute(out, route);
+            out.flush();
+        } catch (IOException never) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException("Could not encode route");
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeAccessPoint(DataOutputStream out, AccessPointAdvertisement ap) throws IOException {
+        PeerID pid = ap.getPeerID();
+
+        out.writeBoolean(pid != null);
+        if (pid != null) {
+            out.writeUTF(pid.toString());
+        }
+
+        Vector addresses = ap.getVectorEndpointAddresses();
+        int count = (addresses != null) ? addresses.size() : 0;
+
+        out.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+            out.writeUTF(addresses.elementAt(i).toString());
+        }
+    }
+
+    private static AccessPointAdvertisement readAccessPoint(DataInputStream in) throws IOException {
+        AccessPointAdvertisement ap = (AccessPointAdvertisement)
+                AdvertisementFactory.newAdvertisement(AccessPointAdvertisement.getAdvertisementType());
+
+        if (in.readBoolean()) {
+            ap.setPeerID(readPeerID(in));
+        }
+
+        int count = in.readUnsignedShort();
+        Vector addresses = new Vector(count);
+
+        for (int i = 0; i < count; ++i) {
+            addresses.addElement(in.readUTF());
+        }
+        ap.setEndpointAddresses(addresses);
+
+        return ap;
+    }
+
+    private static void writeHops(DataOutputStream out, Vector hops) throws IOException {
+        out.writeShort(hops.size());
+        for (int i = 0; i < hops.size(); ++i) {
+            writeAccessPoint(out, (AccessPointAdvertisement) hops.elementAt(i));
+        }
+    }
+
+    private static Vector readHops(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        Vector hops = new Vector(count);
+
+        for (int i = 0; i < count; ++i) {
+            hops.addElement(readAccessPoint(in));
+        }
+
+        return hops;
+    }
+
+    private static void writeRoute(DataOutputStream out, RouteAdvertisement route) throws IOException {
+        PeerID destPid = route.getDestPeerID();
+        AccessPointAdvertisement dest = route.getDest();
+
+        out.writeBoolean(destPid != null);
+        if (destPid != null) {
+            out.writeUTF(destPid.toString());
+        }
+        out.writeBoolean(dest != null);
+        if (dest != null) {
+            writeAccessPoint(out, dest);
+        }
+        writeHops(out, route.getVectorHops());
+    }
+
+    private static RouteAdvertisement readRoute(DataInputStream in) throws IOException {
+        RouteAdvertisement route = (RouteAdvertisement)
+                AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
+
+        PeerID destPid = null;
+
+        if (in.readBoolean()) {
+            destPid = readPeerID(in);
+        }
+        if (in.readBoolean()) {
+            route.setDest(readAccessPoint(in));
+        }
+        if (destPid != null) {
+            route.setDestPeerID(destPid);
+        }
+        route.setHops(readHops(in));
+
+        return route;
+    }
+
+    private static PeerID readPeerID(DataInputStream in) throws IOException {
+        String pid = in.readUTF();
+
+        try {
+            return (PeerID) IDFactory.fromURI(new URI(pid));
+        } catch (URISyntaxException badID) {
+            throw new IOException("Bad peer ID : " + pid);
+        } catch (ClassCastException notPeerID) {
+            throw new IOException("Not a peer ID : " + pid);
+        }
+    }
+}
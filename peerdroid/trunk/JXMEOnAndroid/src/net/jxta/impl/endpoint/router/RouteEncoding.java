@@ -0,0 +1,286 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredTextDocument;
+import net.jxta.protocol.AccessPointAdvertisement;
+import net.jxta.protocol.RouteAdvertisement;
+
+/**
+ *  The serialized forms of a route advertisement which the router puts in
+ *  the router messages of the messages it sends: the XML documents of its
+ *  hops and of the whole advertisement, and their binary encodings. The
+ *  router sends many messages along the same routes, so the encodings are
+ *  computed once per route and reused. <p/>
+ *
+ *  Encodings are cached by route advertisement identity. Route
+ *  advertisements are mutable, so each cached entry keeps a copy of the
+ *  route as it was when encoded and is discarded if the route has changed
+ *  since.
+ */
+final class RouteEncoding {
+
+    /**
+     *  The maximum number of routes for which we keep encodings. When there
+     *  are more the cache is simply emptied; the number of routes in use at
+     *  any one time is small.
+     */
+    private final static int MAX_ROUTES = 128;
+
+    /**
+     *  The cached encodings.
+     *
+     *  keys are {@link net.jxta.protocol.RouteAdvertisement} compared by
+     *  identity <p/>
+     *
+     *  values are {@link RouteEncoding}
+     */
+    private final static Map encodings = new IdentityHashMap();
+
+    /**
+     *  A copy of the route as it was when this entry was created.
+     */
+    private final RouteAdvertisement snapshot;
+
+    /**
+     *  The XML documents of the hops, lazily computed.
+     */
+    private Vector hopDocuments = null;
+
+    /**
+     *  The binary encoding of the hops, lazily computed.
+     */
+    private byte[] hopBytes = null;
+
+    /**
+     *  The XML document of the route, lazily computed.
+     */
+    private StructuredTextDocument routeDocument = null;
+
+    /**
+     *  The binary encoding of the route, lazily computed.
+     */
+    private byte[] routeBytes = null;
+
+    /**
+     *  Creates a new entry.
+     *
+     *  @param snapshot a private copy of the route.
+     */
+    private RouteEncoding(RouteAdvertisement snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     *  Returns the encodings of the given route.
+     *
+     *  @param route the route.
+     *  @return the encodings of the route.
+     */
+    static RouteEncoding get(RouteAdvertisement route) {
+        synchronized (encodings) {
+            RouteEncoding result = (RouteEncoding) encodings.get(route);
+
+            if ((null != result) && result.matches(route)) {
+                return result;
+            }
+
+            if (encodings.size() >= MAX_ROUTES) {
+                encodings.clear();
+            }
+
+            result = new RouteEncoding(copyRoute(route));
+            encodings.put(route, result);
+
+            return result;
+        }
+    }
+
+    /**
+     *  Returns true if the route still matches the copy we encoded.
+     *
+     *  @param route the route.
+     *  @return true if the route still matches the copy we encoded.
+     */
+    private boolean matches(RouteAdvertisement route) {
+        try {
+            if (!snapshot.equals(route)) {
+                return false;
+            }
+
+            if (null == snapshot.getDestPeerID()) {
+                return null == route.getDestPeerID();
+            }
+
+            return snapshot.getDestPeerID().equals(route.getDestPeerID());
+        } catch (RuntimeException malformed) {
+            // hops without peer ids and the like. Just don't cache.
+            return false;
+        }
+    }
+
+    /**
+     *  Returns the XML documents of the hops of the route. The result must
+     *  not be modified.
+     *
+     *  @return a Vector of {@link net.jxta.document.StructuredTextDocument}.
+     */
+    synchronized Vector getHopDocuments() {
+        if (null == hopDocuments) {
+            Vector docs = new Vector(snapshot.size());
+
+            for (int eachHop = 0; eachHop < snapshot.size(); eachHop++) {
+                AccessPointAdvertisement hop = snapshot.getHop(eachHop);
+
+                docs.addElement(hop.getDocument(MimeMediaType.XMLUTF8));
+            }
+            hopDocuments = docs;
+        }
+
+        return hopDocuments;
+    }
+
+    /**
+     *  Returns the binary encoding of the hops of the route. The result must
+     *  not be modified.
+     *
+     *  @return the binary encoding of the hops of the route.
+     */
+    synchronized byte[] getHopBytes() {
+        if (null == hopBytes) {
+            hopBytes = EndpointRouterMessage.encodeHops(snapshot.getVectorHops());
+        }
+
+        return hopBytes;
+    }
+
+    /**
+     *  Returns the XML document of the route. The result must not be
+     *  modified.
+     *
+     *  @return the XML document of the route.
+     */
+    synchronized StructuredTextDocument getRouteDocument() {
+        if (null == routeDocument) {
+            routeDocument = (StructuredTextDocument) snapshot.getDocument(MimeMediaType.XMLUTF8);
+        }
+
+        return routeDocument;
+    }
+
+    /**
+     *  Returns the binary encoding of the route. The result must not be
+     *  modified.
+     *
+     *  @return the binary encoding of the route.
+     */
+    synchronized byte[] getRouteBytes() {
+        if (null == routeBytes) {
+            routeBytes = EndpointRouterMessage.encodeRoute(snapshot);
+        }
+
+        return routeBytes;
+    }
+
+    /**
+     *  Makes a deep copy of an access point advertisement.
+     *
+     *  @param ap the access point.
+     *  @return the copy.
+     */
+    private static AccessPointAdvertisement copyAccessPoint(AccessPointAdvertisement ap) {
+        AccessPointAdvertisement copy = (AccessPointAdvertisement)
+                AdvertisementFactory.newAdvertisement(AccessPointAdvertisement.getAdvertisementType());
+
+        copy.setPeerID(ap.getPeerID());
+        if (null != ap.getVectorEndpointAddresses()) {
+            copy.setEndpointAddresses(new Vector(ap.getVectorEndpointAddresses()));
+        }
+
+        return copy;
+    }
+
+    /**
+     *  Makes a deep copy of a route advertisement.
+     *
+     *  @param route the route.
+     *  @return the copy.
+     */
+    private static RouteAdvertisement copyRoute(RouteAdvertisement route) {
+        RouteAdvertisement copy = (RouteAdvertisement)
+                AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
+
+        if (null != route.getDest()) {
+            copy.setDest(copyAccessPoint(route.getDest()));
+        }
+        copy.setDestPeerID(route.getDestPeerID());
+
+        Vector hops = route.getVectorHops();
+        Vector copyHops = new Vector(hops.size());
+
+        for (int eachHop = 0; eachHop < hops.size(); eachHop++) {
+            copyHops.addElement(copyAccessPoint((AccessPointAdvertisement) hops.elementAt(eachHop)));
+        }
+        copy.setHops(copyHops);
+
+        return copy;
+    }
+}
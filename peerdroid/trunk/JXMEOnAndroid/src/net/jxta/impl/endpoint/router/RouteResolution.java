@@ -0,0 +1,255 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.impl.util.TimeUtils;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  The single in-flight search for the gateway address of a destination.
+ *  The first thread looking for a route to a destination performs the
+ *  search while the other threads looking for the same destination wait for
+ *  its result or register a {@link Listener} to be told about it. When the
+ *  search completes, successfully or not, all of them are released at once.
+ */
+final class RouteResolution {
+
+    /**
+     *  Log4J Category
+     */
+    private static final Logger LOG = Logger.getLogger(RouteResolution.class.getName());
+
+    /**
+     *  Told about the outcome of a route resolution.
+     */
+    interface Listener {
+
+        /**
+         *  Called once the resolution has completed.
+         *
+         *  @param dest the destination.
+         *  @param gateway the address at which the destination is reachable
+         *  or <code>null</code> if no route was found.
+         */
+        void routeResolved(EndpointAddress dest, EndpointAddress gateway);
+    }
+
+    /**
+     *  The destination.
+     */
+    private final EndpointAddress dest;
+
+    /**
+     *  The route hint driving the search or <code>null</code>.
+     */
+    private final Object hint;
+
+    /**
+     *  The thread performing the search.
+     */
+    private volatile Thread resolver = null;
+
+    /**
+     *  The listeners to call upon completion.
+     */
+    private List listeners = new ArrayList(2);
+
+    private boolean done = false;
+
+    private EndpointAddress gateway = null;
+
+    /**
+     *  Constructor
+     *
+     *  @param dest the destination.
+     */
+    RouteResolution(EndpointAddress dest) {
+        this(dest, null);
+    }
+
+    /**
+     *  Constructor
+     *
+     *  @param dest the destination.
+     *  @param hint the route hint driving the search or <code>null</code>.
+     */
+    RouteResolution(EndpointAddress dest, Object hint) {
+        this.dest = dest;
+        this.hint = hint;
+    }
+
+    /**
+     *  Returns the route hint driving the search.
+     *
+     *  @return the hint or <code>null</code>.
+     */
+    Object getHint() {
+        return hint;
+    }
+
+    /**
+     *  Records that the current thread is performing the search.
+     */
+    void startResolving() {
+        resolver = Thread.currentThread();
+    }
+
+    /**
+     *  Returns true if the search is performed by the current thread. That
+     *  thread must not wait for itself if the search re-enters.
+     *
+     *  @return true if the search is performed by the current thread.
+     */
+    boolean isResolver() {
+        return Thread.currentThread() == resolver;
+    }
+
+    /**
+     *  Waits for the outcome of the search.
+     *
+     *  @param timeout the maximum time to wait in milliseconds.
+     *  @return the gateway address or <code>null</code> if no route was found
+     *  within the timeout.
+     */
+    synchronized EndpointAddress waitFor(long timeout) {
+        long quitAt = TimeUtils.toAbsoluteTimeMillis(timeout);
+
+        while (!done) {
+            long left = TimeUtils.toRelativeTimeMillis(quitAt);
+
+            if (left <= 0) {
+                break;
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+                break;
+            }
+        }
+
+        return gateway;
+    }
+
+    /**
+     *  Registers a listener. If the search has already completed the
+     *  listener is called immediately.
+     *
+     *  @param listener the listener.
+     */
+    void addListener(Listener listener) {
+        EndpointAddress result;
+
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+            result = gateway;
+        }
+
+        callListener(listener, result);
+    }
+
+    /**
+     *  Records the outcome of the search and releases everyone waiting for
+     *  it.
+     *
+     *  @param gateway the gateway address or <code>null</code> if no route was
+     *  found.
+     */
+    void complete(EndpointAddress gateway) {
+        List toCall;
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            this.gateway = gateway;
+            toCall = listeners;
+            listeners = null;
+            notifyAll();
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Route resolution for " + dest + (gateway == null ? " failed" : (" found " + gateway)) + ", releasing " + toCall.size() + " listener(s)");
+        }
+
+        Iterator eachListener = toCall.iterator();
+
+        while (eachListener.hasNext()) {
+            callListener((Listener) eachListener.next(), gateway);
+        }
+    }
+
+    private void callListener(Listener listener, EndpointAddress result) {
+        try {
+            listener.routeResolved(dest, result);
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Uncaught Throwable in listener for " + dest, all);
+            }
+        }
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.protocol.RouteAdvertisement;
+
+/**
+ *  The router's knowledge about destination peers, keyed by the peer
+ *  address as produced by {@link EndpointRouter#pid2addr}. For each
+ *  destination it holds: <p/>
+ *
+ *  <ul>
+ *      <li>the long route, as an immutable {@link Route} snapshot which
+ *      carries the addresses of its first and last hops.</li>
+ *      <li>the time before which no new messenger should be attempted
+ *      (formerly the triedAndFailed map).</li>
+ *      <li>the NACKed route ({@link BadRoute}).</li>
+ *      <li>the pending route query.</li>
+ *      <li>the route resolution in progress.</li>
+ *  </ul>
+ *
+ *  <p/>The table is split into shards, each guarded by its own monitor, so
+ *  that route lookups for outgoing messages do not contend with the
+ *  updates made while processing route responses. The fields of an entry
+ *  are only modified while holding its shard's monitor. The router's own
+ *  monitor is still used to wait for and to signal route changes.
+ */
+final class RouteTable {
+
+    /**
+     *  The number of shards. Must be a power of two.
+     */
+    private static final int SHARDS = 16;
+
+    /**
+     *  The minimum interval between two sweeps of a shard for stale entries.
+     */
+    private static final long SWEEP_INTERVAL = 30 * TimeUtils.ASECOND;
+
+    /**
+     *  A long route and the addresses derived from it. Instances are never
+     *  modified once built and the route advertisement they hold must not be
+     *  modified by their users.
+     */
+    static final class Route {
+
+        /**
+         *  The route, containing only peer ids.
+         */
+        final RouteAdvertisement adv;
+
+        /**
+         *  The address of the first hop.
+         */
+        final EndpointAddress firstHop;
+
+        /**
+         *  The address of the last hop.
+         */
+        final EndpointAddress lastHop;
+
+        Route(RouteAdvertisement adv) {
+            this.adv = adv;
+            firstHop = EndpointRouter.pid2addr(adv.getFirstHop().getPeerID());
+            lastHop = EndpointRouter.pid2addr(adv.getLastHop().getPeerID());
+        }
+    }
+
+    /**
+     *  Everything known about a destination.
+     */
+    private static final class Entry {
+
+        Route route = null;
+
+        /**
+         *  Absolute time before which we should not try to get a new
+         *  messenger or zero if there is no such restriction.
+         */
+        long retryAt = 0;
+
+        BadRoute badRoute = null;
+
+        EndpointRouter.ClearPendingQuery pending = null;
+
+        RouteResolution resolution = null;
+
+        boolean isEmpty() {
+            return (null == route) && (0 == retryAt) && (null == badRoute) && (null == pending) && (null == resolution);
+        }
+
+        /**
+         *  True if the entry holds nothing but a retry time and a NACKed
+         *  route which are both over.
+         */
+        boolean isStale(long now) {
+            return (null == route) && (null == pending) && (null == resolution) &&
+                   (retryAt <= now) &&
+                   ((null == badRoute) || (badRoute.getExpiration().longValue() <= now));
+        }
+    }
+
+    /**
+     *  The shards. Keys are {@link EndpointAddress}, values are
+     *  {@link Entry}.
+     */
+    private final Map[] shards = new Map[SHARDS];
+
+    /**
+     *  The absolute time of the last sweep of each shard. Guarded by the
+     *  shard's monitor.
+     */
+    private final long[] sweptAt = new long[SHARDS];
+
+    RouteTable() {
+        for (int each = 0; each < SHARDS; each++) {
+            shards[each] = new HashMap();
+        }
+    }
+
+    private Map shardFor(EndpointAddress dest) {
+        return shards[shardIndex(dest)];
+    }
+
+    private static int shardIndex(EndpointAddress dest) {
+        int hash = dest.hashCode();
+
+        hash ^= (hash >>> 16);
+        return (hash ^ (hash >>> 8)) & (SHARDS - 1);
+    }
+
+    /**
+     *  Returns the entry for the destination, creating it if needed. Must be
+     *  called with the shard's monitor held.
+     */
+    private static Entry entry(Map shard, EndpointAddress dest) {
+        Entry entry = (Entry) shard.get(dest);
+
+        if (null == entry) {
+            entry = new Entry();
+            shard.put(dest, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     *  Removes the entry if it no longer holds anything. Must be called with
+     *  the shard's monitor held.
+     */
+    private static void prune(Map shard, EndpointAddress dest, Entry entry) {
+        if (entry.isEmpty()) {
+            shard.remove(dest);
+        }
+    }
+
+    /**
+     *  Removes the stale entries of the shard, at most once per
+     *  {@link #SWEEP_INTERVAL}. Entries left with only a retry time or a
+     *  NACKed route are otherwise never removed once those are over. Must be
+     *  called with the shard's monitor held.
+     */
+    private void sweep(EndpointAddress dest, Map shard, long now) {
+        int index = shardIndex(dest);
+
+        if (TimeUtils.toRelativeTimeMillis(now, sweptAt[index]) < SWEEP_INTERVAL) {
+            return;
+        }
+        sweptAt[index] = now;
+
+        Iterator eachEntry = shard.values().iterator();
+
+        while (eachEntry.hasNext()) {
+            if (((Entry) eachEntry.next()).isStale(now)) {
+                eachEntry.remove();
+            }
+        }
+    }
+
+    /**
+     *  Returns the long route to the destination.
+     *
+     *  @param dest the destination.
+     *  @return the route or <code>null</code> if there is none.
+     */
+    Route getRoute(EndpointAddress dest) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            return (null == entry) ? null : entry.route;
+        }
+    }
+
+    /**
+     *  Returns true if there is a long route to the destination.
+     *
+     *  @param dest the destination.
+     *  @return true if there is a long route to the destination.
+     */
+    boolean hasRoute(EndpointAddress dest) {
+        return null != getRoute(dest);
+    }
+
+    /**
+     *  Sets the long route to the destination. Any NACKed route for the
+     *  destination is forgotten.
+     *
+     *  @param dest the destination.
+     *  @param route the route which must contain only peer ids and must
+     *  not be modified afterwards.
+     *  @return true if there was no long route to the destination.
+     */
+    boolean putRoute(EndpointAddress dest, RouteAdvertisement route) {
+        Route snapshot = new Route(route);
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = entry(shard, dest);
+            boolean isNew = (null == entry.route);
+
+            entry.route = snapshot;
+            entry.badRoute = null;
+
+            return isNew;
+        }
+    }
+
+    /**
+     *  Removes the long route to the destination.
+     *
+     *  @param dest the destination.
+     *  @return true if there was a long route to the destination.
+     */
+    boolean removeRoute(EndpointAddress dest) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            if ((null == entry) || (null == entry.route)) {
+                return false;
+            }
+
+            entry.route = null;
+            prune(shard, dest, entry);
+
+            return true;
+        }
+    }
+
+    /**
+     *  Returns a snapshot of the long routes.
+     *
+     *  @return a map of the destinations to their {@link RouteAdvertisement}.
+     */
+    Map getRoutes() {
+        Map result = new HashMap();
+
+        for (int each = 0; each < SHARDS; each++) {
+            Map shard = shards[each];
+
+            synchronized (shard) {
+                Iterator eachEntry = shard.entrySet().iterator();
+
+                while (eachEntry.hasNext()) {
+                    Map.Entry anEntry = (Map.Entry) eachEntry.next();
+                    Route route = ((Entry) anEntry.getValue()).route;
+
+                    if (null != route) {
+                        result.put(anEntry.getKey(), route.adv);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *  Returns the time before which no new messenger should be attempted
+     *  for the destination.
+     *
+     *  @param dest the destination.
+     *  @return the absolute time or zero if there is none.
+     */
+    long getRetryTime(EndpointAddress dest) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            return (null == entry) ? 0 : entry.retryAt;
+        }
+    }
+
+    /**
+     *  Sets the time before which no new messenger should be attempted for
+     *  the destination.
+     *
+     *  @param dest the destination.
+     *  @param retryAt the absolute time.
+     */
+    void setRetryTime(EndpointAddress dest, long retryAt) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            sweep(dest, shard, TimeUtils.timeNow());
+            entry(shard, dest).retryAt = retryAt;
+        }
+    }
+
+    /**
+     *  Atomically checks that a new messenger may be attempted for the
+     *  destination and, if so, prevents further attempts until the time
+     *  provided.
+     *
+     *  @param dest the destination.
+     *  @param now the current time.
+     *  @param retryAt the absolute time until which other attempts are
+     *  prevented.
+     *  @return true if the caller may attempt a new messenger.
+     */
+    boolean startAttempt(EndpointAddress dest, long now, long retryAt) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            sweep(dest, shard, now);
+
+            Entry entry = entry(shard, dest);
+
+            if ((0 != entry.retryAt) && (entry.retryAt > now)) {
+                return false;
+            }
+
+            entry.retryAt = retryAt;
+            return true;
+        }
+    }
+
+    /**
+     *  Brings the retry time for the destination forward to the time
+     *  provided if it is currently later.
+     *
+     *  @param dest the destination.
+     *  @param retryAt the absolute time.
+     */
+    void shortenRetryTime(EndpointAddress dest, long retryAt) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            if ((null != entry) && (entry.retryAt > retryAt)) {
+                entry.retryAt = retryAt;
+            }
+        }
+    }
+
+    /**
+     *  Forgets the retry time for the destination if it is not later than
+     *  the time provided.
+     *
+     *  @param dest the destination.
+     *  @param notAfter the latest retry time which will be forgotten.
+     *  @return true if there was such a retry time.
+     */
+    boolean clearRetryTime(EndpointAddress dest, long notAfter) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            if ((null == entry) || (0 == entry.retryAt) || (entry.retryAt > notAfter)) {
+                return false;
+            }
+
+            entry.retryAt = 0;
+            prune(shard, dest, entry);
+
+            return true;
+        }
+    }
+
+    /**
+     *  Returns the NACKed route for the destination.
+     *
+     *  @param dest the destination.
+     *  @return the bad route or <code>null</code> if there is none.
+     */
+    BadRoute getBadRoute(EndpointAddress dest) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            return (null == entry) ? null : entry.badRoute;
+        }
+    }
+
+    /**
+     *  Sets the NACKed route for the destination.
+     *
+     *  @param dest the destination.
+     *  @param badRoute the bad route or <code>null</code> to forget it.
+     */
+    void setBadRoute(EndpointAddress dest, BadRoute badRoute) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            sweep(dest, shard, TimeUtils.timeNow());
+
+            Entry entry = entry(shard, dest);
+
+            entry.badRoute = badRoute;
+            prune(shard, dest, entry);
+        }
+    }
+
+    /**
+     *  Returns the pending route query for the destination.
+     *
+     *  @param dest the destination.
+     *  @return the pending query or <code>null</code> if there is none.
+     */
+    EndpointRouter.ClearPendingQuery getPendingQuery(EndpointAddress dest) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            return (null == entry) ? null : entry.pending;
+        }
+    }
+
+    /**
+     *  Returns the pending route query for the destination, registering the
+     *  one provided if there is none.
+     *
+     *  @param dest the destination.
+     *  @param query the query to register if there is none.
+     *  @return the query which was already pending or <code>null</code> if
+     *  the query provided was registered.
+     */
+    EndpointRouter.ClearPendingQuery putPendingQueryIfAbsent(EndpointAddress dest, EndpointRouter.ClearPendingQuery query) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = entry(shard, dest);
+
+            if (null != entry.pending) {
+                return entry.pending;
+            }
+
+            entry.pending = query;
+            return null;
+        }
+    }
+
+    /**
+     *  Removes the pending route query for the destination if it is the one
+     *  provided.
+     *
+     *  @param dest the destination.
+     *  @param query the query.
+     */
+    void removePendingQuery(EndpointAddress dest, EndpointRouter.ClearPendingQuery query) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            if ((null != entry) && (query == entry.pending)) {
+                entry.pending = null;
+                prune(shard, dest, entry);
+            }
+        }
+    }
+
+    /**
+     *  Returns the route resolution in progress for the destination,
+     *  registering the one provided if there is none.
+     *
+     *  @param dest the destination.
+     *  @param resolution the resolution to register if there is none.
+     *  @return the resolution already in progress or <code>null</code> if
+     *  the resolution provided was registered.
+     */
+    RouteResolution putResolutionIfAbsent(EndpointAddress dest, RouteResolution resolution) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = entry(shard, dest);
+
+            if (null != entry.resolution) {
+                return entry.resolution;
+            }
+
+            entry.resolution = resolution;
+            return null;
+        }
+    }
+
+    /**
+     *  Removes the route resolution for the destination if it is the one
+     *  provided.
+     *
+     *  @param dest the destination.
+     *  @param resolution the resolution.
+     */
+    void removeResolution(EndpointAddress dest, RouteResolution resolution) {
+        Map shard = shardFor(dest);
+
+        synchronized (shard) {
+            Entry entry = (Entry) shard.get(dest);
+
+            if ((null != entry) && (resolution == entry.resolution)) {
+                entry.resolution = null;
+                prune(shard, dest, entry);
+            }
+        }
+    }
+
+    /**
+     *  Returns a snapshot of the pending route queries.
+     *
+     *  @return a map of the destinations to their pending query.
+     */
+    Map getPendingQueries() {
+        Map result = new HashMap();
+
+        for (int each = 0; each < SHARDS; each++) {
+            Map shard = shards[each];
+
+            synchronized (shard) {
+                Iterator eachEntry = shard.entrySet().iterator();
+
+                while (eachEntry.hasNext()) {
+                    Map.Entry anEntry = (Map.Entry) eachEntry.next();
+                    EndpointRouter.ClearPendingQuery pending = ((Entry) anEntry.getValue()).pending;
+
+                    if (null != pending) {
+                        result.put(anEntry.getKey(), pending);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *  Forgets everything.
+     */
+    void clear() {
+        for (int each = 0; each < SHARDS; each++) {
+            synchronized (shards[each]) {
+                shards[each].clear();
+            }
+        }
+    }
+}
@@ -59,12 +59,15 @@ package net.jxta.impl.endpoint.router;
 
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.LinkedList;
 
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.Message;
 import net.jxta.impl.endpoint.BlockingMessenger;
 import net.jxta.impl.endpoint.IllegalTransportLoopException;
+import net.jxta.impl.util.TimeUtils;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -74,14 +77,32 @@ import org.apache.log4j.Logger;
  *  Messenger for destinations which are logical peers.
  *  This messenger is used only at the origin of routes.
  *  Incoming messages that are being forwarded to another peer to not go through here.
+ *
+ *  <p/>When no route to the destination is known, the route is resolved in
+ *  the background. The messages sent meanwhile are held, up to
+ *  {@link #MAX_PENDING_MESSAGES} of them, and sent in order once the route
+ *  is found. Their senders wait for the outcome, so a message for which no
+ *  route is found fails like any other; the messenger then closes.
  */
-class RouterMessenger extends BlockingMessenger {
+class RouterMessenger extends BlockingMessenger implements RouteResolution.Listener {
     
     /**
      *  Log4J Category
      */
     private static final Logger LOG = Logger.getLogger(RouterMessenger.class.getName());
 
+    /**
+     *  The maximum number of messages held while the route is resolved.
+     *  Senders wait when it is reached.
+     */
+    private static final int MAX_PENDING_MESSAGES = 20;
+
+    /**
+     *  The longest a sender waits for its held message to be sent. Longer
+     *  than a route search may take.
+     */
+    private static final long MAX_HELD_WAIT = 2 * 60 * TimeUtils.ASECOND;
+
     /**
      *  The source address of messages sent on this messenger.
      */
@@ -92,6 +113,45 @@ class RouterMessenger extends BlockingMessenger {
      */
     protected EndpointRouter router = null;
 
+    /**
+     *  The route hint we were given or <code>null</code>. Drives all our
+     *  route searches.
+     */
+    private final Object hint;
+
+    /**
+     *  The messages waiting for the route resolution, oldest first.
+     *  Elements are {@link HeldMessage}.
+     */
+    private final LinkedList pending = new LinkedList();
+
+    /**
+     *  True while a route resolution is in progress or the messages which
+     *  waited for it are being sent. Guarded by pending.
+     */
+    private boolean resolving = false;
+
+    /**
+     *  True once closeImpl() was called. Guarded by pending.
+     */
+    private boolean closing = false;
+
+    /**
+     *  A message waiting for the route and, once done, the outcome of
+     *  sending it. Guarded by pending.
+     */
+    private static class HeldMessage {
+        final Message message;
+        final EndpointAddress dest;
+        boolean done = false;
+        Throwable failure = null;
+
+        HeldMessage(Message message, EndpointAddress dest) {
+            this.message = message;
+            this.dest = dest;
+        }
+    }
+
     /**
      * Constructor for a RouterMessenger.
      *
@@ -110,15 +170,18 @@ class RouterMessenger extends BlockingMessenger {
 
         this.srcAddress = (EndpointAddress) srcAddress.clone();
         this.router = r;
+        this.hint = hint;
         
         // Probably redundant. getGatewayAddress does it.
         EndpointAddress plainAddr = new EndpointAddress(dstAddress, null, null);
         
-        // We aggressively look for a route upfront. If it fails, we must refuse to create the messenger.
-        EndpointAddress gate = router.getGatewayAddress(plainAddr, true, hint);
-
-        if (gate == null) {
-            throw new IOException("Could not construct RouterMessenger, no route for " + plainAddr);
+        // We look for a route upfront, without waiting for one. If we know
+        // none, it is resolved in the background while the first messages wait.
+        if (router.getGatewayAddress(plainAddr, false, hint) == null) {
+            synchronized (pending) {
+                resolving = true;
+            }
+            router.getGatewayAddress(plainAddr, hint, this);
         }
     }
     
@@ -126,7 +189,21 @@ class RouterMessenger extends BlockingMessenger {
         return getDestinationAddress();
     }
 
-    public void closeImpl() {// Nothing to do. The underlying connection is not affected.
+    public void closeImpl() {
+        // The underlying connection is not affected. Just fail the messages
+        // which have not been sent and release the senders waiting for room.
+        synchronized (pending) {
+            closing = true;
+
+            while (!pending.isEmpty()) {
+                HeldMessage held = (HeldMessage) pending.removeFirst();
+
+                held.failure = new IOException("Messenger was closed, it cannot be used to send messages.");
+                held.done = true;
+            }
+            pending.notifyAll();
+        }
+
         // The messenger will be marked closed by the state machine once completely down; that's it.
     }
 
@@ -137,6 +214,10 @@ class RouterMessenger extends BlockingMessenger {
 
     /**
      * {@inheritDoc}
+     *
+     * <p/>If no route to the destination is known, the message is held
+     * until the background route resolution completes and sent then. We
+     * wait for the outcome.
      */
     public boolean sendMessageBImpl(Message message, String service, String serviceParam)
         throws IOException {
@@ -152,6 +233,193 @@ class RouterMessenger extends BlockingMessenger {
         }
 
         EndpointAddress dest = getDestAddressToUse(service, serviceParam);
+        HeldMessage held = new HeldMessage(message, dest);
+
+        while (true) {
+            if (holdWhileResolving(held)) {
+                return awaitOutcome(held);
+            }
+
+            if (sendRouted(message, dest)) {
+                return true;
+            }
+
+            // No route known. Resolve it in the background and hold the
+            // message until then, unless someone started doing so since.
+            boolean start;
+
+            synchronized (pending) {
+                start = !resolving;
+                if (start) {
+                    resolving = true;
+                    pending.addLast(held);
+                }
+            }
+
+            if (start) {
+                router.getGatewayAddress(new EndpointAddress(getDestinationAddress(), null, null), hint, this);
+                return awaitOutcome(held);
+            }
+        }
+    }
+
+    /**
+     *  Holds the message if a route resolution is in progress, waiting for
+     *  room if needed.
+     *
+     *  @param held the message.
+     *  @return true if the message is held, false if no resolution is in
+     *  progress.
+     *  @throws IOException if the messenger closes while we wait.
+     */
+    private boolean holdWhileResolving(HeldMessage held) throws IOException {
+        synchronized (pending) {
+            while (true) {
+                if (closing) {
+                    throw new IOException("Messenger was closed, it cannot be used to send messages.");
+                }
+
+                if (!resolving || (pending.size() < MAX_PENDING_MESSAGES)) {
+                    break;
+                }
+
+                try {
+                    pending.wait(TimeUtils.ASECOND);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted while waiting for a route to " + getDestinationAddress());
+                }
+            }
+
+            if (!resolving) {
+                return false;
+            }
+
+            pending.addLast(held);
+            return true;
+        }
+    }
+
+    /**
+     *  Waits until the held message is sent or fails.
+     *
+     *  @param held the message.
+     *  @return true if it was sent.
+     *  @throws IOException if it failed.
+     */
+    private boolean awaitOutcome(HeldMessage held) throws IOException {
+        Throwable failure;
+
+        synchronized (pending) {
+            long quitAt = TimeUtils.toAbsoluteTimeMillis(MAX_HELD_WAIT);
+
+            while (!held.done) {
+                // Give up only while the message is still waiting; once
+                // taken it is being sent.
+                if (TimeUtils.toRelativeTimeMillis(quitAt) <= 0) {
+                    if (pending.remove(held)) {
+                        throw new IOException("Timed out waiting for a route to " + getDestinationAddress());
+                    }
+                }
+
+                try {
+                    pending.wait(TimeUtils.ASECOND);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    if (pending.remove(held)) {
+                        throw new InterruptedIOException("Interrupted while waiting for a route to " + getDestinationAddress());
+                    }
+                }
+            }
+
+            failure = held.failure;
+        }
+
+        if (null == failure) {
+            return true;
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            throw new UndeclaredThrowableException(failure);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Sends the messages which waited for the route or fails them if
+     *  there is none.
+     */
+    public void routeResolved(EndpointAddress dest, EndpointAddress gateway) {
+        IOException noRoute = null;
+
+        if (null == gateway) {
+            noRoute = new IOException("RouterMessenger - Could not find a route for : " + dest);
+
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("No route to " + dest + ", failing the messages waiting for it");
+            }
+        }
+
+        while (true) {
+            HeldMessage held;
+
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    resolving = false;
+                    pending.notifyAll();
+                    break;
+                }
+
+                held = (HeldMessage) pending.removeFirst();
+                pending.notifyAll();
+
+                if (null != noRoute) {
+                    held.failure = noRoute;
+                    held.done = true;
+                    continue;
+                }
+            }
+
+            Throwable failure = null;
+
+            try {
+                if (!sendRouted(held.message, held.dest)) {
+                    // The route vanished already.
+                    failure = new IOException("RouterMessenger - Lost the route to : " + dest);
+                }
+            } catch (Throwable all) {
+                // sendRouted closed us if needed.
+                failure = all;
+            }
+
+            synchronized (pending) {
+                held.failure = failure;
+                held.done = true;
+                pending.notifyAll();
+            }
+        }
+
+        if (null != noRoute) {
+            close();
+        }
+    }
+
+    /**
+     *  Sends a message through the route we know to the destination.
+     *
+     *  @param message the message.
+     *  @param dest the address to send it to.
+     *  @return true if the message was sent, false if we know no route.
+     *  @throws IOException if sending fails.
+     */
+    private boolean sendRouted(Message message, EndpointAddress dest) throws IOException {
 
         // Loop trying to send message until we run out of routes.
         Throwable lastFailure = null;
@@ -163,6 +431,9 @@ class RouterMessenger extends BlockingMessenger {
             try {
                 sendTo = router.addressMessage(message, dest);
                 if (null == sendTo) {
+                    if (null == lastFailure) {
+                        return false;
+                    }
                     break;
                 }
 
@@ -247,4 +518,3 @@ class RouterMessenger extends BlockingMessenger {
         }
     }
 }
-
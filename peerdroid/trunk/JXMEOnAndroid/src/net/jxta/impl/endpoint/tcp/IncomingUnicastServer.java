@@ -64,6 +64,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import net.jxta.endpoint.MessengerEvent;
 import net.jxta.impl.endpoint.IPUtils;
 import org.apache.log4j.Level;
@@ -334,7 +335,20 @@ public class IncomingUnicastServer implements Runnable {
         serverSocket = null;
         try {
             synchronized (this) {
-                serverSocket = new ServerSocket(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface);
+                if (null != owner.selectorLoops) {
+                    // accepted sockets must have channels to be selectable.
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+
+                    try {
+                        channel.socket().bind(new InetSocketAddress(serverBindLocalInterface, serverBindPreferedLocalPort), TcpTransport.MaxAcceptCnxBacklog);
+                    } catch (IOException failed) {
+                        channel.close();
+                        throw failed;
+                    }
+                    serverSocket = channel.socket();
+                } else {
+                    serverSocket = new ServerSocket(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface);
+                }
             }
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("Server will accept connections at " + serverSocket.getLocalSocketAddress());
@@ -0,0 +1,372 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  A thread which services the input of many non-blocking TCP connections
+ *  with a single {@link Selector}. It also wakes senders waiting for their
+ *  connection to become writable and closes connections whose input has
+ *  stalled or which have been idle for too long.
+ *
+ *  <p/>Registrations and interest changes requested by other threads are
+ *  queued and applied by the loop thread, as changing a selection key while
+ *  its selector is selecting may block.
+ */
+class SelectorLoop implements Runnable {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(SelectorLoop.class.getName());
+
+    /**
+     *  How often we check connections for stalled or idle input.
+     */
+    private static final long SWEEP_INTERVAL = TimeUtils.ASECOND;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    /**
+     *  Connections waiting to be registered with our selector.
+     */
+    private final List registrations = new ArrayList();
+
+    /**
+     *  Connections which want to be told when they become writable.
+     */
+    private final List writeWaiters = new ArrayList();
+
+    /**
+     *  Connections which may read again after their delivery caught up.
+     */
+    private final List readWaiters = new ArrayList();
+
+    private volatile boolean closed = false;
+
+    /**
+     *  Creates a new selector loop.
+     *
+     *  @param inGroup the thread group for the loop thread.
+     *  @param name the name of the loop thread.
+     *  @throws IOException if the selector cannot be opened.
+     */
+    SelectorLoop(ThreadGroup inGroup, String name) throws IOException {
+        selector = Selector.open();
+
+        thread = new Thread(inGroup, this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     *  Starts the loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     *  Stops the loop. All connections registered with it are closed.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     *  Returns true if the calling thread is this loop's thread.
+     */
+    boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     *  Registers a connection whose channel is in non-blocking mode. Its input
+     *  will be read by this loop from now on.
+     *
+     *  @param conn the connection.
+     *  @param channel the connection's channel.
+     */
+    void register(TcpConnection conn, SocketChannel channel) {
+        synchronized (registrations) {
+            registrations.add(new Object[] { conn, channel });
+        }
+        selector.wakeup();
+    }
+
+    /**
+     *  Asks to be told, through {@link TcpConnection#writable()}, when the
+     *  channel of the connection can accept more output.
+     *
+     *  @param conn the connection.
+     */
+    void awaitWritable(TcpConnection conn) {
+        synchronized (writeWaiters) {
+            writeWaiters.add(conn);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     *  Asks to read the input of the connection again. Reading is paused
+     *  while too many of its messages are waiting to be delivered.
+     *
+     *  @param conn the connection.
+     */
+    void resumeReading(TcpConnection conn) {
+        synchronized (readWaiters) {
+            readWaiters.add(conn);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void run() {
+        long nextSweep = TimeUtils.toAbsoluteTimeMillis(SWEEP_INTERVAL);
+
+        try {
+            while (!closed) {
+                selector.select(SWEEP_INTERVAL);
+
+                applyRegistrations();
+
+                Iterator eachKey = selector.selectedKeys().iterator();
+                while (eachKey.hasNext()) {
+                    SelectionKey aKey = (SelectionKey) eachKey.next();
+                    eachKey.remove();
+
+                    service(aKey);
+                }
+
+                long now = TimeUtils.timeNow();
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = TimeUtils.toAbsoluteTimeMillis(SWEEP_INTERVAL, now);
+                }
+            }
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.FATAL)) {
+                LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            }
+        } finally {
+            closed = true;
+            closeAll();
+        }
+    }
+
+    /**
+     *  Applies the registrations and interest changes queued by other threads.
+     */
+    private void applyRegistrations() {
+        Object [] toRegister;
+        Object [] toWatch;
+        Object [] toResume;
+
+        synchronized (registrations) {
+            toRegister = registrations.toArray();
+            registrations.clear();
+        }
+
+        synchronized (writeWaiters) {
+            toWatch = writeWaiters.toArray();
+            writeWaiters.clear();
+        }
+
+        synchronized (readWaiters) {
+            toResume = readWaiters.toArray();
+            readWaiters.clear();
+        }
+
+        for (int each = 0; each < toRegister.length; each++) {
+            Object [] registration = (Object []) toRegister[each];
+            TcpConnection conn = (TcpConnection) registration[0];
+
+            try {
+                ((SocketChannel) registration[1]).register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Could not register " + conn, failed);
+                }
+                conn.failed();
+            }
+        }
+
+        for (int each = 0; each < toWatch.length; each++) {
+            TcpConnection conn = (TcpConnection) toWatch[each];
+            SocketChannel channel = conn.getChannel();
+            SelectionKey key = (null == channel) ? null : channel.keyFor(selector);
+
+            if ((null == key) || !key.isValid()) {
+                // closed or not yet registered; let the writer find out.
+                conn.writable();
+                continue;
+            }
+
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        for (int each = 0; each < toResume.length; each++) {
+            TcpConnection conn = (TcpConnection) toResume[each];
+            SocketChannel channel = conn.getChannel();
+            SelectionKey key = (null == channel) ? null : channel.keyFor(selector);
+
+            if ((null == key) || !key.isValid()) {
+                continue;
+            }
+
+            try {
+                // first the messages left in its buffers when it paused.
+                if (conn.resumeInput()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } catch (CancelledKeyException closedUnderUs) {
+                // the connection was closed by another thread.
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("tcp receive - Error on connection " + conn, all);
+                }
+                key.cancel();
+                conn.failed();
+            }
+        }
+    }
+
+    /**
+     *  Services a ready key.
+     */
+    private void service(SelectionKey key) {
+        TcpConnection conn = (TcpConnection) key.attachment();
+
+        try {
+            if (key.isWritable()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                conn.writable();
+            }
+
+            if (key.isReadable() && !conn.processInput()) {
+                // too much is waiting to be delivered; stop reading for now.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException closedUnderUs) {
+            // the connection was closed by another thread.
+            conn.writable();
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - Error on connection " + conn, all);
+            }
+            key.cancel();
+            conn.failed();
+        }
+    }
+
+    /**
+     *  Closes the connections whose input has stalled or been idle too long.
+     */
+    private void sweep(long now) {
+        Object [] keys = selector.keys().toArray();
+
+        for (int each = 0; each < keys.length; each++) {
+            SelectionKey aKey = (SelectionKey) keys[each];
+            TcpConnection conn = (TcpConnection) aKey.attachment();
+
+            if (aKey.isValid() && !conn.checkInput(now)) {
+                aKey.cancel();
+            }
+        }
+    }
+
+    /**
+     *  Closes every connection we serviced and the selector.
+     */
+    private void closeAll() {
+        try {
+            applyRegistrations();
+        } catch (Throwable ignored) {
+            ;
+        }
+
+        Object [] keys = selector.keys().toArray();
+
+        for (int each = 0; each < keys.length; each++) {
+            SelectionKey aKey = (SelectionKey) keys[each];
+
+            aKey.cancel();
+            ((TcpConnection) aKey.attachment()).close();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            ;
+        }
+    }
+}
@@ -59,15 +59,23 @@ package net.jxta.impl.endpoint.tcp;
 
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -80,9 +88,11 @@ import net.jxta.peer.PeerID;
 import net.jxta.util.LimitInputStream;
 import net.jxta.util.WatchedInputStream;
 import net.jxta.util.WatchedOutputStream;
+import net.jxta.impl.util.TimeUtils;
 
+import net.jxta.impl.endpoint.BufferChain;
 import net.jxta.impl.endpoint.IPUtils;
-import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
@@ -129,6 +139,116 @@ class TcpConnection implements Runnable {
      */
     private final transient Object writeLock = new String("tcp write lock");
 
+    /**
+     *  The selector loop servicing this connection or null if it has its own
+     *  receive thread.
+     */
+    private transient SelectorLoop selectorLoop = null;
+
+    /**
+     *  Framed messages waiting to be written, oldest first.
+     */
+    private final transient LinkedList outbound = new LinkedList();
+
+    /**
+     *  Number of bytes in the outbound queue.
+     */
+    private transient long queuedBytes = 0;
+
+    /**
+     *  True while a thread or the selector loop is writing the queue.
+     */
+    private transient boolean writing = false;
+
+    /**
+     *  The failure of a queued write. Thread mode: reported to the senders of
+     *  the messages not written. Selector mode: reported to the next sender.
+     */
+    private transient IOException writeFailure = null;
+
+    /**
+     *  Number of messages ever queued. The last one queued has this
+     *  sequence number.
+     */
+    private transient long queuedSeq = 0;
+
+    /**
+     *  Thread mode: sequence number of the last message removed from the
+     *  queue to be written.
+     */
+    private transient long writtenSeq = 0;
+
+    /**
+     *  Thread mode: sequence number of the last message written and flushed.
+     */
+    private transient long flushedSeq = 0;
+
+    /**
+     *  Thread mode: the last time a drain of the queue ended.
+     */
+    private transient long lastDrained = 0;
+
+    /**
+     *  The last time output made progress or the queue became non-empty.
+     */
+    private transient long lastOutput = TimeUtils.timeNow();
+
+    /**
+     *  Selector mode: accumulates the package header of the next message.
+     */
+    private transient ByteBuffer headerBuffer = null;
+
+    /**
+     *  Selector mode: the package header of the message being received.
+     */
+    private transient MessagePackageHeader pendingHeader = null;
+
+    /**
+     *  Selector mode: receives the body of the message being received.
+     */
+    private transient ByteBuffer bodyBuffer = null;
+
+    /**
+     *  Selector mode: the last time we read any input.
+     */
+    private transient long lastInput = TimeUtils.timeNow();
+
+    /**
+     *  Selector mode: the largest package header we will accept.
+     */
+    private static final int MAX_HEADER_SIZE = 128 * 1024;
+
+    /**
+     *  Selector mode: the number of received messages waiting to be
+     *  delivered at which we stop reading the connection.
+     */
+    private static final int MAX_INBOX = 32;
+
+    /**
+     *  Selector mode: received messages waiting to be decoded and delivered,
+     *  oldest first. Each is an array of its mime type and body.
+     */
+    private final transient LinkedList inbox = new LinkedList();
+
+    /**
+     *  Selector mode: true while a delivery thread is draining the inbox.
+     */
+    private transient boolean delivering = false;
+
+    /**
+     *  Selector mode: true while reading is paused because the inbox is full.
+     */
+    private transient volatile boolean readPaused = false;
+
+    /**
+     *  Selector mode: delivers the inbox on a delivery thread.
+     */
+    private final transient Runnable inboxDrainer = new Runnable() {
+        public void run() {
+            drainInbox();
+        }
+    };
+
     /**
      *  Creates a new TcpConnection for the specified destination address.
      *
@@ -183,7 +303,14 @@ class TcpConnection implements Runnable {
         }
 
         try {
-            sharedSocket = new Socket(inetAddress, port);
+            if (null != proto.selectorLoops) {
+                SocketChannel channel = SocketChannel.open();
+
+                sharedSocket = channel.socket();
+                sharedSocket.connect(new InetSocketAddress(inetAddress, port));
+            } else {
+                sharedSocket = new Socket(inetAddress, port);
+            }
             startSocket();
         } catch (IOException e) {
             // If we failed for any reason, make sure the socket is closed.
@@ -314,7 +441,10 @@ class TcpConnection implements Runnable {
         useBufferSize = Math.max(TcpTransport.RecvBufferSize, sharedSocket.getReceiveBufferSize());
         sharedSocket.setReceiveBufferSize(useBufferSize);
 
-        sharedSocket.setSoLinger(true, TcpTransport.LingerDelay);
+        if (null == proto.selectorLoops) {
+            // a lingering close would block a selector loop.
+            sharedSocket.setSoLinger(true, TcpTransport.LingerDelay);
+        }
         sharedSocket.setTcpNoDelay(true);
 
         woutputStream = new WatchedOutputStream(sharedSocket.getOutputStream(), TcpTransport.ChunkSize);
@@ -349,74 +479,771 @@ class TcpConnection implements Runnable {
             LOG.debug("startSocket : Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
         }
 
+        if ((null != proto.selectorLoops) && (null != sharedSocket.getChannel())) {
+            // input will be serviced by one of the transport's selectors.
+            selectorLoop = proto.nextSelectorLoop();
+            return;
+        }
+
         recvThread = new Thread(proto.myThreadGroup, this);
         setThreadName();
         recvThread.setDaemon(true);
     }
 
     protected void start() {
-        recvThread.start();
+        if (null == selectorLoop) {
+            recvThread.start();
+            return;
+        }
+
+        // The streams were only needed for the welcome exchange.
+        proto.ShortCycle.remove(winputStream);
+        proto.LongCycle.remove(winputStream);
+        proto.ShortCycle.remove(woutputStream);
+        proto.LongCycle.remove(woutputStream);
+
+        try {
+            SocketChannel channel = sharedSocket.getChannel();
+
+            headerBuffer = ByteBuffer.allocate(256);
+            lastInput = TimeUtils.timeNow();
+            channel.configureBlocking(false);
+            selectorLoop.register(this, channel);
+        } catch (Throwable failure) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - could not register connection with selector for " + inetAddress.getHostAddress() + ":" + port, failure);
+            }
+            failed();
+        }
     }
 
     /**
-     * Send message to the remote peer.
+     * Send message to the remote peer. The message is serialized by the
+     * calling thread and added to the outbound queue of this connection.
+     * Messages which are queued while a write is in progress are written
+     * together with a single flush (or, with a selector, a single gathering
+     * write) once that write completes. The caller blocks while the queue
+     * is full; this keeps the messenger saturated, which is how back
+     * pressure reaches the senders.
+     *
+     * <p/>Thread mode: the caller returns once its message is flushed. The
+     * sender which finds no write in progress writes the messages queued at
+     * that time, after waiting up to {@link TcpTransport#CoalesceLatency}
+     * for more if the connection is busy; the senders of the messages
+     * queued later take over from it. A write failure is thrown to the
+     * senders of all the messages not written.
+     *
+     * <p/>Selector mode: the send is asynchronous; a successful return only
+     * means that the message was queued. If writing it fails later the
+     * connection is closed and the failure is thrown to the next sender,
+     * whose messenger then closes. A selector loop thread cannot block as
+     * it is the writer, so its message is dropped if the queue is full.
      *
      *  @param msg  the message to send.
+     *  @return true if the message was sent or queued, false if it was
+     *  dropped because the queue is full.
+     *  @throws IOException if the connection is closed or a write failed.
      */
-    public void sendMessage(Message msg) throws IOException {
+    public boolean sendMessage(Message msg) throws IOException {
 
-        // socket is a stream, only one writer at a time...
         synchronized (writeLock) {
-            if (closed) {
+            if (null != writeFailure) {
+                IOException failure = new IOException("Earlier send failed on connection to : " + dstAddress);
+
+                failure.initCause(writeFailure);
+                throw failure;
+            }
+        }
+
+        if (closed) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Connection was closed to : " + dstAddress);
+            }
+
+            throw new IOException("Connection was closed to : " + dstAddress);
+        }
+
+        BufferChain framed = frame(msg);
+        long size = framed.getByteLength();
+        boolean drain;
+        long mySeq;
+
+        synchronized (writeLock) {
+            boolean room;
+
+            try {
+                room = waitForRoom();
+            } catch (IOException failed) {
+                framed.release();
+                throw failed;
+            }
+
+            if (!room) {
+                framed.release();
+
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("tcp send - outbound queue full, dropping message to " + inetAddress.getHostAddress() + ":" + port);
+                }
+                return false;
+            }
+
+            if (outbound.isEmpty()) {
+                lastOutput = TimeUtils.timeNow();
+            }
+
+            outbound.addLast(framed);
+            queuedBytes += size;
+            mySeq = ++queuedSeq;
+            setLastUsed(System.currentTimeMillis());
+
+            if (queuedBytes >= TcpTransport.CoalesceSize) {
+                // end the wait of a coalescing writer.
+                writeLock.notifyAll();
+            }
+
+            drain = !writing;
+            writing = true;
+        }
+
+        if (null != selectorLoop) {
+            if (drain) {
+                selectorLoop.awaitWritable(this);
+            }
+            // else the selector already writing will send it.
+            return true;
+        }
+
+        // Thread mode: we write our message or wait until the thread
+        // writing does; if it stops before, we take over.
+        while (true) {
+            if (drain) {
+                drainQueue();
+            }
+
+            synchronized (writeLock) {
+                while (true) {
+                    if (flushedSeq >= mySeq) {
+                        return true;
+                    }
+
+                    if (null != writeFailure) {
+                        IOException failure = new IOException("Send failed on connection to : " + dstAddress);
+
+                        failure.initCause(writeFailure);
+                        throw failure;
+                    }
+
+                    if (closed) {
+                        throw new IOException("Connection was closed to : " + dstAddress);
+                    }
+
+                    if (!writing) {
+                        writing = true;
+                        drain = true;
+                        break;
+                    }
+
+                    try {
+                        writeLock.wait(TimeUtils.ASECOND);
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                        throw new InterruptedIOException("tcp send - interrupted");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Serializes a message and its package header into a buffer chain.
+     *
+     *  @param msg the message.
+     *  @return the framed message.
+     */
+    private BufferChain frame(Message msg) throws IOException {
+        // 20020730 bondolo@jxta.org Do something with content-coding here
+        // serialize the message into pooled buffers.
+        BufferChain serialed = WireFormatMessageBinary.toBuffers(msg);
+        BufferChain framed = new BufferChain();
+
+        try {
+            // Build the protocol header
+            MessagePackageHeader header = new MessagePackageHeader();
+
+            header.setContentTypeHeader(appMsg);
+            header.setContentLengthHeader(serialed.getByteLength());
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+            }
+
+            header.sendToStream(framed);
+            framed.append(serialed);
+        } catch (IOException failed) {
+            framed.release();
+            serialed.release();
+            throw failed;
+        }
+
+        return framed;
+    }
+
+    /**
+     *  Waits until the outbound queue has room. A selector loop thread is
+     *  never made to wait, as the loop is the writer.
+     *
+     *  <p/>Must be called with the write lock held.
+     *
+     *  @return false if the queue is full and the caller is the selector
+     *  loop.
+     *  @throws IOException if the connection closes or output stalls.
+     */
+    private boolean waitForRoom() throws IOException {
+        while (!closed && (queuedBytes >= TcpTransport.OutboundQueueSize)) {
+            if ((null != selectorLoop) && selectorLoop.isLoopThread()) {
+                return false;
+            }
+
+            // in thread mode the watched output stream detects stalls.
+            if ((null != selectorLoop) && (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), lastOutput) > TcpTransport.ShortTimeout)) {
                 if (LOG.isEnabledFor(Level.INFO)) {
-                    LOG.info("Connection was closed to : " + dstAddress);
+                    LOG.info("tcp send - output stalled for " + inetAddress.getHostAddress() + ":" + port);
                 }
 
-                throw new IOException("Connection was closed to : " + dstAddress);
+                failed();
+                break;
+            }
+
+            try {
+                writeLock.wait(TimeUtils.ASECOND);
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+                throw new InterruptedIOException("tcp send - interrupted");
+            }
+        }
+
+        if (closed) {
+            throw new IOException("Connection was closed to : " + dstAddress);
+        }
+
+        return true;
+    }
+
+    /**
+     *  Thread mode: writes the messages queued when it is called, then
+     *  flushes once for all of them. If the connection is busy, first waits
+     *  a little for more messages to write with the same flush. Only one
+     *  thread drains at a time; the caller must have set writing.
+     */
+    private void drainQueue() {
+        try {
+            long target;
+
+            synchronized (writeLock) {
+                coalesce();
+                target = queuedSeq;
             }
 
-            boolean success = false;
-            long sendBeginTime = 0;
-            long size = 0;
+            while (true) {
+                BufferChain next;
 
+                synchronized (writeLock) {
+                    next = ((writtenSeq >= target) || outbound.isEmpty()) ? null : (BufferChain) outbound.getFirst();
+                }
+
+                if (null == next) {
+                    // our batch is written; flush once for all of it.
+                    outputStream.flush();
+
+                    synchronized (writeLock) {
+                        flushedSeq = writtenSeq;
+                        lastDrained = TimeUtils.timeNow();
+                        // the senders of later messages take over.
+                        writing = false;
+                        writeLock.notifyAll();
+                    }
+                    return;
+                }
+
+                // large buffers bypass the buffered stream's copy.
+                next.writeTo(outputStream);
+
+                synchronized (writeLock) {
+                    outbound.removeFirst();
+                    queuedBytes -= next.getByteLength();
+                    writtenSeq++;
+                    lastOutput = TimeUtils.timeNow();
+                }
+                next.release();
+            }
+        } catch (Throwable failure) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp send - message send failed for " + inetAddress.getHostAddress() + ":" + port, failure);
+            }
+
+            synchronized (writeLock) {
+                writeFailed(failure);
+            }
+        }
+    }
+
+    /**
+     *  Thread mode: if the previous drain ended less than
+     *  {@link TcpTransport#CoalesceLatency} ago, the connection is busy and
+     *  more messages are likely to come. Waits for them as long, or until
+     *  {@link TcpTransport#CoalesceSize} bytes are queued.
+     *
+     *  <p/>Must be called with the write lock held.
+     */
+    private void coalesce() {
+        long now = TimeUtils.timeNow();
+
+        if (TimeUtils.toRelativeTimeMillis(now, lastDrained) >= TcpTransport.CoalesceLatency) {
+            return;
+        }
+
+        long until = now + TcpTransport.CoalesceLatency;
+
+        while (!closed && (queuedBytes < TcpTransport.CoalesceSize)) {
+            long left = TimeUtils.toRelativeTimeMillis(until, now);
+
+            if (left <= 0) {
+                break;
+            }
 
             try {
-                // 20020730 bondolo@jxta.org Do something with content-coding here
-                // serialize the message.
-                WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
+                writeLock.wait(left);
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+                break;
+            }
 
-                // Build the protocol header
-                // Allocate a buffer to contain the message and the header
+            now = TimeUtils.timeNow();
+        }
+    }
+
+    /**
+     *  Selector mode: called by the selector loop when our channel may
+     *  accept more output. Writes as much of the queue as the channel will
+     *  take with one gathering write and asks to be called again if some
+     *  remains.
+     */
+    void writable() {
+        synchronized (writeLock) {
+            if (closed) {
+                discardQueue();
+                return;
+            }
 
-                MessagePackageHeader header = new MessagePackageHeader();
+            try {
+                SocketChannel channel = getChannel();
 
-                header.setContentTypeHeader(serialed.getMimeType());
+                if (null == channel) {
+                    throw new IOException("Connection was closed to : " + dstAddress);
+                }
 
-                size = serialed.getByteLength();
-                header.setContentLengthHeader(size);
+                List pending = new ArrayList();
+                Iterator eachQueued = outbound.iterator();
+                while (eachQueued.hasNext()) {
+                    ByteBuffer [] buffers = ((BufferChain) eachQueued.next()).getBuffers();
 
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+                    for (int eachBuffer = 0; eachBuffer < buffers.length; eachBuffer++) {
+                        if (buffers[eachBuffer].hasRemaining()) {
+                            pending.add(buffers[eachBuffer]);
+                        }
+                    }
                 }
 
-                header.sendToStream(outputStream);
-                serialed.sendToStream(outputStream);
-                outputStream.flush();
+                long wrote = channel.write((ByteBuffer []) pending.toArray(new ByteBuffer [pending.size()]));
 
-                // all done!
-                success = true;
-                setLastUsed(System.currentTimeMillis());
+                if (wrote > 0) {
+                    lastOutput = TimeUtils.timeNow();
+                }
 
-            } catch (Throwable failure) {
+                // release the messages which are now completely written.
+                while (!outbound.isEmpty()) {
+                    BufferChain first = (BufferChain) outbound.getFirst();
+
+                    if (first.hasRemaining()) {
+                        break;
+                    }
 
+                    outbound.removeFirst();
+                    queuedBytes -= first.getByteLength();
+                    first.release();
+                }
+
+                writeLock.notifyAll();
+
+                if (outbound.isEmpty()) {
+                    writing = false;
+                } else {
+                    selectorLoop.awaitWritable(this);
+                }
+            } catch (Throwable failure) {
                 if (LOG.isEnabledFor(Level.INFO)) {
                     LOG.info("tcp send - message send failed for " + inetAddress.getHostAddress() + ":" + port, failure);
                 }
 
-                closingDueToFailure = true;
-                close();
+                writeFailed(failure);
+            }
+        }
+    }
+
+    /**
+     *  Waits until the messages queued so far have been written, the
+     *  connection closes or output stalls. Used before a normal close so that
+     *  queued messages are not lost.
+     */
+    void flushQueue() {
+        if ((null != selectorLoop) && selectorLoop.isLoopThread()) {
+            // the loop cannot write while we wait.
+            return;
+        }
+
+        synchronized (writeLock) {
+            while (!closed && !outbound.isEmpty()) {
+                if (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), lastOutput) > TcpTransport.ShortTimeout) {
+                    break;
+                }
+
+                try {
+                    writeLock.wait(TimeUtils.ASECOND);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Records the failure of a queued write for the next sender, closes the
+     *  connection and drops the queued messages.
+     *
+     *  <p/>Must be called with the write lock held.
+     *
+     *  @param failure the cause.
+     */
+    private void writeFailed(Throwable failure) {
+        if (null == writeFailure) {
+            if (failure instanceof IOException) {
+                writeFailure = (IOException) failure;
+            } else {
+                writeFailure = new IOException("tcp send - " + failure);
+                writeFailure.initCause(failure);
+            }
+        }
+
+        failed();
+        discardQueue();
+    }
+
+    /**
+     *  Drops the queued messages after a failure or close.
+     *
+     *  <p/>Must be called with the write lock held.
+     */
+    private void discardQueue() {
+        while (!outbound.isEmpty()) {
+            ((BufferChain) outbound.removeFirst()).release();
+        }
+
+        queuedBytes = 0;
+        writing = false;
+        writeLock.notifyAll();
+    }
+
+    /**
+     *  Selector mode: returns the channel of this connection.
+     */
+    SocketChannel getChannel() {
+        Socket holdIt = sharedSocket;
+
+        return (null == holdIt) ? null : holdIt.getChannel();
+    }
+
+    /**
+     *  Selector mode: called by the selector loop when input is available.
+     *  Reads what is available, and queues each message for delivery as it
+     *  completes.
+     *
+     *  @return false if reading must pause until the queued messages are
+     *  delivered.
+     *  @throws IOException if the connection fails or a message is malformed.
+     */
+    boolean processInput() throws IOException {
+        SocketChannel channel = getChannel();
+        int count;
+
+        if (null == channel) {
+            throw new EOFException("Connection was closed to : " + dstAddress);
+        }
+
+        do {
+            count = channel.read((null != bodyBuffer) ? bodyBuffer : headerBuffer);
+
+            if (count < 0) {
+                throw new EOFException("Connection was closed by " + inetAddress.getHostAddress() + ":" + port);
             }
 
+            if (count > 0) {
+                lastInput = TimeUtils.timeNow();
+            }
+
+            parseInput();
+        } while ((count > 0) && !closed && !readPaused);
+
+        return !readPaused;
+    }
+
+    /**
+     *  Selector mode: called by the selector loop when reading may resume
+     *  after delivery caught up. Queues the messages already received
+     *  whole, which were left in our buffers when reading paused; the peer
+     *  may send nothing more to get them parsed.
+     *
+     *  @return false if reading must stay paused.
+     *  @throws IOException if a message is malformed.
+     */
+    boolean resumeInput() throws IOException {
+        // we were not reading; the input did not stall.
+        lastInput = TimeUtils.timeNow();
+
+        parseInput();
+
+        return !readPaused;
+    }
+
+    /**
+     *  Selector mode: queues for delivery every message completely
+     *  received in our buffers, until reading must pause.
+     */
+    private void parseInput() throws IOException {
+        while (!closed && !readPaused) {
+            if ((null == bodyBuffer) && !startBody()) {
+                break;
+            }
+
+            if (bodyBuffer.hasRemaining()) {
+                break;
+            }
+
+            deliver();
+        }
+    }
+
+    /**
+     *  Selector mode: parses the package header if we have all of it and
+     *  prepares to receive the message body.
+     *
+     *  @return true if the body is now being received.
+     */
+    private boolean startBody() throws IOException {
+        int headerLength = MessagePackageHeader.getHeaderLength(headerBuffer.array(), 0, headerBuffer.position());
+
+        if (-1 == headerLength) {
+            if (!headerBuffer.hasRemaining()) {
+                if (headerBuffer.capacity() >= MAX_HEADER_SIZE) {
+                    throw new IOException("Message package header too large from " + inetAddress.getHostAddress() + ":" + port);
+                }
+
+                ByteBuffer larger = ByteBuffer.allocate(headerBuffer.capacity() * 2);
+
+                headerBuffer.flip();
+                larger.put(headerBuffer);
+                headerBuffer = larger;
+            }
+            return false;
+        }
+
+        pendingHeader = new MessagePackageHeader(new ByteArrayInputStream(headerBuffer.array(), 0, headerLength));
+
+        long msglength = pendingHeader.getContentLengthHeader();
+
+        if ((msglength < 0) || (msglength > TcpTransport.MaxBufferedMessageSize)) {
+            throw new IOException("Bad or too large message length " + msglength + " from " + inetAddress.getHostAddress() + ":" + port);
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("tcp receive - message body (" + msglength + ") starts for " + inetAddress.getHostAddress() + ":" + port);
+        }
+
+        bodyBuffer = ByteBuffer.allocate((int) msglength);
+
+        // move what we already have of the body.
+        headerBuffer.flip();
+        headerBuffer.position(headerLength);
+
+        int carry = Math.min(headerBuffer.remaining(), bodyBuffer.remaining());
+
+        headerBuffer.get(bodyBuffer.array(), 0, carry);
+        bodyBuffer.position(carry);
+        headerBuffer.compact();
+
+        return true;
+    }
+
+    /**
+     *  Selector mode: queues the message we have completely received for a
+     *  delivery thread, which decodes it and hands it to the endpoint. The
+     *  messages of a connection are delivered one at a time, in order.
+     */
+    private void deliver() {
+        MimeMediaType msgMime = pendingHeader.getContentTypeHeader();
+        byte [] body = bodyBuffer.array();
+        boolean start;
+
+        pendingHeader = null;
+        bodyBuffer = null;
+
+        synchronized (inbox) {
+            inbox.addLast(new Object [] { msgMime, body });
+
+            if (inbox.size() >= MAX_INBOX) {
+                readPaused = true;
+            }
+
+            start = !delivering;
+            delivering = true;
+        }
+
+        if (start) {
+            proto.deliveryExecutor.execute(inboxDrainer);
+        }
+
+        setLastUsed(System.currentTimeMillis());
+    }
+
+    /**
+     *  Selector mode: decodes and delivers the inbox until it is empty.
+     *  Resumes reading once half of the inbox has been delivered.
+     */
+    private void drainInbox() {
+        while (true) {
+            Object [] received;
+            boolean resume = false;
+
+            synchronized (inbox) {
+                if (inbox.isEmpty()) {
+                    delivering = false;
+                    return;
+                }
+
+                received = (Object []) inbox.removeFirst();
+
+                if (readPaused && (inbox.size() <= MAX_INBOX / 2)) {
+                    readPaused = false;
+                    resume = true;
+                }
+            }
+
+            if (resume) {
+                selectorLoop.resumeReading(this);
+            }
+
+            MimeMediaType msgMime = (MimeMediaType) received[0];
+            byte [] body = (byte []) received[1];
+
+            try {
+                Message msg;
+                if (appMsg.equalsIngoringParams(msgMime)) {
+                    msg = WireFormatMessageBinary.fromBuffer(body, 0, body.length);
+                } else {
+                    msg = WireFormatMessageFactory.fromWire(new ByteArrayInputStream(body), msgMime, (MimeMediaType) null);
+                }
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("tcp receive - handing incoming message from " + inetAddress.getHostAddress() + ":" + port + " to EndpointService");
+                }
+
+                // Demux the message for the upper layers.
+                proto.endpoint.demux(msg);
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("tcp receive - Error delivering message from " + inetAddress.getHostAddress() + ":" + port, all);
+                }
+
+                synchronized (inbox) {
+                    inbox.clear();
+                    delivering = false;
+                }
+                failed();
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Selector mode: checks that neither input nor output has stalled part
+     *  way through a message and that the connection has not been idle too
+     *  long. Closes the connection if any of these happened.
+     *
+     *  @param now the current time.
+     *  @return true if the connection is still open.
+     */
+    boolean checkInput(long now) {
+        synchronized (writeLock) {
+            if (!outbound.isEmpty() && (TimeUtils.toRelativeTimeMillis(now, lastOutput) > TcpTransport.ShortTimeout)) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("tcp send - Error : write() timeout on connection " + inetAddress.getHostAddress() + ":" + port);
+                }
+                writeFailed(new IOException("write() timeout"));
+                return false;
+            }
+        }
+
+        if (readPaused) {
+            // not reading while our delivery catches up.
+            return true;
+        }
+
+        long quiet = TimeUtils.toRelativeTimeMillis(now, lastInput);
+        boolean midMessage = (null != bodyBuffer) || (headerBuffer.position() > 0);
+
+        if (midMessage && (quiet > TcpTransport.ShortTimeout)) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error : read() timeout on connection " + inetAddress.getHostAddress() + ":" + port);
+            }
+            failed();
+            return false;
+        }
+
+        if (quiet > 2 * TcpTransport.LongTimeout) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - closing idle connection to " + inetAddress.getHostAddress() + ":" + port);
+            }
+            failed();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Closes the connection because of a failure.
+     */
+    void failed() {
+        closingDueToFailure = true;
+        close();
+    }
+
+    /**
+     *  Reads exactly enough bytes from the connection to fill the array.
+     *
+     *  @param body the array to fill.
+     *  @throws IOException if the connection fails or closes first.
+     */
+    private void readFully(byte [] body) throws IOException {
+        int read = 0;
+
+        while (read < body.length) {
+            int count = inputStream.read(body, read, body.length - read);
+
+            if (count < 0) {
+                throw new EOFException("Connection closed after " + read + " of " + body.length + " message bytes");
+            }
+            read += count;
         }
     }
 
@@ -465,7 +1292,15 @@ class TcpConnection implements Runnable {
                     Message msg = null;
 
                     try {
-                        msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream, msglength, true), msgMime, (MimeMediaType) null);
+                        if (appMsg.equalsIngoringParams(msgMime) && (msglength <= TcpTransport.MaxBufferedMessageSize)) {
+                            // read the whole message and decode it in place.
+                            byte [] body = new byte [(int) msglength];
+
+                            readFully(body);
+                            msg = WireFormatMessageBinary.fromBuffer(body, 0, body.length);
+                        } else {
+                            msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream, msglength, true), msgMime, (MimeMediaType) null);
+                        }
                     } catch (IOException failed) {
                         if (LOG.isEnabledFor(Level.INFO)) {
                             LOG.info("tcp receive - failed reading msg from " + inetAddress.getHostAddress() + ":" + port);
@@ -607,7 +1442,7 @@ class TcpConnection implements Runnable {
      *
      */
     public boolean isConnected() {
-        return ((recvThread != null) && (!closed));
+        return ((recvThread != null) || (selectorLoop != null)) && (!closed);
     }
 
     /**
@@ -227,6 +227,8 @@ class TcpMessenger extends BlockingMessenger {
 
         super.close();
 
+        // messages queued before the close still get sent.
+        toClose.flushQueue();
         toClose.close();
     }
 
@@ -277,7 +279,10 @@ class TcpMessenger extends BlockingMessenger {
         return holdIt == null ? null : (EndpointAddress) holdIt.clone();
     }
     
-    /** Sends a message to the destination
+    /** Sends a message to the destination. The message is queued on the
+     *  connection and written asynchronously; a write which fails later
+     *  closes the connection and fails the next send, closing this
+     *  messenger.
      *
      *  @param msg      the message to send.
      *  @param destService  Optionally replaces the service in the destination
@@ -317,13 +322,15 @@ class TcpMessenger extends BlockingMessenger {
         
         message.replaceMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NS, dstAddressElement);
         
+        boolean queued;
+
         // send it
         try {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Sending " + message + " to " + destAddressToUse + " on connection " + conn.getDestinationAddress());
             }
         
-            myConn.sendMessage(message);
+            queued = myConn.sendMessage(message);
         } catch (IOException caught) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Message send failed for " + message, caught);
@@ -335,9 +342,9 @@ class TcpMessenger extends BlockingMessenger {
         }
         
         if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Message send succeeded for " + message);
+            LOG.debug((queued ? "Message queued for " : "Message dropped for ") + message);
         }
 
-        return true;
+        return queued;
     }
 }
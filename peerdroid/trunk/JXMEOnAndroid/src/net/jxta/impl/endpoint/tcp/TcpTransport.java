@@ -80,6 +80,9 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Attributable;
@@ -103,6 +106,7 @@ import net.jxta.impl.endpoint.EndpointServiceImpl;
 import net.jxta.impl.endpoint.IPUtils;
 import net.jxta.impl.endpoint.LoopbackMessenger;
 import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader.Header;
@@ -159,6 +163,32 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
      */
     static final int            RecvBufferSize = 64 * 1024; // 64 KBytes
 
+    /**
+     * The number of bytes of messages which may be queued for sending on a
+     * connection before senders are made to wait.
+     */
+    static final int            OutboundQueueSize = 256 * 1024; // 256 KBytes
+
+    /**
+     * The longest time, in milliseconds, a thread about to write the outbound
+     * queue of a busy connection waits for more messages to write with the
+     * same flush.
+     */
+    static final int            CoalesceLatency = 2;
+
+    /**
+     * The number of queued bytes which ends the wait for more messages to
+     * write with the same flush.
+     */
+    static final int            CoalesceSize = 16 * 1024; // 16 KBytes
+
+    /**
+     * Incoming messages up to this size are read whole into a single array
+     * and decoded in place. Larger messages are decoded from the stream, or
+     * refused when the connection is serviced by a selector loop.
+     */
+    static final int            MaxBufferedMessageSize = 1024 * 1024; // 1 MByte
+
     // Note: We do not rely on Socket timeout. Java's implementation is crap.
     // These time outs are used to control the behaviour of WatchedInputStream
     // and WatchedOutputStream. These are Filters that monitor their progress.
@@ -199,6 +229,13 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
 
     static final int              MaxAcceptCnxBacklog = 50; // Java's default is 50
 
+    /**
+     * The system property which selects how many selector threads service
+     * connection input. If unset or zero, each connection has its own
+     * receive thread.
+     */
+    public static final String    SELECTORS_PROPERTY = "net.jxta.impl.endpoint.tcp.selectors";
+
     // Connections that are watched often - io in progress
     List                          ShortCycle = Collections.synchronizedList(new ArrayList());
 
@@ -245,6 +282,24 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
      */
     ThreadGroup                   myThreadGroup = null;
 
+    /**
+     *  The selector loops servicing connection input or null if each
+     *  connection has its own receive thread.
+     */
+    SelectorLoop[]                selectorLoops = null;
+
+    private int                   nextSelectorLoop = 0;
+
+    /**
+     *  Decodes and delivers the messages received by the selector loops, so
+     *  that a slow listener never stalls a loop. A connection has at most one
+     *  delivery in progress, so there are at most as many threads as there
+     *  are connections with messages waiting; a slow listener only holds up
+     *  the connections delivering to it. Idle threads retire. Null if there
+     *  are no selector loops.
+     */
+    ExecutorService               deliveryExecutor = null;
+
     final Timer                   connectionWatchTimer;
 
     /**
@@ -437,6 +492,26 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
 
             // Start the servers
             myThreadGroup = new ThreadGroup(group.getHomeThreadGroup(), "TcpTransport " + usingInterface.getHostAddress());
+
+            int selectorCount = Integer.getInteger(SELECTORS_PROPERTY, 0).intValue();
+            if (selectorCount > 0) {
+                selectorLoops = new SelectorLoop[selectorCount];
+                for (int eachLoop = 0; eachLoop < selectorCount; eachLoop++) {
+                    selectorLoops[eachLoop] = new SelectorLoop(myThreadGroup, "TCP Selector " + eachLoop + " for " + usingInterface.getHostAddress());
+                    selectorLoops[eachLoop].start();
+                }
+
+                deliveryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    private int created = 0;
+
+                    public synchronized Thread newThread(Runnable task) {
+                        Thread delivery = new Thread(myThreadGroup, task, "TCP Delivery " + (created++) + " for " + usingInterface.getHostAddress());
+
+                        delivery.setDaemon(true);
+                        return delivery;
+                    }
+                });
+            }
             if (adv.isServerEnabled()) {
                 unicastServer = new IncomingUnicastServer(this, usingInterface, serverSocketPort, adv.getStartPort(), adv.getEndPort());
                 InetSocketAddress boundAddresss = unicastServer.getLocalSocketAddress();
@@ -779,11 +854,35 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         ShortCycle.clear();
         LongCycle.clear();
 
+        // The selector loops close the connections they service.
+        if (null != selectorLoops) {
+            for (int eachLoop = 0; eachLoop < selectorLoops.length; eachLoop++) {
+                selectorLoops[eachLoop].close();
+            }
+        }
+
+        if (null != deliveryExecutor) {
+            deliveryExecutor.shutdown();
+        }
+
         // Accelerated GC (or so some say).
         endpoint = null;
         group = null;
     }
 
+    /**
+     *  Picks the selector loop which will service a new connection.
+     *
+     *  @return the selector loop.
+     */
+    synchronized SelectorLoop nextSelectorLoop() {
+        SelectorLoop result = selectorLoops[nextSelectorLoop];
+
+        nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.length;
+
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -984,10 +1083,18 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             long msglength = header.getContentLengthHeader();
             // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
             // read the message!
-            Message msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream,
-                                                            msglength),
-                                                            msgMime,
-                                                            (MimeMediaType) null);
+            Message msg;
+            int bodyOffset = size - inputStream.available();
+
+            if (WireFormatMessageBinary.INSTANTIATOR.getSupportedMimeTypes()[0].equalsIngoringParams(msgMime) && (msglength <= size - bodyOffset)) {
+                // the packet buffer is ours, decode the message in place.
+                msg = WireFormatMessageBinary.fromBuffer(buffer, bodyOffset, (int) msglength);
+            } else {
+                msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream,
+                                                        msglength),
+                                                        msgMime,
+                                                        (MimeMediaType) null);
+            }
             // Give the message to the EndpointService Manager
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("processMulticast : handing multicast message to EndpointService"+msg);
@@ -54,6 +54,7 @@
  */
 package net.jxta.impl.peergroup;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -92,6 +93,7 @@ import net.jxta.exception.ViolationException;
 import net.jxta.exception.JxtaException;
 
 import net.jxta.impl.cm.Cm;
+import net.jxta.impl.config.Config;
 
 /**
  * A subclass of GenericPeerGroup that makes a peer group out of independent
@@ -486,7 +488,12 @@ public class StdPeerGroup extends GenericPeerGroup implements CompatibilityEquat
         // Set-up the minimal GenericPeerGroup
         super.initFirst(parent, assignedID, impl);
         try {
-            cm = new Cm(true);
+            if (Boolean.valueOf(System.getProperty(Cm.PERSISTENT_PROPERTY)).booleanValue()) {
+                File storeHome = new File(Config.JXTA_HOME + "cm" + File.separator + getPeerGroupID().getUniqueValue().toString());
+                cm = new Cm(storeHome, Cm.DEFAULT_MAX_BYTES, true);
+            } else {
+                cm = new Cm(true);
+            }
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 LOG.error("Error during creation of local store", e);
@@ -70,6 +70,8 @@ import net.jxta.pipe.PipeID;
 import net.jxta.pipe.PipeMsgEvent;
 import net.jxta.pipe.PipeMsgListener;
 import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.util.AbstractSimpleSelectable;
+import net.jxta.util.SimpleSelectable;
 
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.impl.util.UnbiasedQueue;
@@ -77,8 +79,13 @@ import net.jxta.impl.util.UnbiasedQueue;
 /**
  *  Implements the {@link net.jxta.pipe.InputPipe} interface by listening on the
  *  endpoint for messages to service "PipeService" and a param of the Pipe ID.
+ *
+ *  <p/>A queue based input pipe is a {@link SimpleSelectable}: registered
+ *  selectors are notified whenever a message is queued or the pipe is
+ *  closed, so that a single thread may service many pipes with
+ *  <code>poll(-1)</code>, which does not block.
  */
-class InputPipeImpl implements EndpointListener, InputPipe {
+class InputPipeImpl extends AbstractSimpleSelectable implements EndpointListener, InputPipe {
 
     /**
      *  log4J logger
@@ -175,6 +182,9 @@ class InputPipeImpl implements EndpointListener, InputPipe {
         }
 
         closed = true;
+
+        // let selectors observe the closure.
+        notifyChange();
     }
 
     /**
@@ -298,6 +308,10 @@ class InputPipeImpl implements EndpointListener, InputPipe {
                 }
             }
 
+            if (pushed) {
+                notifyChange();
+            }
+
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 synchronized (this) {
                     LOG.debug("Queued " + msg + " for " + pipeID +
@@ -319,5 +333,12 @@ class InputPipeImpl implements EndpointListener, InputPipe {
     public Message waitForMessage() throws InterruptedException {
         return poll(0);
     }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void itemChanged(SimpleSelectable changedObject) {
+        notifyChange();
+    }
 }
 
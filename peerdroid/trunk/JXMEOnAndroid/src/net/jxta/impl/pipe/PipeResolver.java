@@ -82,7 +82,6 @@ import net.jxta.impl.cm.Srdi;
 import net.jxta.impl.cm.Srdi.SrdiInterface;
 import net.jxta.impl.protocol.PipeResolverMsg;
 import net.jxta.impl.protocol.ResolverQuery;
-import net.jxta.impl.protocol.SrdiMessageImpl;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
@@ -633,7 +632,8 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
     /**
      *  {@inheritDoc} <p/>
      *
-     *  This implementation knows nothing of deltas, it just pushes it all.
+     *  This implementation knows nothing of deltas, it hands all of the
+     *  entries to Srdi which skips those the rendezvous already has.
      */
     private void pushSrdi(PeerID peer, boolean all) {
 
@@ -665,16 +665,8 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
                 LOG.debug("Sending a Pipe SRDI messsage in " + myGroup.getPeerGroupID() + " of " + entries.size() + " entries of type " + type);
             }
 
-            SrdiMessage srdiMsg = new SrdiMessageImpl(myGroup.getPeerID(),
-                                                      1,
-                                                      // ttl
-                                                      type,
-                                                      entries);
-            if (null == peer) {
-                srdi.pushSrdi(null, srdiMsg);
-            } else {
-                srdi.pushSrdi(peer, srdiMsg);
-            }
+            // unchanged entries are only sent again when pushing all
+            srdi.pushEntries(peer, 1, type, entries, all);
         }
     }
 
@@ -700,20 +692,17 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
             }
             localInputPipes.remove(ip.getPipeID());
         }
-        SrdiMessage srdiMsg;
         try {
-            srdiMsg = new SrdiMessageImpl(myGroup.getPeerID(),
-                                          1,
-                                          // ttl
-                                          ip.getType(),
-                                          PipeAdvertisement.IdTag,
-                                          ip.getPipeID().toString(),
-                                          exp);
+            // Through Srdi's pushed state, so that a pipe which is closed
+            // and reopened is announced again, and a failed push is retried
+            // with the next deltas.
+            Vector entries = new Vector(1);
+            entries.add(new SrdiMessage.Entry(PipeAdvertisement.IdTag, ip.getPipeID().toString(), exp));
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Sending a Pipe SRDI messsage for pipe [" +
                            ip.getPipeID() +"] of type "+ ip.getType());
             }
-            srdi.pushSrdi((ID) null, srdiMsg);
+            srdi.pushEntries((ID) null, 1, ip.getType(), entries, false);
         } catch (Throwable e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Uncaught throwable pushing SRDI entries", e);
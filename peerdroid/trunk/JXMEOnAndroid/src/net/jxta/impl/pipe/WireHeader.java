@@ -58,6 +58,11 @@
 
 package net.jxta.impl.pipe;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Enumeration;
@@ -73,6 +78,10 @@ import net.jxta.document.MimeMediaType;
 import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.document.XMLElement;
+import net.jxta.document.XMLDocument;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 
@@ -81,11 +90,33 @@ import org.apache.log4j.Logger;
 
 /**
  * This class implements a JXTA-WIRE header.
+ *
+ * <p/>The header is read from either its XML encoding or its compact binary
+ * encoding, which is identified by the {@link #BINARY_MIME} mime type. Since
+ * the header travels unchanged to every member of the wire, the binary
+ * encoding is only sent when the <tt>net.jxta.impl.pipe.WireHeader.binary</tt>
+ * system property is <tt>true</tt>, i.e. when every peer of the group is
+ * known to understand it.
  */
 public class WireHeader {
 
     private final static Logger LOG = Logger.getLogger(WireHeader.class.getName());
 
+    /**
+     * The mime type of the binary encoding of the header.
+     */
+    public static final MimeMediaType BINARY_MIME = new MimeMediaType("application/x-jxta-wirehdr").intern();
+
+    /**
+     * The version of the binary encoding we produce.
+     */
+    public static final int BINARY_VERSION = 1;
+
+    /**
+     * If true then headers are sent using the binary encoding.
+     */
+    private static final boolean BINARY_ENCODING = Boolean.getBoolean("net.jxta.impl.pipe.WireHeader.binary");
+
     public static final String Name = "JxtaWire";
     public static final String MsgIdTag = "MsgId";
     public static final String PipeIdTag = "PipeId";
@@ -114,6 +145,61 @@ public class WireHeader {
         initialize(root);
     }
 
+    /**
+     *  Constructs a header from a message element containing either of its
+     *  encodings.
+     *
+     *  @param elem the message element.
+     *  @return the header.
+     *  @throws IOException if the element could not be read.
+     */
+    public static WireHeader fromMessageElement(MessageElement elem) throws IOException {
+        if (BINARY_MIME.equals(elem.getMimeType())) {
+            byte[] bytes = elem.getBytes(false);
+
+            return fromBytes(bytes, 0, bytes.length);
+        }
+
+        XMLDocument doc = (XMLDocument)
+                StructuredDocumentFactory.newStructuredDocument(elem.getMimeType(), elem.getStream());
+
+        return new WireHeader(doc);
+    }
+
+    /**
+     *  Constructs a header from its binary encoding.
+     *
+     *  @param buf the buffer containing the encoded header.
+     *  @param offset the offset of the encoded header within the buffer.
+     *  @param length the length of the encoded header.
+     *  @return the header.
+     *  @throws IOException if the encoding is invalid.
+     */
+    public static WireHeader fromBytes(byte[] buf, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+
+        int version = in.readUnsignedByte();
+
+        if (BINARY_VERSION != version) {
+            throw new IOException("Unsupported wire header version : " + version);
+        }
+
+        WireHeader result = new WireHeader();
+
+        try {
+            if (in.readBoolean()) {
+                result.setSrcPeer(IDFactory.fromURI(new URI(in.readUTF())));
+            }
+            result.setPipeID(IDFactory.fromURI(new URI(in.readUTF())));
+        } catch (URISyntaxException badID) {
+            throw new IOException("Bad ID in header");
+        }
+        result.setMsgId(in.readUTF());
+        result.setTTL(in.readInt());
+
+        return result;
+    }
+
     public void setSrcPeer(ID p) {
         srcPeer = p;
     }
@@ -256,6 +342,59 @@ public class WireHeader {
         }
     }
 
+    /**
+     *  Returns a message element containing this header. The binary encoding
+     *  is used if it is enabled, otherwise the XML encoding.
+     *
+     *  @param name the name of the element.
+     *  @return the message element.
+     */
+    public MessageElement toMessageElement(String name) {
+        if (BINARY_ENCODING) {
+            return new ByteArrayMessageElement(name, BINARY_MIME, toBytes(), null);
+        }
+
+        XMLDocument asDoc = (XMLDocument) getDocument(MimeMediaType.XMLUTF8);
+
+        return new TextDocumentMessageElement(name, asDoc, null);
+    }
+
+    /**
+     *  Returns the binary encoding of this header.
+     *
+     *  @return the binary encoding of this header.
+     */
+    public byte[] toBytes() {
+        if(null == getMsgId()) {
+            throw new IllegalStateException("Message id is not initialized");
+        }
+
+        if(ID.nullID == getPipeID()) {
+            throw new IllegalStateException("PipeID is not initialized");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(192);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(BINARY_VERSION);
+            boolean hasSrc = (srcPeer != null) && (srcPeer != ID.nullID);
+            out.writeBoolean(hasSrc);
+            if (hasSrc) {
+                out.writeUTF(srcPeer.toString());
+            }
+            out.writeUTF(getPipeID().toString());
+            out.writeUTF(getMsgId());
+            out.writeInt(TTL);
+            out.flush();
+        } catch (IOException never) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException("Could not encode wire header");
+        }
+
+        return bytes.toByteArray();
+    }
+
     /**
      *  {@inheritDoc}
      */
@@ -56,25 +56,21 @@
 package net.jxta.impl.pipe;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
-import net.jxta.document.MimeMediaType;
-import net.jxta.document.StructuredDocumentFactory;
-import net.jxta.document.XMLDocument;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
-import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.ID;
 import net.jxta.impl.id.UUID.UUID;
 import net.jxta.impl.id.UUID.UUIDFactory;
+import net.jxta.impl.util.DuplicateFilter;
+import net.jxta.impl.util.TimeUtils;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.pipe.InputPipe;
 import net.jxta.pipe.PipeService;
@@ -94,38 +90,20 @@ public class WirePipe implements EndpointListener, InputPipe, PipeRegistrar {
      */
     private final static transient Logger LOG = Logger.getLogger(WirePipe.class.getName());
 
-    private final static int MAX_RECORDED_MSGIDS = 250;
+    private final static int MAX_RECORDED_MSGIDS = 4096;
+
+    /**
+     *  How long we remember the ids of the messages we have seen.
+     */
+    private final static long MSGID_WINDOW = 2 * TimeUtils.AMINUTE;
 
     private volatile boolean closed = false;
     private final String localPeerId;
 
     /**
-     *  The list of message ids we have already seen. The most recently seen
-     *  messages are at the end of the list. <p/>
-     *
-     *
-     *  <ul>
-     *    <li> Values are {@link net.jxta.impl.id.UUID.UUID}.</li>
-     *  </ul>
-     *  <p/>
-     *
-     *  XXX 20031102 bondolo@jxta.org: We might want to consider three
-     *  performance enhancements:
-     *  <ul>
-     *    <li> Reverse the order of elements in the list. This would result in
-     *    faster searching since the default strategy for ArrayList to search in
-     *    index order. We are most likely to see duplicate messages amongst the
-     *    messages we have seen recently. This would make additions more costly.
-     *    </li>
-     *    <li> When we do find a duplicate in the list, exchange it's location
-     *    with the newest message in the list. This will keep annoying dupes
-     *    close to the start of the list.</li>
-     *    <li> When the array reaches MaxNbOfStoredIds treat it as a ring.</li>
-     *
-     *  </ul>
-     *
+     *  The ids of the messages we have recently seen.
      */
-    private List msgIds = new ArrayList(MAX_RECORDED_MSGIDS);
+    private final DuplicateFilter msgIds = new DuplicateFilter(MSGID_WINDOW, MAX_RECORDED_MSGIDS);
 
     private PeerGroup myGroup = null;
 
@@ -356,9 +334,7 @@ public class WirePipe implements EndpointListener, InputPipe, PipeRegistrar {
 
         WireHeader header;
         try {
-            XMLDocument doc = (XMLDocument)
-                              StructuredDocumentFactory.newStructuredDocument(elem.getMimeType(), elem.getStream());
-            header = new WireHeader(doc);
+            header = WireHeader.fromMessageElement(elem);
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("bad wire header", e);
@@ -428,24 +404,12 @@ public class WirePipe implements EndpointListener, InputPipe, PipeRegistrar {
             }
         }
 
-        synchronized (msgIds) {
-            if (msgIds.contains(msgid)) {
-                // Already there. Nothing to do
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("duplicate " + msgid);
-                }
-                return true;
-            }
-
-            if (msgIds.size() >= MAX_RECORDED_MSGIDS) {
-                // The cache is full. Remove the oldest
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Remove oldest id");
-                }
-                msgIds.remove(0);
+        if (!msgIds.add(msgid)) {
+            // Already there. Nothing to do
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("duplicate " + msgid);
             }
-
-            msgIds.add(msgid);
+            return true;
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -489,8 +453,7 @@ public class WirePipe implements EndpointListener, InputPipe, PipeRegistrar {
     void repropagate(Message message, WireHeader header) {
 
         Message msg = (Message) message.clone();
-        XMLDocument headerDoc = (XMLDocument) header.getDocument(MimeMediaType.XMLUTF8);
-        MessageElement elem = new TextDocumentMessageElement(WirePipeImpl.WireTagName, headerDoc, null);
+        MessageElement elem = header.toMessageElement(WirePipeImpl.WireTagName);
         msg.replaceMessageElement("jxta", elem);
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -63,8 +63,6 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import net.jxta.document.AdvertisementFactory;
-import net.jxta.document.XMLDocument;
-import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.Message;
@@ -235,9 +233,7 @@ public class WirePipeImpl implements EndpointListener {
 
         WireHeader header;
         try {
-            XMLDocument doc = (XMLDocument)
-                    StructuredDocumentFactory.newStructuredDocument(elem.getMimeType(), elem.getStream());
-            header = new WireHeader(doc);
+            header = WireHeader.fromMessageElement(elem);
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("bad wire header", e);
@@ -78,6 +78,7 @@ import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.document.TextElement;
 import net.jxta.document.XMLDocument;
+import net.jxta.impl.document.XMLPullReader;
 import net.jxta.protocol.DiscoveryResponseMsg;
 import net.jxta.protocol.PeerAdvertisement;
 import org.apache.log4j.Level;
@@ -164,6 +165,29 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
         readIt(doc);
     }
 
+    /**
+     *  Construct from a streaming reader positioned at the start of the
+     *  document or on the root start tag. The document is read without
+     *  building a document tree.
+     *
+     *@param  reader  the reader.
+     */
+    public DiscoveryResponse(XMLPullReader reader) {
+
+        if (XMLPullReader.START_DOCUMENT == reader.getEventType()) {
+            if (!reader.nextStartElement()) {
+                throw new IllegalArgumentException("Could not construct : " + getClass().getName() + " from empty document");
+            }
+        }
+        String docName = reader.getName();
+        if (!getAdvertisementType().equals(docName)) {
+            throw new IllegalArgumentException("Could not construct : " +
+                                               getClass().getName() + " from doc containing a " +
+                                               docName);
+        }
+        readIt(reader);
+    }
+
 
     /**
      * {@inheritDoc}
@@ -390,6 +414,89 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
     }
 
 
+    /**
+     *  Parses the children of the root element from a streaming reader into
+     *  this object.
+     *
+     *@param  reader  reader positioned on the root start tag
+     */
+    private void readIt(XMLPullReader reader) {
+        Vector res = new Vector();
+        Vector exps = new Vector();
+
+        try {
+            while (XMLPullReader.START_ELEMENT == reader.next()) {
+                String name = reader.getName();
+                if (name.equals(typeTag)) {
+                    type = Integer.parseInt(reader.getElementText());
+                    continue;
+                }
+
+                if (name.equals(peerAdvTag)) {
+                    String peerString = reader.getElementText();
+
+                    if((null != peerString) && (peerString.length() > 0)) {
+                        setPeerAdvertisement((PeerAdvertisement)
+                                              AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new StringReader(peerString)));
+                    }
+                    continue;
+                }
+
+                if (name.equals(queryAttrTag)) {
+                    setQueryAttr(reader.getElementText());
+                    continue;
+                }
+
+                if (name.equals(queryValueTag)) {
+                    setQueryValue(reader.getElementText());
+                    continue;
+                }
+
+                if (name.equals(responsesTag)) {
+                    // the attribute must be read before the text.
+                    String expAttr = reader.getAttributeValue(expirationTag);
+                    String aResponse = reader.getElementText();
+
+                    if (null == aResponse) {
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("Discarding an empty response tag");
+                        }
+                        continue;
+                    }
+                    res.add(aResponse);
+
+                    long exp;
+                    if (null != expAttr) {
+                        exp = Long.parseLong(expAttr);
+                    } else {
+                        // if there are no attribute use DEFAULT_EXPIRATION
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("Received an old-style DiscoveryResponse.\n " +
+                                      "You received a response from a peer that does \n" +
+                                      "not support advertisement aging. \n" +
+                                      "Setting expiration to DiscoveryService.DEFAULT_EXPIRATION ");
+                        }
+                        exp = DiscoveryService.DEFAULT_EXPIRATION;
+                    }
+
+                    exps.add(new Long(exp));
+                    continue;
+                }
+
+                reader.skipElement();
+            }
+        } catch (Exception failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Got an Exception during Parse ", failed);
+            }
+            IllegalArgumentException failure = new IllegalArgumentException("Got an Exception during parse");
+            failure.initCause(failed);
+            throw failure;
+        }
+        setResponses(res);
+        setExpirations(exps);
+    }
+
     /**
      *  Reads in a stream into a string
      *
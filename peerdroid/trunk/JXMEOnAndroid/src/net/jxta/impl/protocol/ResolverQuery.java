@@ -66,6 +66,7 @@ import net.jxta.document.StructuredDocumentUtils;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.document.TextElement;
 import net.jxta.document.XMLElement;
+import net.jxta.impl.document.XMLPullReader;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverResponseMsg;
 import net.jxta.protocol.RouteAdvertisement;
@@ -178,6 +179,36 @@ public class ResolverQuery extends ResolverQueryMsg implements Cloneable {
         }
     }
 
+    /**
+     * Construct from a streaming reader positioned at the start of the
+     * document or on the root start tag.
+     *
+     * @param reader
+     */
+    public ResolverQuery(XMLPullReader reader) {
+
+        this();
+        if (XMLPullReader.START_DOCUMENT == reader.getEventType()) {
+            if (!reader.nextStartElement()) {
+                throw new IllegalArgumentException("Could not construct : " + getClass().getName() + "from empty document");
+            }
+        }
+
+        String doctype = reader.getName();
+        if (!getAdvertisementType().equals(doctype)) {
+            throw new IllegalArgumentException("Could not construct : " + getClass().getName() + "from doc containing a " + doctype);
+        }
+        readIt(reader);
+
+        // sanity check!
+        if (null == getHandlerName()) {
+            throw new IllegalArgumentException("Query message does not contain a handler name");
+        }
+        if (null == getQuery()) {
+            throw new IllegalArgumentException("Query message does not contain a query");
+        }
+    }
+
     /**
      * parses an XML document into this object
      * @param doc
@@ -238,6 +269,65 @@ public class ResolverQuery extends ResolverQueryMsg implements Cloneable {
         }
     }
 
+    /**
+     * parses the children of the root element from a streaming reader into
+     * this object. Only the credential and the source route are built as
+     * document trees.
+     *
+     * @param reader reader positioned on the root start tag
+     */
+    public void readIt(XMLPullReader reader) {
+
+        while (XMLPullReader.START_ELEMENT == reader.next()) {
+            String name = reader.getName();
+            if (name.equals(handlernameTag)) {
+                setHandlerName(reader.getElementText());
+                continue;
+            }
+            // Set credential
+            if (name.equals(credentialTag)) {
+                setCredential(reader.getElementAsDocument());
+                continue;
+            }
+            // Set queryid
+            if (name.equals(queryIdTag)) {
+                queryid = Integer.parseInt(reader.getElementText());
+                continue;
+            }
+
+            // Set source route
+            if (name.equals(srcRouteTag)) {
+                while (XMLPullReader.START_ELEMENT == reader.next()) {
+                    RouteAdvertisement routeAdv = (RouteAdvertisement)
+                                                  AdvertisementFactory.newAdvertisement(reader.getElementAsDocument());
+
+                    setSrcPeerRoute(routeAdv);
+                    setSrc(routeAdv.getDestPeerID().toString());
+                }
+                continue;
+            }
+
+            // Set hopcount
+            if (name.equals(hopCountTag)) {
+                setHopCount(Integer.parseInt(reader.getElementText()));
+                continue;
+            }
+
+            // Set source peer
+            if (name.equals(srcPeerIdTag)) {
+                setSrc(reader.getElementText());
+                continue;
+            }
+            // Set query
+            if (name.equals(queryTag)) {
+                setQuery(reader.getElementText());
+                continue;
+            }
+
+            reader.skipElement();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
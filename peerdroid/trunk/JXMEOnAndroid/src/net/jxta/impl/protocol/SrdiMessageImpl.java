@@ -67,6 +67,7 @@ import java.net.URISyntaxException;
 
 import net.jxta.document.*;
 import net.jxta.id.IDFactory;
+import net.jxta.impl.document.XMLPullReader;
 import net.jxta.peer.PeerID;
 import net.jxta.protocol.SrdiMessage;
 
@@ -137,9 +138,11 @@ public class SrdiMessageImpl extends SrdiMessage {
 
         // We are asked to assume that the message from which this response
         // is constructed is an XML document.
-        XMLDocument doc = (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, stream);
+        XMLPullReader reader = new XMLPullReader(MimeMediaType.XMLUTF8, stream);
 
-        readIt(doc);
+        if (reader.nextStartElement()) {
+            readIt(reader);
+        }
     }
 
     /**
@@ -170,6 +173,34 @@ public class SrdiMessageImpl extends SrdiMessage {
         readIt(doc);
     }
 
+    /**
+     *  Construct from a streaming reader positioned at the start of the
+     *  document or on the root start tag.
+     *
+     *@param  reader  the reader
+     */
+    public SrdiMessageImpl(XMLPullReader reader) {
+        if (XMLPullReader.START_DOCUMENT == reader.getEventType()) {
+            if (!reader.nextStartElement()) {
+                throw new IllegalArgumentException(getClass().getName() + " from empty document");
+            }
+        }
+
+        String doctype = reader.getName();
+
+        String typedoctype = reader.getAttributeValue("type");
+
+        if (null == typedoctype) {
+            typedoctype = "";
+        }
+
+        if (!doctype.equals(getMessageType()) && !getMessageType().equals(typedoctype)) {
+            throw new IllegalArgumentException("Could not construct : " + getClass().getName() + "from doc containing a " + doctype);
+        }
+
+        readIt(reader);
+    }
+
     /**
      *  Construct a msg from entries
      *
@@ -351,6 +382,59 @@ public class SrdiMessageImpl extends SrdiMessage {
         }
     }
 
+    /**
+     *@param  reader  reader positioned on the root start tag
+     */
+    public void readIt(XMLPullReader reader) {
+
+        while (XMLPullReader.START_ELEMENT == reader.next()) {
+            String name = reader.getName();
+
+            if (name.equals(pidTag)) {
+                try {
+                    URI pID = new URI(reader.getElementText());
+
+                    setPeerID((PeerID) IDFactory.fromURI(pID));
+                } catch (URISyntaxException badID) {
+                    throw new IllegalArgumentException("Invalid PeerID ID in message");
+                }
+                continue;
+            }
+            if (name.equals(pKeyTag)) {
+                setPrimaryKey(reader.getElementText());
+                continue;
+            }
+            if (name.equals(ttlTag)) {
+                setTTL(Integer.parseInt(reader.getElementText()));
+                continue;
+            }
+
+            if (name.equals(entryTag)) {
+                String key = reader.getAttributeValue(sKeyTag);
+
+                if (key == null) {
+                    key = "NA";
+                }
+
+                String expstr = reader.getAttributeValue(expirationTag);
+                String value = reader.getElementText();
+
+                if (null != value) {
+                    long expiration = (null != expstr) ? Long.parseLong(expstr) : -1;
+
+                    addEntry(new SrdiMessage.Entry(key, value, expiration));
+                } else {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("SrdiMessage Entry with a Null value");
+                    }
+                }
+                continue;
+            }
+
+            reader.skipElement();
+        }
+    }
+
     /**
      *  returns the document string representation of this object
      *
@@ -92,6 +92,12 @@ public abstract class PeerConnection implements OutgoingMessageEventListener {
      *  If true then we believe we are still connected to the remote peer.
      */
     protected volatile boolean connected = true;
+
+    /**
+     *  If true then the remote peer has declared that it understands the
+     *  binary encoding of the propagate header.
+     */
+    protected volatile boolean binaryPropHeader = false;
     /**
      *  Description of the Field
      */
@@ -398,6 +404,29 @@ public abstract class PeerConnection implements OutgoingMessageEventListener {
     }
 
 
+    /**
+     *  Returns true if the remote peer understands the binary encoding of the
+     *  propagate header.
+     *
+     *@return    true if the remote peer understands the binary encoding of
+     *      the propagate header.
+     */
+    public boolean isBinaryPropHeader() {
+        return binaryPropHeader;
+    }
+
+
+    /**
+     *  Declare whether the remote peer understands the binary encoding of the
+     *  propagate header.
+     *
+     *@param  binary  true if the remote peer understands the binary encoding.
+     */
+    public void setBinaryPropHeader(boolean binary) {
+        binaryPropHeader = binary;
+    }
+
+
     /**
      *  Set the connection state. This operation must be idempotent.
      *
@@ -55,6 +55,11 @@
  */
 package net.jxta.impl.rendezvous;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
@@ -79,8 +84,25 @@ import net.jxta.impl.id.UUID.UUIDFactory;
 
 /**
  *  This class defines the wire format of the Propagation header for messages.
+ *  <p/>
+ *
+ *  The header has two encodings, the XML document returned by {@link
+ *  #getDocument(MimeMediaType)} and a compact binary encoding returned by
+ *  {@link #toBytes()} which is identified by the {@link #BINARY_MIME} mime
+ *  type. Peers only use the binary encoding with peers which have declared
+ *  that they understand it.
  */
 public class RendezVousPropagateMessage {
+
+    /**
+     *  The mime type of the binary encoding of the header.
+     */
+    public final static MimeMediaType BINARY_MIME = new MimeMediaType("application/x-jxta-rdvprop").intern();
+
+    /**
+     *  The version of the binary encoding we produce.
+     */
+    public final static int BINARY_VERSION = 1;
     /**
      *  Description of the Field
      */
@@ -180,6 +202,49 @@ public class RendezVousPropagateMessage {
         }
     }
 
+    /**
+     *  Constructs a header from its binary encoding.
+     *
+     *@param  buf     the buffer containing the encoded header.
+     *@param  offset  the offset of the encoded header within the buffer.
+     *@param  length  the length of the encoded header.
+     *@return         the header.
+     *@throws  IllegalArgumentException  if the encoding is invalid.
+     */
+    public static RendezVousPropagateMessage fromBytes(byte[] buf, int offset, int length) {
+        RendezVousPropagateMessage result = new RendezVousPropagateMessage();
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+
+            int version = in.readUnsignedByte();
+
+            if (BINARY_VERSION != version) {
+                throw new IllegalArgumentException("Unsupported propagate header version : " + version);
+            }
+
+            result.msgId = new UUID(in.readLong(), in.readLong());
+            result.TTL = in.readInt();
+            result.destSName = in.readUTF();
+            if (in.readBoolean()) {
+                result.destSParam = in.readUTF();
+            }
+
+            int pathLength = in.readUnsignedShort();
+
+            for (int eachHop = 0; eachHop < pathLength; eachHop++) {
+                result.addVisited(URI.create(in.readUTF()));
+            }
+        } catch (IOException truncated) {
+            IllegalArgumentException failure = new IllegalArgumentException("Truncated propagate header");
+
+            failure.initCause(truncated);
+            throw failure;
+        }
+
+        return result;
+    }
+
     /**
      *  Adds a location to the Visited Set
      *
@@ -266,6 +331,60 @@ public class RendezVousPropagateMessage {
         return doc;
     }
 
+    /**
+     *  Returns the binary encoding of this header.
+     *
+     *@return    the binary encoding of this header.
+     */
+    public byte[] toBytes() {
+
+        // Sanity Check!!!
+
+        if (getTTL() <= 0) {
+            throw new IllegalStateException("TTL value < 1");
+        }
+
+        if (null == destSName) {
+            throw new IllegalStateException("Destination service name uninitialized");
+        }
+
+        if (null == msgId) {
+            throw new IllegalStateException("Message id uninitialized");
+        }
+
+        if (visited.isEmpty()) {
+            throw new IllegalStateException("Message has not visited local peer.");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * visited.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(BINARY_VERSION);
+            out.writeLong(msgId.getMostSignificantBits());
+            out.writeLong(msgId.getLeastSignificantBits());
+            out.writeInt(TTL);
+            out.writeUTF(destSName);
+            out.writeBoolean(null != destSParam);
+            if (null != destSParam) {
+                out.writeUTF(destSParam);
+            }
+            out.writeShort(visited.size());
+
+            Iterator eachVisited = visited.iterator();
+
+            while (eachVisited.hasNext()) {
+                out.writeUTF(eachVisited.next().toString());
+            }
+            out.flush();
+        } catch (IOException never) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException("Could not encode propagate header");
+        }
+
+        return bytes.toByteArray();
+    }
+
     /**
      *  Gets the msgId attribute of the RendezVousPropagateMessage object
      *
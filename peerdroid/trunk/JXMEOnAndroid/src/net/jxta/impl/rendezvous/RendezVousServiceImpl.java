@@ -86,6 +86,8 @@ import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.EndpointService;
 import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.endpoint.Message;
 import net.jxta.id.ID;
@@ -142,6 +144,11 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      *  Description of the Field
      */
     public final static String ConnectedRdvAdvReply = "RdvAdvReply";
+    /**
+     *  Element of connect requests and replies by which a peer declares the
+     *  version of the binary propagate header encoding it understands.
+     */
+    public final static String BinaryPropHeaderElement = "BinaryPropHeader";
     // 5 Minutes
 
     private final static double DEMOTION_FACTOR = 0.05;
@@ -170,9 +177,14 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     protected final static int MAX_INFRA_TTL = 2;
     /**
-     *  Description of the Field
+     *  The maximum number of propagated message ids we remember.
+     */
+    protected final static int MAX_MSGIDS = 8192;
+
+    /**
+     *  How long we remember propagated message ids.
      */
-    protected final static int MAX_MSGIDS = 100;
+    protected final static long MSGID_WINDOW = 2 * TimeUtils.AMINUTE;
 
     /**
      *  Number of rendezvous we will try to connect to.
@@ -230,7 +242,6 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
     private transient PeerGroup group = null;
     private transient ModuleImplAdvertisement implAdvertisement = null;
     private transient long maxChoiceDelay = ADDEVENT_DELAY;
-    private transient int messagesReceived;
 
     /**
      *  Once choice delay has reached zero, any ADD event could trigger a
@@ -251,7 +262,10 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     private transient long monitorStartAt = -1;
 
-    private transient final List msgIds = new ArrayList(MAX_MSGIDS);
+    /**
+     *  The ids of the propagated messages we have recently seen.
+     */
+    private transient final DuplicateFilter msgIds = new DuplicateFilter(MSGID_WINDOW, MAX_MSGIDS);
 
     /**
      *  Description of the Field
@@ -302,19 +316,12 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     public boolean addMsgId(UUID id) {
 
-        synchronized (msgIds) {
-            if (isMsgIdRecorded(id)) {
-                // Already there. Nothing to do
-                return false;
-            }
-
-            if (msgIds.size() < MAX_MSGIDS) {
-                msgIds.add(id);
-            } else {
-                msgIds.set((messagesReceived % MAX_MSGIDS), id);
+        if (!msgIds.add(id)) {
+            // Already there. Nothing to do
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug(id + " = true");
             }
-
-            messagesReceived++;
+            return false;
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -380,7 +387,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      *@param  padv   PeerAdvertisement for the rendezvous peer.
      *@param  lease  The duration of the lease in relative milliseconds.
      */
-    private void addRdv(PeerAdvertisement padv, long lease) {
+    private void addRdv(PeerAdvertisement padv, long lease, boolean binaryPropHeader) {
 
         int eventType;
 
@@ -397,6 +404,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
                 eventType = RendezvousEvent.RDVRECONNECT;
             }
         }
+        rdvConnection.setBinaryPropHeader(binaryPropHeader);
         rdvConnection.connect(padv, lease, Math.min(LEASE_MARGIN, (lease / 2)));
         generateEvent(eventType, padv.getPeerID());
     }
@@ -832,6 +840,12 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
             return null;
         }
 
+        if (RendezVousPropagateMessage.BINARY_MIME.equals(elem.getMimeType())) {
+            byte[] bytes = elem.getBytes(false);
+
+            return RendezVousPropagateMessage.fromBytes(bytes, 0, bytes.length);
+        }
+
         try {
             StructuredDocument asDoc = StructuredDocumentFactory.newStructuredDocument(elem.getMimeType(), elem.getStream());
 
@@ -961,11 +975,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     public boolean isMsgIdRecorded(UUID id) {
 
-        boolean found;
-
-        synchronized (msgIds) {
-            found = msgIds.contains(id);
-        }
+        boolean found = msgIds.contains(id);
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug(id + " = " + found);
@@ -1018,7 +1028,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
 
         EndpointAddress addr = new EndpointAddress(MESSAGE_NAMESPACE_NAME, destPeer.getUniqueValue().toString(), serv, parm);
 
-        return addr;
+        return addr.intern();
     }
 
 
@@ -1048,6 +1058,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
         Message msg = new Message();
         // The request simply includes the local peer advertisement.
         msg.replaceMessageElement("jxta", new TextDocumentMessageElement(ConnectRequest, getPeerAdvertisementDoc(), null));
+        addBinaryPropHeaderElement(msg);
         messenger.sendMessage(msg, pName, pParam);
     }
 
@@ -1265,7 +1276,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
         } else {
             if (rendezVous.containsKey(pId)
                      || ((rendezVous.size() < MAX_RDV_CONNECTIONS) && (rpv.getPeerViewElement(pId) != null))) {
-                addRdv(padv, lease);
+                addRdv(padv, lease, hasBinaryPropHeaderElement(msg));
             } else {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     // XXX bondolo 20040423 perhaps we should send a disconnect here.
@@ -1631,10 +1642,45 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
         Message msg = new Message();
         // The request simply includes the local peer advertisement.
         msg.replaceMessageElement("jxta", new TextDocumentMessageElement(ConnectRequest, getPeerAdvertisementDoc(), null));
+        addBinaryPropHeaderElement(msg);
         pConn.sendMessage(msg, pName, pParam);
     }
 
 
+    /**
+     *  Declares in the given connect message that we understand the binary
+     *  encoding of the propagate header. Peers which do not know about the
+     *  binary encoding ignore the element.
+     *
+     *@param  msg  the connect request or reply.
+     */
+    private static void addBinaryPropHeaderElement(Message msg) {
+        msg.replaceMessageElement("jxta", new StringMessageElement(BinaryPropHeaderElement, Integer.toString(RendezVousPropagateMessage.BINARY_VERSION), null));
+    }
+
+
+    /**
+     *  Returns true if the given connect message declares that the sender
+     *  understands our binary encoding of the propagate header.
+     *
+     *@param  msg  the connect request or reply.
+     *@return      true if the sender understands the binary propagate header.
+     */
+    private static boolean hasBinaryPropHeaderElement(Message msg) {
+        MessageElement elem = msg.getMessageElement("jxta", BinaryPropHeaderElement);
+
+        if (null == elem) {
+            return false;
+        }
+
+        try {
+            return Integer.parseInt(elem.toString().trim()) >= RendezVousPropagateMessage.BINARY_VERSION;
+        } catch (NumberFormatException bad) {
+            return false;
+        }
+    }
+
+
     /**
      *  Sends to all connected peers. <p/>
      *
@@ -1647,6 +1693,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
     protected int sendToEachConnection(Message msg, RendezVousPropagateMessage propHdr) {
 
         int sentToPeers = 0;
+        Message binaryMsg = null;
 
         List peers = Arrays.asList(getPeerConnections());
         Iterator eachClient = peers.iterator();
@@ -1674,7 +1721,23 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Sending " + msg + "(" + propHdr.getMsgId() + ") to " + pConn);
             }
-            if (pConn.sendMessage((Message) msg.clone(), PropSName, PropPName)) {
+            Message sendMsg;
+
+            if (pConn.isBinaryPropHeader()) {
+                // Peers which understand the binary header get it instead of the XML one.
+                if (null == binaryMsg) {
+                    binaryMsg = (Message) msg.clone();
+                    byte[] bytes = propHdr.toBytes();
+
+                    binaryMsg.replaceMessageElement(MESSAGE_NAMESPACE_NAME,
+                            new ByteArrayMessageElement(HEADER_NAME, RendezVousPropagateMessage.BINARY_MIME, bytes, null));
+                }
+                sendMsg = (Message) binaryMsg.clone();
+            } else {
+                sendMsg = (Message) msg.clone();
+            }
+
+            if (pConn.sendMessage(sendMsg, PropSName, PropPName)) {
                 sentToPeers++;
             }
         }
@@ -105,6 +105,7 @@ import net.jxta.resolver.ResolverService;
 import net.jxta.resolver.SrdiHandler;
 import net.jxta.service.Service;
 
+import net.jxta.impl.document.XMLPullReader;
 import net.jxta.impl.endpoint.router.EndpointRouter;
 import net.jxta.impl.endpoint.router.RouteControl;
 import net.jxta.impl.protocol.ResolverQuery;
@@ -563,11 +564,11 @@ public class ResolverServiceImpl implements ResolverService {
     /**
      * {@inheritDoc}
      */
-    public void sendSrdi(String destPeer, ResolverSrdiMsg srdi) {
+    public boolean sendSrdi(String destPeer, ResolverSrdiMsg srdi) {
         String srdiHandlerName = srdi.getHandlerName();
         if (destPeer == null) {
             if (rendezvous == null) {
-                return;
+                return false;
             }
             Message propagateMsg = new Message();
 
@@ -586,14 +587,16 @@ public class ResolverServiceImpl implements ResolverService {
 
                 // propagate to local net as well
                 rendezvous.propagateToNeighbors(propagateMsg, handlerName, srdiQueName, 2);
+                return true;
             } catch (IOException e) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Failure sending srdi message", e);
                 }
+                return false;
             }
         } else {
             try {
-                boolean success = sendMessage(destPeer,
+                return sendMessage(destPeer,
                                               handlerName,
                                               srdiQueName,
                                               srdiQueName,
@@ -604,6 +607,7 @@ public class ResolverServiceImpl implements ResolverService {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Error in sending srdi message", e);
                 }
+                return false;
             }
         }
     }
@@ -899,8 +903,14 @@ public class ResolverServiceImpl implements ResolverService {
             ResolverQueryMsg query;
 
             try {
-                StructuredDocument asDoc = StructuredDocumentFactory.newStructuredDocument(element.getMimeType(), element.getStream());
-                query = new ResolverQuery(asDoc);
+                MimeMediaType type = element.getMimeType();
+
+                if (MimeMediaType.XML_DEFAULTENCODING.equalsIngoringParams(type)) {
+                    query = new ResolverQuery(new XMLPullReader(type, element.getStream()));
+                } else {
+                    StructuredDocument asDoc = StructuredDocumentFactory.newStructuredDocument(type, element.getStream());
+                    query = new ResolverQuery(asDoc);
+                }
             } catch (IOException e) {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Ill formatted resolver query, ignoring.", e);
@@ -0,0 +1,242 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  Remembers the identifiers of recently seen messages in order to detect
+ *  duplicates. Identifiers are kept for a time window rather than for a
+ *  fixed number of messages so that bursts of traffic do not flush
+ *  identifiers which may still be received again. A maximum number of
+ *  identifiers bounds the memory used; when it is reached the oldest
+ *  identifiers are forgotten early. <p/>
+ *
+ *  Identifiers are held in a hash set for constant time lookup and in a ring
+ *  ordered by arrival time for eviction. The ring grows as needed up to the
+ *  maximum number of identifiers.
+ */
+public final class DuplicateFilter {
+
+    /**
+     *  The initial capacity of the ring.
+     */
+    private final static int INITIAL_CAPACITY = 64;
+
+    /**
+     *  How long identifiers are remembered, in relative milliseconds.
+     */
+    private final long window;
+
+    /**
+     *  The maximum number of identifiers remembered.
+     */
+    private final int maxEntries;
+
+    /**
+     *  The identifiers currently remembered.
+     */
+    private final Set seen = new HashSet();
+
+    /**
+     *  The identifiers in the order they were recorded.
+     */
+    private Object[] ids = new Object[INITIAL_CAPACITY];
+
+    /**
+     *  The absolute time at which each identifier in {@link #ids} was
+     *  recorded.
+     */
+    private long[] times = new long[INITIAL_CAPACITY];
+
+    /**
+     *  Index of the oldest identifier in the ring.
+     */
+    private int head = 0;
+
+    /**
+     *  Number of identifiers in the ring.
+     */
+    private int count = 0;
+
+    /**
+     *  Creates a new duplicate filter.
+     *
+     *  @param window how long identifiers are remembered, in relative
+     *  milliseconds.
+     *  @param maxEntries the maximum number of identifiers remembered.
+     */
+    public DuplicateFilter(long window, int maxEntries) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.window = window;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     *  Records an identifier unless it was already seen within the window.
+     *
+     *  @param id the identifier.
+     *  @return true if the identifier was recorded, false if it is a
+     *  duplicate.
+     */
+    public synchronized boolean add(Object id) {
+        long now = TimeUtils.timeNow();
+
+        expire(now);
+
+        if (seen.contains(id)) {
+            return false;
+        }
+
+        if (count == maxEntries) {
+            removeOldest();
+        } else if (count == ids.length) {
+            grow();
+        }
+
+        int tail = (head + count) % ids.length;
+
+        ids[tail] = id;
+        times[tail] = now;
+        count++;
+        seen.add(id);
+
+        return true;
+    }
+
+    /**
+     *  Returns true if the identifier was seen within the window.
+     *
+     *  @param id the identifier.
+     *  @return true if the identifier was seen within the window.
+     */
+    public synchronized boolean contains(Object id) {
+        expire(TimeUtils.timeNow());
+
+        return seen.contains(id);
+    }
+
+    /**
+     *  Returns the number of identifiers currently remembered.
+     *
+     *  @return the number of identifiers currently remembered.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     *  Forgets all identifiers.
+     */
+    public synchronized void clear() {
+        seen.clear();
+        ids = new Object[INITIAL_CAPACITY];
+        times = new long[INITIAL_CAPACITY];
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     *  Forgets the identifiers recorded before the window.
+     *
+     *  @param now the current absolute time.
+     */
+    private void expire(long now) {
+        long oldest = now - window;
+
+        while ((count > 0) && (times[head] <= oldest)) {
+            removeOldest();
+        }
+    }
+
+    /**
+     *  Forgets the oldest identifier.
+     */
+    private void removeOldest() {
+        seen.remove(ids[head]);
+        ids[head] = null;
+        head = (head + 1) % ids.length;
+        count--;
+    }
+
+    /**
+     *  Doubles the capacity of the ring, without exceeding the maximum number
+     *  of identifiers.
+     */
+    private void grow() {
+        int capacity = Math.min(ids.length * 2, maxEntries);
+        Object[] newIds = new Object[capacity];
+        long[] newTimes = new long[capacity];
+
+        for (int each = 0; each < count; each++) {
+            int from = (head + each) % ids.length;
+
+            newIds[each] = ids[from];
+            newTimes[each] = times[from];
+        }
+
+        ids = newIds;
+        times = newTimes;
+        head = 0;
+    }
+}
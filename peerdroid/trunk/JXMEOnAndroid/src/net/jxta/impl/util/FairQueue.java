@@ -0,0 +1,173 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ *  A queue which serves its objects fairly among their sources. Each source
+ *  has its own FIFO queue and the sources which have objects waiting are
+ *  served in round robin order, one object at a time. A source sending a
+ *  burst thus only delays its own objects, not those of the other sources.
+ *
+ *  <p/>This queue is synchronized.
+ */
+public class FairQueue {
+
+    /**
+     *  The queues of the sources which have objects waiting. Keys are the
+     *  sources, values are {@link LinkedList}.
+     */
+    private final Map queues = new HashMap();
+
+    /**
+     *  The sources which have objects waiting, in the order they will be
+     *  served.
+     */
+    private final LinkedList ready = new LinkedList();
+
+    private int inQueue = 0;
+
+    private boolean closed = false;
+
+    /**
+     *  Returns true if the queue has been closed.
+     *
+     *  @return true if the queue has been closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     *  Closes the queue. Objects already queued may still be popped.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     *  Adds an object at the end of the queue of its source.
+     *
+     *  @param source the source of the object. Sources are compared with
+     *  {@link Object#equals(Object)}.
+     *  @param obj the object.
+     *  @return true if the object was queued, false if the queue is closed.
+     */
+    public synchronized boolean push(Object source, Object obj) {
+        if (closed) {
+            return false;
+        }
+
+        LinkedList queue = (LinkedList) queues.get(source);
+
+        if (null == queue) {
+            queue = new LinkedList();
+            queues.put(source, queue);
+            ready.addLast(source);
+        }
+
+        queue.addLast(obj);
+        inQueue++;
+
+        return true;
+    }
+
+    /**
+     *  Removes the first object of the next source to be served.
+     *
+     *  @return the object or <code>null</code> if the queue is empty.
+     */
+    public synchronized Object pop() {
+        if (ready.isEmpty()) {
+            return null;
+        }
+
+        Object source = ready.removeFirst();
+        LinkedList queue = (LinkedList) queues.get(source);
+        Object obj = queue.removeFirst();
+
+        if (queue.isEmpty()) {
+            queues.remove(source);
+        } else {
+            // Back to the end of the line.
+            ready.addLast(source);
+        }
+
+        inQueue--;
+
+        return obj;
+    }
+
+    /**
+     *  Returns the number of objects in the queue.
+     *
+     *  @return the number of objects in the queue.
+     */
+    public synchronized int getCurrentInQueue() {
+        return inQueue;
+    }
+
+    /**
+     *  Returns the number of sources which have objects in the queue.
+     *
+     *  @return the number of sources which have objects in the queue.
+     */
+    public synchronized int getCurrentSources() {
+        return ready.size();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  A bounded pool of canonical instances of immutable objects, indexed by
+ *  a key such as their string form. Values are weakly referenced so an
+ *  instance stays in the pool only while some other part of the application
+ *  is still using it. <p/>
+ *
+ *  The key must not be strongly reachable from its value, or the value
+ *  will never be collected. When the maximum number of entries is reached
+ *  the pool is emptied and then refills with the identifiers in current
+ *  use. Instances handed out before that remain valid; they are just no
+ *  longer shared with instances created afterwards.
+ */
+public final class InternCache {
+
+    /**
+     *  A weak reference to a pooled value which remembers its key so the
+     *  entry can be removed once the value is collected.
+     */
+    private static final class Entry extends WeakReference {
+        final Object key;
+
+        Entry(Object key, Object value, ReferenceQueue queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     *  The maximum number of entries.
+     */
+    private final int maxEntries;
+
+    /**
+     *  The entries.
+     */
+    private final Map entries = new HashMap();
+
+    /**
+     *  Receives entries whose values have been collected.
+     */
+    private final ReferenceQueue collected = new ReferenceQueue();
+
+    /**
+     *  Creates a new pool.
+     *
+     *  @param maxEntries the maximum number of entries.
+     */
+    public InternCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     *  Returns the pooled value for the key.
+     *
+     *  @param key the key.
+     *  @return the pooled value or <code>null</code> if there is none.
+     */
+    public synchronized Object get(Object key) {
+        expunge();
+
+        Entry entry = (Entry) entries.get(key);
+
+        return (null == entry) ? null : entry.get();
+    }
+
+    /**
+     *  Returns the pooled value for the key, adding the provided value to the
+     *  pool if there is none.
+     *
+     *  @param key the key.
+     *  @param value the value to pool if there is no value for the key.
+     *  @return the pooled value.
+     */
+    public synchronized Object intern(Object key, Object value) {
+        expunge();
+
+        Entry entry = (Entry) entries.get(key);
+
+        if (null != entry) {
+            Object common = entry.get();
+
+            if (null != common) {
+                return common;
+            }
+        }
+
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+
+        entries.put(key, new Entry(key, value, collected));
+
+        return value;
+    }
+
+    /**
+     *  Returns the number of entries, including those whose values may have
+     *  been collected but not yet removed.
+     *
+     *  @return the number of entries.
+     */
+    public synchronized int size() {
+        expunge();
+
+        return entries.size();
+    }
+
+    /**
+     *  Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     *  Removes the entries whose values have been collected.
+     */
+    private void expunge() {
+        Entry entry;
+
+        while (null != (entry = (Entry) collected.poll())) {
+            // the key may since have been given a new entry.
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * A flow control module which adapts rwindow to the conditions of the link
+ * the way TCP adapts its congestion window: <p/>
+ *
+ * <ul>
+ *     <li>Start: rwindow starts from the initial window given at
+ *     construction, which is also the first slow start threshold.</li>
+ *     <li>Slow start: below the threshold, rwindow grows by one for
+ *     every packet acknowledged, that is it doubles every round trip.</li>
+ *     <li>Congestion avoidance: beyond the slow start threshold rwindow
+ *     grows by one every round trip.</li>
+ *     <li>Multiplicative decrease: when an ACK message reports holes,
+ *     rwindow and the threshold are halved, at most once per round trip
+ *     since the holes reported by the following ACK messages of the same
+ *     window are the same loss event.</li>
+ *     <li>Timeout: when the retransmission timer expires, the threshold is
+ *     halved and rwindow restarts from its minimum.</li>
+ * </ul>
+ *
+ * <p/>rwindow never exceeds the maximum given at construction nor the size
+ * of the remote queue.
+ */
+public class AdaptiveFlowControl extends FlowControl {
+
+    static final int DEFAULT_INITIAL_RWINDOW = 20;
+
+    static final int DEFAULT_MAX_RWINDOW = Defs.MAXQUEUESIZE;
+
+    static final int MIN_RWINDOW = 2;
+
+    private final int maxRwindow;
+
+    /**
+     * The congestion window, in packets. Fractional so that congestion
+     * avoidance can grow it by less than a packet per ACK.
+     */
+    private double cwnd;
+
+    /**
+     * The slow start threshold, in packets.
+     */
+    private double ssthresh;
+
+    /**
+     * Cache of cwnd as an int, readable without synchronization.
+     */
+    private volatile int rwindow;
+
+    /**
+     * Packets acknowledged by the current ack message.
+     */
+    private int acked = 0;
+
+    /**
+     * Packets reported missing by the current ack message.
+     */
+    private int missing = 0;
+
+    /**
+     * Absolute time of the last decrease of the window.
+     */
+    private long lastDecrease = 0;
+
+    /**
+     * Constructs an adaptive flow control module with an initial rwindow of
+     * DEFAULT_INITIAL_RWINDOW and a maximum of DEFAULT_MAX_RWINDOW.
+     */
+    public AdaptiveFlowControl() {
+        this(DEFAULT_INITIAL_RWINDOW);
+    }
+
+    /**
+     * Constructs an adaptive flow control module with a maximum rwindow of
+     * DEFAULT_MAX_RWINDOW, or the initial rwindow if larger.
+     *
+     * @param initialRwindow the initial value of rwindow and of the slow
+     * start threshold.
+     */
+    public AdaptiveFlowControl(int initialRwindow) {
+        this(initialRwindow, Math.max(initialRwindow, DEFAULT_MAX_RWINDOW));
+    }
+
+    /**
+     * @param initialRwindow the initial value of rwindow and of the slow
+     * start threshold.
+     * @param maxRwindow the maximum value of rwindow.
+     */
+    public AdaptiveFlowControl(int initialRwindow, int maxRwindow) {
+        this.maxRwindow = Math.max(maxRwindow, MIN_RWINDOW);
+        this.cwnd = Math.max(MIN_RWINDOW, Math.min(initialRwindow, this.maxRwindow));
+        this.ssthresh = this.cwnd;
+        this.rwindow = (int) this.cwnd;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public int getRwindow() {
+        return rwindow;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void ackEventBegin() {
+        acked = 0;
+        missing = 0;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void packetACKed(int seqnum) {
+        acked++;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void packetMissing(int seqnum) {
+        missing++;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public int ackEventEnd(int rQSize, long aveRTT, long lastRTT) {
+        if (missing > 0) {
+            long now = TimeUtils.timeNow();
+
+            if (TimeUtils.toRelativeTimeMillis(now, lastDecrease) >= aveRTT) {
+                ssthresh = Math.max(cwnd / 2, MIN_RWINDOW);
+                cwnd = ssthresh;
+                lastDecrease = now;
+            }
+        } else if (cwnd < ssthresh) {
+            cwnd += acked;
+        } else {
+            cwnd += acked / cwnd;
+        }
+
+        int limit = maxRwindow;
+
+        if (rQSize > 0) {
+            limit = Math.min(limit, rQSize);
+        }
+
+        cwnd = Math.max(MIN_RWINDOW, Math.min(cwnd, limit));
+        rwindow = (int) cwnd;
+
+        return rwindow;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void retransmitTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_RWINDOW);
+        cwnd = MIN_RWINDOW;
+        rwindow = MIN_RWINDOW;
+        lastDecrease = TimeUtils.timeNow();
+    }
+}
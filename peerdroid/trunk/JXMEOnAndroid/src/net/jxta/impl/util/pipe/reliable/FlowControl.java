@@ -95,6 +95,14 @@ public abstract class FlowControl {
     public void packetMissing(int seqnum) {
     }
 
+    /**
+     * Indicates that the retransmission timer expired while packets were
+     * still unacknowledged. The new value of rwindow is obtained through
+     * getRwindow().
+     */
+    public void retransmitTimeout() {
+    }
+
     /**
      * Concludes rwindow update for this ackEvent. That's where all the
      * smarts are. A number of externally computed parameters must be
@@ -102,7 +110,8 @@ public abstract class FlowControl {
      *
      * @param rQSize the last known value of the remote queue size.
      * @param aveRTT the latest estimate of the average RTT.
-     * @param lastRTT the RTT inferred from the most recent ACK message.
+     * @param lastRTT the RTT inferred from the most recent ACK message or
+     * zero if that message did not provide one.
      * @return int the new recommended value for rwindow.
      */
 
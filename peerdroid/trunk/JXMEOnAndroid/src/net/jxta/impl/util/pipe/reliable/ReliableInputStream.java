@@ -56,7 +56,6 @@
 
 package net.jxta.impl.util.pipe.reliable;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -64,15 +63,10 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
-
 import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
-import net.jxta.impl.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.util.TimeUtils;
 
 import org.apache.log4j.Level;
@@ -102,8 +96,16 @@ public class ReliableInputStream extends InputStream implements Incoming {
 
     private volatile int sequenceNumber = 0;
 
-    // Incoming messages queue
-    private List inputQueue = new ArrayList();
+    // Number of in sequence messages which may be consumed before a
+    // cumulative ACK is sent while the following message is already
+    // queued. 1 acknowledges every message.
+    private volatile int ackInterval = 1;
+
+    // In sequence messages consumed but not acknowledged yet.
+    private int unacked = 0;
+
+    // Incoming messages queue, indexed by sequence number
+    private final SequenceRing inputQueue = new SequenceRing(Defs.MAXQUEUESIZE);
 
     /**
      * Input record Object
@@ -228,6 +230,20 @@ public class ReliableInputStream extends InputStream implements Incoming {
         }
     }
     
+    /**
+     *  Sets the number of in sequence messages acknowledged by a single
+     *  cumulative ACK. An ACK is always sent as soon as the reader catches
+     *  up with the messages received, so delaying never stalls the sender.
+     *
+     * @param  ackInterval  the number of messages per ACK, at least 1.
+     */
+    public void setAckInterval(int ackInterval) {
+        if (ackInterval < 1) {
+            throw new IllegalArgumentException("ACK interval must be at least 1");
+        }
+        this.ackInterval = ackInterval;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -292,26 +308,26 @@ public class ReliableInputStream extends InputStream implements Incoming {
      *  @param seqnAck the sequence number being sequential ACKed
      */
     private void sendACK(int seqnAck) {
-        //No need to sync on inputQueue, acking as many as we can is want we want
-        List selectedAckList = new ArrayList();
-        List queue;
+        int[] selectedAckList = new int[Defs.MAXQUEUESIZE];
+        int nSacks = 0;
         synchronized(inputQueue) {
-            queue = Arrays.asList(inputQueue.toArray());
-        }
-        Iterator eachInQueue = queue.iterator();
-            while (eachInQueue.hasNext() &&
-                   (selectedAckList.size() < Defs.MAXQUEUESIZE)) {
-                IQElt anIQElt = (IQElt) eachInQueue.next();
-                if (anIQElt.seqnum > seqnAck) {
-                    if (!anIQElt.ackd) {
-                        selectedAckList.add(new Integer(anIQElt.seqnum));
+            if (!inputQueue.isEmpty()) {
+                int from = Math.max(seqnAck + 1, inputQueue.firstSeq());
+                for (int eachSeq = from;
+                        (eachSeq <= inputQueue.lastSeq()) &&
+                        (nSacks < selectedAckList.length);
+                        eachSeq++) {
+                    IQElt anIQElt = (IQElt) inputQueue.get(eachSeq);
+                    if ((null != anIQElt) && !anIQElt.ackd) {
+                        selectedAckList[nSacks++] = anIQElt.seqnum;
                         anIQElt.ackd = true;
                     }
                 }
+            }
         }
 
         // PERMIT DUPLICATE ACKS. Just a list and one small message.
-        sendACK(seqnAck, selectedAckList);
+        sendACK(seqnAck, selectedAckList, nSacks);
     }
 
     /**
@@ -321,19 +337,17 @@ public class ReliableInputStream extends InputStream implements Incoming {
      *  @param seqnAck the sequence number being sequential ACKed
      *  @param sackList a list of selective ACKs. Must be sorted in increasing
      *  order.
+     *  @param nSacks the number of valid entries in sackList.
      */
-    private void sendACK(int seqnAck, List sackList) {
+    private void sendACK(int seqnAck, int[] sackList, int nSacks) {
         ByteArrayOutputStream bos =
-            new ByteArrayOutputStream((1 + sackList.size()) * 4);
+            new ByteArrayOutputStream((1 + nSacks) * 4);
         DataOutputStream dos = new DataOutputStream(bos);
 
         try {
             dos.writeInt(seqnAck);
-            Iterator eachSACK = sackList.iterator();
-
-            while(eachSACK.hasNext()) {
-                int aSack = ((Integer)eachSACK.next()).intValue();
-                dos.writeInt(aSack);
+            for (int eachSACK = 0; eachSACK < nSacks; eachSACK++) {
+                dos.writeInt(sackList[eachSACK]);
             }
             dos.close();
             bos.close();
@@ -350,7 +364,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
 
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("SENT ACK, seqn#" + seqnAck +
-                         " and " + sackList.size() + " SACKs ");
+                         " and " + nSacks + " SACKs ");
             }
         } catch (IOException e) {
             if (LOG.isEnabledFor(Level.INFO)) {
@@ -387,11 +401,8 @@ public class ReliableInputStream extends InputStream implements Incoming {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Converting message seqn :"+ (sequenceNumber - 1) +"element to message");
             }
-            ByteArrayInputStream bais =
-                new ByteArrayInputStream(elt.getBytes(false));
-            msg = WireFormatMessageFactory.fromWire(bais,
-                                                    Defs.MIME_TYPE_MSG,
-                                                    null);
+            byte [] bytes = elt.getBytes(false);
+            msg = WireFormatMessageBinary.fromBuffer(bytes, 0, bytes.length);
         } catch (IOException ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Could not deserialize message " +
@@ -459,6 +470,17 @@ public class ReliableInputStream extends InputStream implements Incoming {
                 break;
             }
 
+            // the sender never has more than a queue's worth in flight; a
+            // message further ahead is bogus or will be retransmitted.
+            if (newElt.seqnum > sequenceNumber + Defs.MAXQUEUESIZE) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("RCVD MESSAGE TOO FAR AHEAD : Discard seqn#" +
+                              newElt.seqnum + " now at seqn#" +
+                              sequenceNumber);
+                }
+                continue;
+            }
+
             synchronized (inputQueue) {
 
                 // dbl check with the lock held.
@@ -466,24 +488,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     return;
                 }
 
-                // Insert this message into the input queue.
-                //   1. Do not add duplicate messages
-                //   2. Store in increasing sequence nos.
-                int insertIndex = inputQueue.size();
-                boolean duplicate = false;
-
-                for (int j = 0; j < inputQueue.size(); j++) {
-                    IQElt iq = (IQElt) inputQueue.get(j);
-                    if (newElt.seqnum < iq.seqnum) {
-                        insertIndex = j;
-                        break;
-                    } else if (newElt.seqnum == iq.seqnum) {
-                        duplicate = true;
-                        break;
-                    }
-                }
-
-                if (duplicate) {
+                // Insert this message into the input queue at the slot of
+                // its sequence number. Duplicate messages are not added.
+                if (!inputQueue.put(newElt.seqnum, newElt)) {
                     if (LOG.isEnabledFor(Level.DEBUG)) {
                         LOG.debug("RCVD OLD MESSAGE : " +
                                   " Discard duplicate msg, seqn#" +
@@ -492,11 +499,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     break;
                 }
 
-                inputQueue.add(insertIndex, newElt);
-
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Enqueued msg with seqn#" + newElt.seqnum +
-                              " at index " + insertIndex );
+                              " queue size " + inputQueue.size());
                 }
 
                 inputQueue.notifyAll();
@@ -551,10 +556,11 @@ public class ReliableInputStream extends InputStream implements Incoming {
         long startDequeue = TimeUtils.timeNow();
         long whenToTimeout = startDequeue + timeout;
         int wct = 0;
+        boolean ackNow = true;
 
         synchronized (inputQueue) {
             while(!closed) {
-                if(inputQueue.size() == 0) {
+                if(inputQueue.isEmpty()) {
                     if(!blocking) {
                         return null;
                     }
@@ -578,13 +584,13 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     continue;
                 }
 
-                iQ = (IQElt) inputQueue.get(0); // FIFO
+                iQ = (IQElt) inputQueue.first(); // FIFO
 
                 if (iQ.seqnum < desiredSeqn) {
                     // Ooops a DUPE slipped in the head of the queue undetected
                     // (seqnum consistency issue).
                     // Just drop it.
-                    inputQueue.remove(0);
+                    inputQueue.remove(iQ.seqnum);
                     // if such is the case then notify the other end so that
                     // the message does not remain in the retry queue eventually
                     // triggering a broken pipe exception
@@ -619,7 +625,16 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     }
                     continue;
                 }
-                inputQueue.remove(0);
+                inputQueue.remove(iQ.seqnum);
+
+                // Hold the ACK back while the next message is already
+                // waiting; it will be covered by a later cumulative ACK.
+                IQElt next = (IQElt) inputQueue.first();
+                ackNow = (++unacked >= ackInterval) || (null == next) ||
+                         (next.seqnum != desiredSeqn + 1);
+                if (ackNow) {
+                    unacked = 0;
+                }
                 break;
             }
         }
@@ -629,7 +644,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
             return null;
         }
 
-        sendACK(desiredSeqn);
+        if (ackNow) {
+            sendACK(desiredSeqn);
+        }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             long waited =
@@ -650,6 +667,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
 
     /**
      * {@inheritDoc}
+     *
+     * <p/>Never blocks. If the current block is exhausted, or none was read
+     * yet, the next in order block is taken if it has already arrived.
      */
     public int available() throws IOException {
         if(listener != null) {
@@ -659,30 +679,27 @@ public class ReliableInputStream extends InputStream implements Incoming {
             throw new IOException("Stream closed");
         }
         synchronized (record) {
-            if (record.inputStream != null) {
-                if ((record.size == 0) || (record.nextByte == record.size)) {
-                    if (inputQueue.size() == 0) {
-                        return 0;
-                    }
-                    // reset the record
-                    record.resetRecord();      // GC as necessary(inputStream byte[])
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("local_read: getting next data block at seqn#" +
-                                  (sequenceNumber + 1));
-                    }
-                    MessageElement elt = dequeueMessage(sequenceNumber + 1, false);
-                    if (null == elt) {
-                        return 0;
-                    }
-                    sequenceNumber += 1;       // next msg sequence number
-                    // Get the length of the TLS Record
-                    record.size = elt.getByteLength();
-                    record.inputStream = elt.getStream();
+            if ((record.inputStream == null) || (record.size == 0) || (record.nextByte == record.size)) {
+                if (inputQueue.isEmpty()) {
+                    return 0;
                 }
-                return record.inputStream.available();
+                // reset the record
+                record.resetRecord();      // GC as necessary(inputStream byte[])
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("available: getting next data block at seqn#" +
+                              (sequenceNumber + 1));
+                }
+                MessageElement elt = dequeueMessage(sequenceNumber + 1, false);
+                if (null == elt) {
+                    return 0;
+                }
+                sequenceNumber += 1;       // next msg sequence number
+                // Get the length of the TLS Record
+                record.size = elt.getByteLength();
+                record.inputStream = elt.getStream();
             }
+            return record.inputStream.available();
         }
-        return 0;
     }
     /**
      *
@@ -101,6 +101,11 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private final static long initRTT = 10 * TimeUtils.ASECOND;
 
+    /**
+     *  Minimum Retry Timeout once the RTT has actually been measured.
+     */
+    private final static long minMeasuredRTO = TimeUtils.ASECOND;
+
     private final static MessageElement RETELT =
             new StringMessageElement(Defs.RETRY_ELEMENT_NAME,
             Defs.RETRY_ELEMENT_VALUE, null);
@@ -141,6 +146,11 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
     private volatile long aveRTT = initRTT;
     private volatile long remRTT = 0;
 
+    /**
+     *  Mean deviation of the round trip time in milliseconds.
+     */
+    private volatile long varRTT = initRTT / 2;
+
     /**
      * Has aveRTT been set at least once over its initial guesstimate value.
      */
@@ -181,12 +191,18 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile long sackRetransTime = 0;
 
+    /**
+     *  Number of holes reported by SACKs which the retransmitter should
+     *  fill now rather than at the RTO. Guarded by retrQ.
+     */
+    private int fastRetrans = 0;
+
     /**
      *   The collection of messages available for re-transmission.
      *
-     *   elements are {@link RetrQElt}
+     *   elements are {@link RetrQElt}, indexed by sequence number.
      */
-    protected List retrQ = new ArrayList();
+    private final SequenceRing retrQ = new SequenceRing(Defs.MAXQUEUESIZE);
 
     // running average of receipients Input Queue
     private int nIQTests = 0;
@@ -212,6 +228,17 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile int rwindow = 0;
 
+    /**
+     * Maximum number of data bytes which may be awaiting acknowledgement,
+     * zero for no limit beyond the message window.
+     */
+    private volatile int maxBytesInFlight = 0;
+
+    /**
+     * Number of data bytes currently on the retransmission queue.
+     */
+    private int bytesInFlight = 0;
+
     /**
      * retrans queue element
      */
@@ -220,8 +247,8 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         // sequence number of this message.
         long enqueuedAt;
         // absolute time of original enqueing
-        volatile Message msg;
-        // the message
+        volatile MessageElement element;
+        // the data element of the message
         int marked;
         // has been marked as retransmission
         long sentAt;
@@ -232,11 +259,11 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
          *Constructor for the RetrQElt object
          *
          * @param  seqnum  Description of the Parameter
-         * @param  msg     Description of the Parameter
+         * @param  element Description of the Parameter
          */
-        public RetrQElt(int seqnum, Message msg) {
+        public RetrQElt(int seqnum, MessageElement element) {
             this.seqnum = seqnum;
-            this.msg = msg;
+            this.element = element;
             this.enqueuedAt = TimeUtils.timeNow();
             this.sentAt = this.enqueuedAt;
             this.marked = 0;
@@ -303,7 +330,10 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             }
         }
 
-        retrQ.clear();
+        synchronized (retrQ) {
+            retrQ.clear();
+            bytesInFlight = 0;
+        }
     }
 
     /**
@@ -318,6 +348,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         synchronized (retrQ) {
             closing = true;
             retrQ.clear();
+            bytesInFlight = 0;
             retrQ.notifyAll();
         }
     }
@@ -364,7 +395,9 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 if (closing || closed) {
                     throw new IOException("broken connection");
                 }
-                if (retrQ.size() > Math.min(rwindow, mrrIQFreeSpace * 2)) {
+                if ((retrQ.size() > Math.min(rwindow, mrrIQFreeSpace * 2)) ||
+                        ((maxBytesInFlight > 0) && !retrQ.isEmpty() &&
+                         (bytesInFlight + len > maxBytesInFlight))) {
                     try {
                         retrQ.wait(1000);
                     } catch (InterruptedException ignored) {}
@@ -378,14 +411,15 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                     new ByteArrayMessageElement(Integer.toString(sequenceNumber),
                     Defs.MIME_TYPE_BLOCK, data, null);
             jmsg.addMessageElement(Defs.NAMESPACE, element);
-            RetrQElt retrQel = new RetrQElt(sequenceNumber, (Message) jmsg.clone());
 
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Reliable WRITE : seqn#" + sequenceNumber + " length=" + len);
             }
 
-            // place copy on retransmission queue
-            retrQ.add(retrQel);
+            // keep the (immutable) element on the retransmission queue;
+            // the message is rebuilt around it if it has to be resent.
+            retrQ.put(sequenceNumber, new RetrQElt(sequenceNumber, element));
+            bytesInFlight += len;
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Retrans Enqueue added seqn#" + sequenceNumber + " retrQ.size()=" + retrQ.size());
             }
@@ -427,6 +461,30 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         return maxACK;
     }
 
+    /**
+     *  Sets the maximum number of data bytes which may be awaiting
+     *  acknowledgement. Writers block once that many bytes are queued for
+     *  retransmission, in addition to the limit on the number of messages
+     *  imposed by the flow control.
+     *
+     * @param  bytes  the send window in bytes, zero for no limit.
+     */
+    public void setSendWindowBytes(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative send window");
+        }
+        maxBytesInFlight = bytes;
+    }
+
+    /**
+     *  Gets the sendWindowBytes attribute of the ReliableOutputStream object
+     *
+     * @return    The send window in bytes, zero if there is no limit.
+     */
+    public int getSendWindowBytes() {
+        return maxBytesInFlight;
+    }
+
     /**
      *  Gets the seqNumber attribute of the ReliableOutputStream object
      *
@@ -492,28 +550,44 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
 
             if (!aveRTTreset) {
                 aveRTT = dt;
+                varRTT = dt / 2;
                 aveRTTreset = true;
             } else {
+                // The deviation is measured against the average before
+                // this sample.
+                varRTT = (3 * varRTT + Math.abs(aveRTT - dt)) / 4;
+
                 long tmp = (8 * aveRTT) + ((8 * remRTT) / 9) + dt;
                 aveRTT = tmp / 9;
                 remRTT = tmp - aveRTT * 9;
             }
         }
 
-        // Set retransmission time out: 2.5 x RTT
-        //        RTO = (aveRTT << 1) + (aveRTT >> 1);
-        RTO = aveRTT * 2;
-
-        // Enforce a min/max
-        RTO = Math.max(RTO, minRTO);
-        RTO = Math.min(RTO, maxRTO);
+        RTO = computeRTO();
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("RTT = " + dt + "ms aveRTT = " + aveRTT + "ms" +
-                    " RTO = " + RTO + "ms");
+                    " varRTT = " + varRTT + "ms RTO = " + RTO + "ms");
         }
     }
 
+    /**
+     *  Computes the retransmission time out from the RTT estimates: the
+     *  average plus four times the deviation. Until the RTT has been
+     *  measured, it is kept above the conservative minRTO.
+     *
+     * @return    the retransmission time out in milliseconds.
+     */
+    private long computeRTO() {
+        long rto = aveRTT + 4 * varRTT;
+
+        // Enforce a min/max
+        rto = Math.max(rto, aveRTTreset ? minMeasuredRTO : minRTO);
+        rto = Math.min(rto, maxRTO);
+
+        return rto;
+    }
+
 
     /**
      * @param  iq  Description of the Parameter
@@ -585,6 +659,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
     public void ackReceived(int seqnum, int[] sackList) {
 
         int numberACKed = 0;
+        int retrans = 0;
         long rttCalcDt = 0;
         int rttCalcSeqnum = -1;
         long fallBackDt = 0;
@@ -605,14 +680,16 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                     dumpRETRQ.append('\n');
                 }
                 dumpRETRQ.append("\tRETRQ (size=" + retrQ.size() + ")");
-                if (LOG.isEnabledFor(Level.DEBUG)) {
+                if (LOG.isEnabledFor(Level.DEBUG) && !retrQ.isEmpty()) {
                     dumpRETRQ.append(" : ");
-                    for (int y = 0; y < retrQ.size(); y++) {
-                        if (0 != y) {
+                    for (int y = retrQ.firstSeq(); y <= retrQ.lastSeq(); y++) {
+                        if (null == retrQ.get(y)) {
+                            continue;
+                        }
+                        if (y != retrQ.firstSeq()) {
                             dumpRETRQ.append(", ");
                         }
-                        RetrQElt r = (RetrQElt) retrQ.get(y);
-                        dumpRETRQ.append(r.seqnum);
+                        dumpRETRQ.append(y);
                     }
                 }
                 if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -632,15 +709,15 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 LOG.info(dumpRETRQ);
             }
 
-            Iterator eachRetryQueueEntry = retrQ.iterator();
-            // First remove monotonically increasing seq#s in retrans vector
-            while (eachRetryQueueEntry.hasNext()) {
-                RetrQElt r = (RetrQElt) eachRetryQueueEntry.next();
-                if (r.seqnum > seqnum) {
-                    break;
+            // First remove monotonically increasing seq#s in retrans queue
+            int upTo = retrQ.isEmpty() ? 0 : Math.min(seqnum, retrQ.lastSeq());
+            for (int eachSeq = retrQ.firstSeq(); eachSeq <= upTo; eachSeq++) {
+                RetrQElt r = (RetrQElt) retrQ.remove(eachSeq);
+                if (null == r) {
+                    // Already SACKed.
+                    continue;
                 }
                 // Acknowledged
-                eachRetryQueueEntry.remove();
 
                 // Update RTT, RTO. Use only those that where acked
                 // w/o retrans otherwise the number may be phony (ack
@@ -672,8 +749,8 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                     }
                 }
                 fc.packetACKed(r.seqnum);
-                r.msg.clear();
-                r.msg = null;
+                bytesInFlight -= (int) r.element.getByteLength();
+                r.element = null;
                 r = null;
                 numberACKed++;
             }
@@ -698,76 +775,64 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                         " remote avg IQ occupancy = " + aveIQ);
             }
 
-            int retrans = 0;
             if (sackList.length > 0) {
-                Iterator eachRetrQElement = retrQ.iterator();
-                int currentSACK = 0;
-                while (eachRetrQElement.hasNext()) {
-                    RetrQElt r = (RetrQElt) eachRetrQElement.next();
-                    while (sackList[currentSACK] < r.seqnum) {
-                        currentSACK++;
-                        if (currentSACK == sackList.length) {
-                            break;
-                        }
-                    }
-                    if (currentSACK == sackList.length) {
-                        break;
+                for (int eachSACK = 0; eachSACK < sackList.length; eachSACK++) {
+                    RetrQElt r = (RetrQElt) retrQ.remove(sackList[eachSACK]);
+                    if (null == r) {
+                        continue;
                     }
-                    if (sackList[currentSACK] == r.seqnum) {
-                        fc.packetACKed(r.seqnum);
-                        numberACKed++;
-                        eachRetrQElement.remove();
-
-                        // Update RTT, RTO. Use only those that where acked w/o retrans
-                        // otherwise the number is completely phony.
-                        // Also, we keep the worst of the bunch we encounter.
-                        long enqueuetime = r.enqueuedAt;
-                        long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
-                        // Update RTT, RTO
-                        if (r.marked == 0) {
-                            if (dt > rttCalcDt) {
-                                rttCalcDt = dt;
-                                rttCalcSeqnum = r.seqnum;
-                            }
-                        } else {
-                            // In case we find no good candidate, make
-                            // a guess by dividing by the number of attempts
-                            // and keep the worst of them too. Since we
-                            // know it may be too short, we will not use it
-                            // if shortens rtt.
-                            dt /= (r.marked + 1);
-                            if (dt > fallBackDt) {
-                                fallBackDt = dt;
-                                fallBackSeqnum = r.seqnum;
-                            }
+                    fc.packetACKed(r.seqnum);
+                    numberACKed++;
+
+                    // Update RTT, RTO. Use only those that where acked w/o retrans
+                    // otherwise the number is completely phony.
+                    // Also, we keep the worst of the bunch we encounter.
+                    long enqueuetime = r.enqueuedAt;
+                    long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
+                    // Update RTT, RTO
+                    if (r.marked == 0) {
+                        if (dt > rttCalcDt) {
+                            rttCalcDt = dt;
+                            rttCalcSeqnum = r.seqnum;
                         }
-                        if (LOG.isEnabledFor(Level.DEBUG)) {
-                            LOG.debug("SACKD SEQN = " + r.seqnum);
+                    } else {
+                        // In case we find no good candidate, make
+                        // a guess by dividing by the number of attempts
+                        // and keep the worst of them too. Since we
+                        // know it may be too short, we will not use it
+                        // if shortens rtt.
+                        dt /= (r.marked + 1);
+                        if (dt > fallBackDt) {
+                            fallBackDt = dt;
+                            fallBackSeqnum = r.seqnum;
                         }
+                    }
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("SACKD SEQN = " + r.seqnum);
+                    }
 
-                        // GC this stuff
-                        r.msg.clear();
-                        r.msg = null;
-                        r = null;
+                    // GC this stuff
+                    bytesInFlight -= (int) r.element.getByteLength();
+                    r.element = null;
+                    r = null;
+                }
 
-                    } else {
-                        // Retransmit? Only if there is a hole in the selected
-                        // acknowledgement list. Otherwise let RTO deal.
-
-                        //    Given that this SACK acknowledged messages still
-                        //    in the retrQ:
-                        //      seqnum is the max consectively SACKD message.
-                        //      seqnum < r.seqnum means a message has not reached
-                        //      receiver. EG: sacklist == 10,11,13 seqnum == 11
-                        //                  We retransmit 12.
-                        if (seqnum < r.seqnum) {
-                            fc.packetMissing(r.seqnum);
-                            retrans++;
-                            if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("RETR: Fill hole, SACK, seqn#" +
-                                        r.seqnum +
-                                        ", Window =" + retrans);
-                            }
+                // Retransmit? Only if there is a hole in the selected
+                // acknowledgement list. Otherwise let RTO deal.
+
+                //    What remains in the retrQ below the highest SACK has
+                //    not reached the receiver. EG: sacklist == 10,11,13
+                //    seqnum == 9 We retransmit 12.
+                int lastSACK = sackList[sackList.length - 1];
+                int holesUpTo = retrQ.isEmpty() ? 0 : Math.min(lastSACK, retrQ.lastSeq());
+                for (int eachSeq = retrQ.firstSeq(); eachSeq < holesUpTo; eachSeq++) {
+                    if ((eachSeq > seqnum) && (null != retrQ.get(eachSeq))) {
+                        fc.packetMissing(eachSeq);
+                        retrans++;
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("RETR: Fill hole, SACK, seqn#" +
+                                    eachSeq +
+                                    ", Window =" + retrans);
                         }
                     }
                 }
@@ -792,6 +857,17 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 calcRTT(fallBackDt, fallBackSeqnum);
                 // get fc to recompute rwindow
                 rwindow = fc.ackEventEnd(rmaxQSize, aveRTT, fallBackDt);
+            } else {
+                // No usable RTT, but fc still needs to hear about the
+                // acknowledged and missing packets.
+                rwindow = fc.ackEventEnd(rmaxQSize, aveRTT, 0);
+            }
+
+            // Fast retransmit: have the retransmitter fill the holes
+            // reported by the SACK list now rather than at the RTO. We do
+            // not send from here so that ACK processing never blocks.
+            if (retrans > 0) {
+                fastRetrans = Math.max(fastRetrans, Math.min(retrans, rwindow));
             }
             retrQ.notifyAll();
         }
@@ -817,8 +893,16 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             if (numberToRetrans > 0 && LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Number of messages pending retransmit =" + numberToRetrans);
             }
-            for (int j = 0; j < numberToRetrans; j++) {
-                RetrQElt r = (RetrQElt) retrQ.get(j);
+            int examined = 0;
+            for (int eachSeq = retrQ.firstSeq();
+                    (examined < numberToRetrans) && (eachSeq <= retrQ.lastSeq());
+                    eachSeq++) {
+                RetrQElt r = (RetrQElt) retrQ.get(eachSeq);
+                if (null == r) {
+                    // SACKed already
+                    continue;
+                }
+                examined++;
                 // Mark message as retransmission
                 // need to know if a msg was retr or not for RTT eval
                 if (r.marked == 0) {
@@ -864,13 +948,14 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("RETRANSMIT seqn#" + r.seqnum);
                 }
-                Message sending = (Message) r.msg;
+                MessageElement element = r.element;
                 // its possible that the message was
                 // acked while we were working in this
-                // case r.msg will have been nulled.
-                if (null != sending) {
-                    sending = (Message) sending.clone();
-                    sending.replaceMessageElement(Defs.NAMESPACE, RETELT);
+                // case r.element will have been nulled.
+                if (null != element) {
+                    Message sending = new Message();
+                    sending.addMessageElement(Defs.NAMESPACE, element);
+                    sending.addMessageElement(Defs.NAMESPACE, RETELT);
                     if (outgoing.send(sending)) {
                         r.sentAt = TimeUtils.timeNow();
                         mrrIQFreeSpace--;
@@ -963,14 +1048,34 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                         } catch (IOException ignored) {}
                         continue;
                     }
+                    int holes;
                     synchronized (retrQ) {
-                        try {
-                            retrQ.wait(RTO);
-                        } catch (InterruptedException e) {}
+                        if (0 == fastRetrans) {
+                            try {
+                                retrQ.wait(RTO);
+                            } catch (InterruptedException e) {}
+                        }
+                        holes = fastRetrans;
+                        fastRetrans = 0;
                     }
                     if (closed) {
                         break;
                     }
+                    // fill the holes reported by the last SACKs.
+                    // retransmit() leaves alone the messages that may just
+                    // be out of order.
+                    if (holes > 0) {
+                        long now = TimeUtils.timeNow();
+                        int retransed = retransmit(holes, now);
+
+                        if (retransed > 0) {
+                            sackRetransTime = now;
+                            if (LOG.isEnabledFor(Level.DEBUG)) {
+                                LOG.debug("RETR: SACK RETRANSMISSION " + retransed + " of " + holes + " holes");
+                            }
+                        }
+                        continue;
+                    }
                     // see if we recently did a retransmit triggered by a SACK
                     long sinceLastSACKRetr =
                             TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(),
@@ -988,8 +1093,8 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                             lastACKTime);
                     long oldestInQueueWait;
                     synchronized (retrQ) {
-                        if (retrQ.size() > 0) {
-                            RetrQElt elt = (RetrQElt) retrQ.get(0);
+                        if (!retrQ.isEmpty()) {
+                            RetrQElt elt = (RetrQElt) retrQ.first();
                             oldestInQueueWait =
                                     TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(),
                                     elt.enqueuedAt);
@@ -1050,6 +1155,13 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                             RTO = (realWait > maxRTO ? maxRTO : 2 * RTO);
                             nAtThisRTO = 0;
                         }
+                        if (retransed > 0) {
+                            // Losses bad enough to need the timer: tell fc.
+                            synchronized (retrQ) {
+                                fc.retransmitTimeout();
+                                rwindow = fc.getRwindow();
+                            }
+                        }
                         if (LOG.isEnabledFor(Level.DEBUG)) {
                             LOG.debug("RETRANS : RETRANSMISSION "
                                      + retransed + " retrans "
@@ -1059,9 +1171,9 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                         }
                     } else {
                         idleCounter += 1;
-                        // reset RTO to min if we are idle
+                        // reset RTO to its estimate if we are idle
                         if (idleCounter == 2) {
-                            RTO = minRTO;
+                            RTO = computeRTO();
                             idleCounter = 0;
                             nAtThisRTO = 0;
                         }
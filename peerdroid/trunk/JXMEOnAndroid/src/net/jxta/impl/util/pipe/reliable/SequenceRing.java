@@ -0,0 +1,271 @@
+/*
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights
+ *  reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must
+ *  not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+import java.util.Arrays;
+
+/**
+ * A circular buffer of objects indexed by sequence number. Looking up,
+ * inserting and removing an object are O(1); the buffer grows when the
+ * span between the lowest and the highest sequence numbers it holds
+ * exceeds its capacity.
+ *
+ * <p/>This class is not synchronized.
+ */
+final class SequenceRing {
+
+    /**
+     * The largest capacity, and so the largest span of sequence numbers, the
+     * buffer will grow to.
+     */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * The slots. Object with sequence number n is at n & (length - 1).
+     */
+    private Object[] slots;
+
+    /**
+     * Lowest sequence number present. Meaningless if empty.
+     */
+    private int first = 0;
+
+    /**
+     * Highest sequence number present. Meaningless if empty.
+     */
+    private int last = -1;
+
+    /**
+     * Number of objects present.
+     */
+    private int size = 0;
+
+    /**
+     * @param capacity the initial capacity. Rounded up to a power of two.
+     */
+    SequenceRing(int capacity) {
+        if ((capacity < 1) || (capacity > MAX_CAPACITY)) {
+            throw new IllegalArgumentException("Bad capacity : " + capacity);
+        }
+
+        int length = 1;
+
+        while (length < capacity) {
+            length <<= 1;
+        }
+
+        slots = new Object[length];
+    }
+
+    /**
+     * @return the number of objects present.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no object is present.
+     */
+    boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * @return the lowest sequence number present. Only meaningful if not
+     * empty.
+     */
+    int firstSeq() {
+        return first;
+    }
+
+    /**
+     * @return the highest sequence number present. Only meaningful if not
+     * empty.
+     */
+    int lastSeq() {
+        return last;
+    }
+
+    /**
+     * @return the object with the lowest sequence number or
+     * <code>null</code> if empty.
+     */
+    Object first() {
+        return (0 == size) ? null : slots[first & (slots.length - 1)];
+    }
+
+    /**
+     * @param seq a sequence number.
+     * @return the object with that sequence number or <code>null</code>.
+     */
+    Object get(int seq) {
+        if ((0 == size) || (seq < first) || (seq > last)) {
+            return null;
+        }
+
+        return slots[seq & (slots.length - 1)];
+    }
+
+    /**
+     * Stores an object unless there already is one with the same sequence
+     * number.
+     *
+     * @param seq the sequence number.
+     * @param obj the object.
+     * @return true if the object was stored, false if there already was one.
+     * @throws IllegalStateException if storing it would make the span of
+     * sequence numbers present exceed {@link #MAX_CAPACITY}.
+     */
+    boolean put(int seq, Object obj) {
+        if (0 == size) {
+            first = seq;
+            last = seq;
+        } else {
+            if (null != get(seq)) {
+                return false;
+            }
+
+            int low = Math.min(first, seq);
+            int high = Math.max(last, seq);
+
+            if ((high - low) >= slots.length) {
+                if ((high - low) >= MAX_CAPACITY) {
+                    throw new IllegalStateException("Sequence span too large : " + low + " to " + high);
+                }
+
+                grow(high - low + 1);
+            }
+
+            first = low;
+            last = high;
+        }
+
+        slots[seq & (slots.length - 1)] = obj;
+        size++;
+
+        return true;
+    }
+
+    /**
+     * Removes the object with the given sequence number.
+     *
+     * @param seq the sequence number.
+     * @return the object removed or <code>null</code> if there was none.
+     */
+    Object remove(int seq) {
+        Object obj = get(seq);
+
+        if (null == obj) {
+            return null;
+        }
+
+        int mask = slots.length - 1;
+
+        slots[seq & mask] = null;
+        size--;
+
+        if (0 == size) {
+            first = 0;
+            last = -1;
+        } else if (seq == first) {
+            do {
+                first++;
+            } while (null == slots[first & mask]);
+        } else if (seq == last) {
+            do {
+                last--;
+            } while (null == slots[last & mask]);
+        }
+
+        return obj;
+    }
+
+    /**
+     * Removes every object.
+     */
+    void clear() {
+        if (0 != size) {
+            Arrays.fill(slots, null);
+        }
+
+        first = 0;
+        last = -1;
+        size = 0;
+    }
+
+    /**
+     * Grows the buffer to hold the given span of sequence numbers.
+     *
+     * @param span the span, at most {@link #MAX_CAPACITY}.
+     */
+    private void grow(int span) {
+        int length = slots.length;
+
+        while (length < span) {
+            length <<= 1;
+        }
+
+        Object[] newSlots = new Object[length];
+        int oldMask = slots.length - 1;
+        int newMask = length - 1;
+
+        for (int seq = first; seq <= last; seq++) {
+            newSlots[seq & newMask] = slots[seq & oldMask];
+        }
+
+        slots = newSlots;
+    }
+}
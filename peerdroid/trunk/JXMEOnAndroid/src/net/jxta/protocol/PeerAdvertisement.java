@@ -147,6 +147,13 @@ public abstract class PeerAdvertisement extends ExtendableAdvertisement implemen
      */
     private Hashtable serviceParams = new Hashtable();
 
+    /**
+     *  The serialized form returned by {@link #toString()} and the modCount
+     *  at which it was produced.
+     */
+    private transient String cachedString = null;
+    private transient int cachedStringModCount = -1;
+
     /**
      *  Make a safe clone of this PeerAdvertisement.
      *
@@ -544,6 +551,23 @@ public abstract class PeerAdvertisement extends ExtendableAdvertisement implemen
 
         serviceParams = copy;
     }
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The serialized form is kept until the next modification of this
+     *  advertisement.
+     */
+    public synchronized String toString() {
+        if ((null == cachedString) || (modCount != cachedStringModCount)) {
+            int atModCount = modCount;
+
+            cachedString = super.toString();
+            cachedStringModCount = atModCount;
+        }
+
+        return cachedString;
+    }
+
     /**
      *  {@inheritDoc}
      */
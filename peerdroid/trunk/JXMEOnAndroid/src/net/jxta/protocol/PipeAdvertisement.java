@@ -108,6 +108,18 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
     private ID pipeId = ID.nullID;
     private String type = null;
 
+    /**
+     *  Counts the changes made to this object.
+     */
+    protected transient volatile int modCount = 0;
+
+    /**
+     *  The serialized form returned by {@link #toString()} and the modCount
+     *  at which it was produced.
+     */
+    private transient String cachedString = null;
+    private transient int cachedStringModCount = -1;
+
     /**
      *  {@inheritDoc}
      *
@@ -229,6 +241,7 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
         } else {
             this.description = null;
         }
+        modCount++;
     }
 
     /**
@@ -245,6 +258,7 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
         } else {
             this.description = null;
         }
+        modCount++;
     }
 
     /**
@@ -259,7 +273,7 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
         } else {
             indexMap.remove(NameTag);
         }
-
+        modCount++;
     }
 
     /**
@@ -274,6 +288,7 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
         } else {
             indexMap.remove(IdTag);
         }
+        modCount++;
     }
 
     /**
@@ -283,6 +298,24 @@ public abstract class PipeAdvertisement extends ExtendableAdvertisement {
      */
     public void setType(String type) {
         this.type = type;
+        modCount++;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The serialized form is kept until the next modification of this
+     *  advertisement.
+     */
+    public synchronized String toString() {
+        if ((null == cachedString) || (modCount != cachedStringModCount)) {
+            int atModCount = modCount;
+
+            cachedString = super.toString();
+            cachedStringModCount = atModCount;
+        }
+
+        return cachedString;
     }
 }
 
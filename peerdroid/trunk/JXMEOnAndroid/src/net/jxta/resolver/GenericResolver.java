@@ -101,7 +101,8 @@ public interface GenericResolver {
      * send a srdi message to a peer.
      * @param destPeer is the destination of the srdi message
      * @param srdi is the srdi message to be sent
+     * @return true if the message was handed to the network
      */
-    public void sendSrdi(String destPeer,
+    public boolean sendSrdi(String destPeer,
                                ResolverSrdiMsg srdi);			       
 }
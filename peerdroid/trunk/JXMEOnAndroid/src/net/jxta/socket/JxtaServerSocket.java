@@ -72,6 +72,7 @@ import net.jxta.endpoint.InputStreamMessageElement;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
 import net.jxta.endpoint.Messenger;
+import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.util.UnbiasedQueue;
@@ -104,6 +105,8 @@ import org.apache.log4j.Logger;
  * <p>
  *  &lt;stream> determine whether the connection is reliable, or not &lt;/stream>
  * <p>
+ *  &lt;bulk> request for, or grant of, bulk transfer mode &lt;/bulk>
+ * <p>
  *  &lt;close> close request &lt;/close>
  * <p>
  *  &lt;data> Data &lt;/data>
@@ -123,6 +126,7 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
     public static final String    dataTag = "data";
     public static final String   closeTag = "close";
     public static final String   streamTag = "stream";
+    public static final String     bulkTag = "bulk";
     protected PeerGroup group;
     protected InputPipe serverPipe;
     protected PipeAdvertisement pipeadv;
@@ -134,6 +138,7 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
     protected boolean bound = false;
     protected boolean closed = false;
     protected StructuredDocument myCredentialDoc = null;
+    protected boolean bulkAllowed = true;
 
     /**
      * Default Constructor
@@ -515,11 +520,19 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
                     LOG.debug("Connection request [isStream] :" + isStream);
                 }
             }
+            el = msg.getMessageElement(nameSpace, bulkTag);
+            boolean bulk = false;
+            if (el != null) {
+                bulk = isStream && bulkAllowed && (el.toString().equals("true"));
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Connection request [bulk] :" + bulk);
+                }
+            }
             Messenger msgr = JxtaSocket.lightweightOutputPipe(group, outputPipeAdv, peerAdv);
             if (msgr != null) {
                 PipeAdvertisement newpipe = newInputPipe(group, outputPipeAdv);
-                JxtaSocket newsoc = new JxtaSocket(group, msgr, newpipe, credDoc, isStream);
-                sendResponseMessage(group, msgr, newpipe);
+                JxtaSocket newsoc = new JxtaSocket(group, msgr, newpipe, credDoc, isStream, bulk);
+                sendResponseMessage(group, msgr, newpipe, bulk);
                 return newsoc;
             }
         } catch (IOException e) {
@@ -542,6 +555,18 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
      * @param pipeAd
      */
     protected void sendResponseMessage(PeerGroup group, Messenger msgr, PipeAdvertisement pipeAd) throws IOException {
+        sendResponseMessage(group, msgr, pipeAd, false);
+    }
+
+    /**
+     * Method sendResponseMessage get the createResponseMessage and sends it.
+     * 
+     * @param group
+     * @param msgr
+     * @param pipeAd
+     * @param bulk true if the bulk transfer mode requested is granted
+     */
+    protected void sendResponseMessage(PeerGroup group, Messenger msgr, PipeAdvertisement pipeAd, boolean bulk) throws IOException {
 
         Message msg = new Message();
         PeerAdvertisement peerAdv = group.getPeerAdvertisement();
@@ -557,6 +582,9 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
                               new TextDocumentMessageElement(remPipeTag, (XMLDocument) pipeAd.getDocument(MimeMediaType.XMLUTF8), null));
 
         msg.addMessageElement(nameSpace, new TextDocumentMessageElement(remPeerTag, (XMLDocument) peerAdv.getDocument(MimeMediaType.XMLUTF8), null));
+        if (bulk) {
+            msg.addMessageElement(nameSpace, new StringMessageElement(bulkTag, Boolean.toString(bulk), null));
+        }
         msgr.sendMessageB(msg, null, null);
     }
 
@@ -588,6 +616,27 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
         this.myCredentialDoc = doc;
     }
 
+    /**
+     *  Sets whether connection requests for bulk transfer mode are granted.
+     *  Bulk mode is granted by default; it only applies to reliable
+     *  connections whose requestor asked for it.
+     *
+     *  @param allowed true to grant bulk mode to the sockets asking for it
+     *  @see JxtaSocket#setBulkMode(boolean)
+     */
+    public void setBulkModeAllowed(boolean allowed) {
+        this.bulkAllowed = allowed;
+    }
+
+    /**
+     *  Gets whether connection requests for bulk transfer mode are granted.
+     *
+     *  @return true if bulk mode is granted to the sockets asking for it
+     */
+    public boolean isBulkModeAllowed() {
+        return bulkAllowed;
+    }
+
     /**
      * @return the server socket's JxtaSocketAddress
      * @see java.net.ServerSocket#getLocalSocketAddress()
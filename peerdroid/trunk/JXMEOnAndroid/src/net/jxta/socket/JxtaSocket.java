@@ -86,7 +86,7 @@ import net.jxta.endpoint.StringMessageElement;
 import net.jxta.id.ID;
 import net.jxta.impl.util.UnbiasedQueue;
 import net.jxta.impl.util.pipe.reliable.Defs;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.AdaptiveFlowControl;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
@@ -102,6 +102,9 @@ import net.jxta.pipe.PipeMsgListener;
 import net.jxta.pipe.PipeService;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.util.AbstractSimpleSelectable;
+import net.jxta.util.SimpleSelectable;
+import net.jxta.util.SimpleSelector;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -123,15 +126,35 @@ import org.apache.log4j.Logger;
  * <p>
  *  &lt;stream> determine whether the connection is reliable, or not &lt;/stream>
  * <p>
+ *  &lt;bulk> request for, or grant of, bulk transfer mode &lt;/bulk>
+ * <p>
  *  &lt;close> close request &lt;/close>
  * <p>
  *  &lt;data> Data &lt;/data>
  * <p>
- *
+ *  JxtaSocket is a {@link SimpleSelectable}: registered selectors are notified
+ *  whenever data arrives or the socket is closed, so that a single thread may
+ *  service many sockets, reading only what <code>available()</code> reports.
  */
-public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeListener {
+public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeListener, SimpleSelectable {
     private final static Logger LOG = Logger.getLogger(JxtaSocket.class.getName());
     private final static int MAXRETRYTIMEOUT = 120000;
+
+    /**
+     *  Size of the data blocks sent in bulk mode. Stays below the 64KB
+     *  messenger MTU once the message is framed.
+     */
+    private final static int BULK_BLOCK_SIZE = 60 * 1024;
+
+    /**
+     *  Maximum number of unacknowledged bytes in bulk mode.
+     */
+    private final static int BULK_SEND_WINDOW = 1024 * 1024;
+
+    /**
+     *  Number of in sequence blocks covered by one cumulative ACK in bulk mode.
+     */
+    private final static int BULK_ACK_INTERVAL = 8;
     protected PeerGroup group;
     protected PipeAdvertisement pipeAdv;
     protected PipeAdvertisement myPipeAdv;
@@ -157,6 +180,8 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     protected StructuredDocument myCredentialDoc = null;
     // reliable is the default mode of operation
     protected boolean isStream = true;
+    // bulk transfer mode, requested by the connecting side
+    protected boolean bulkMode = false;
     protected OutgoingMsgrAdaptor outgoing = null;
     protected ReliableInputStream ris = null;
     protected ReliableOutputStream ros = null;
@@ -165,6 +190,22 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     private boolean osCreated = false;
     private InputStream currentMsgStream = null;
 
+    /**
+     *  Our identity reference as a SimpleSelectable.
+     */
+    private final IdentityReference identityReference = new IdentityReference(this);
+
+    /**
+     *  Keeps track of the selectors registered with this socket and reports
+     *  this socket as the changed object. A Socket cannot extend
+     *  AbstractSimpleSelectable, so it is composed instead.
+     */
+    private final AbstractSimpleSelectable selectable = new AbstractSimpleSelectable(this) {
+        public void itemChanged(SimpleSelectable changedObject) {
+            notifyChange();
+        }
+    };
+
     /**
      *  Constructor for the JxtaSocket, this constructor does not establish a connection
      *  use this constructor when altering the default parameters, and options of the socket
@@ -191,6 +232,27 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                          PipeAdvertisement pipe,
                          StructuredDocument credDoc,
                          boolean isStream) throws IOException {
+        this(group, msgr, pipe, credDoc, isStream, false);
+    }
+
+    /**
+     *  Constructor for the JxtaSocket, used by JxtaServerSocket once a
+     *  connection request has been accepted.
+     *
+     *@param  group            group context
+     *@param  msgr             lightweight output pipe
+     *@param  pipe             PipeAdvertisement
+     *@param  credDoc          remote node's crendetial StructuredDocument
+     *@param  isStream         true for a reliable connection
+     *@param  bulkMode         true if bulk transfer mode was granted
+     *@exception  IOException  if an io error occurs
+     */
+    protected JxtaSocket(PeerGroup group,
+                         Messenger msgr,
+                         PipeAdvertisement pipe,
+                         StructuredDocument credDoc,
+                         boolean isStream,
+                         boolean bulkMode) throws IOException {
 
         if (msgr == null ) {
             throw new IOException("Null Messenger");
@@ -202,6 +264,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         this.in = pipeSvc.createInputPipe(pipe, this);
         this.msgr = msgr;
         this.isStream = isStream;
+        this.bulkMode = isStream && bulkMode;
 
         if (isStream) {
             // Force the creation of the inputStream now. So that we do not
@@ -597,6 +660,12 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                               new StringMessageElement(JxtaServerSocket.streamTag,
                                                        Boolean.toString(isStream),
                                                        null));
+            if (isStream && bulkMode) {
+                msg.addMessageElement(JxtaServerSocket.nameSpace,
+                                  new StringMessageElement(JxtaServerSocket.bulkTag,
+                                                           Boolean.toString(bulkMode),
+                                                           null));
+            }
             msg.addMessageElement(JxtaServerSocket.nameSpace,
                                   new TextDocumentMessageElement(JxtaServerSocket.remPeerTag,
                                                                 (XMLDocument) peerAdv.getDocument(MimeMediaType.XMLUTF8), null));
@@ -650,6 +719,9 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         }
         if (ris == null) {
             ris = new ReliableInputStream(outgoing, retryTimeout);
+            if (bulkMode) {
+                ris.setAckInterval(BULK_ACK_INTERVAL);
+            }
         }
     }
 
@@ -703,11 +775,14 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                 outgoing = new OutgoingMsgrAdaptor(msgr, retryTimeout);
             }
             if (ros == null) {
-                ros = new ReliableOutputStream(outgoing, new FixedFlowControl(windowSize));
+                ros = new ReliableOutputStream(outgoing, new AdaptiveFlowControl(windowSize));
+                if (bulkMode) {
+                    ros.setSendWindowBytes(BULK_SEND_WINDOW);
+                }
             }
         }
         osCreated = true;
-        return new JxtaSocketOutputStream(this, outputBufferSize);
+        return new JxtaSocketOutputStream(this, bulkMode ? BULK_BLOCK_SIZE : outputBufferSize);
     }
 
     /**
@@ -898,6 +973,8 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Close complete");
         }
+        // let selectors observe the closure.
+        selectable.itemChanged(this);
     }
 
 
@@ -954,6 +1031,12 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                     if (element != null) {
                         isStream = (element.toString().equals("true"));
                     }
+
+                    // Bulk mode only if the remote side granted it. Older
+                    // peers do not know about it and never answer.
+                    element = message.getMessageElement (JxtaServerSocket.nameSpace, JxtaServerSocket.bulkTag);
+                    bulkMode = isStream && bulkMode && (element != null) &&
+                               element.toString().equals("true");
                     msgr = lightweightOutputPipe(group, pa, peerAdv);
                     if (msgr == null) {
                         // let the connection attempt timeout
@@ -1025,6 +1108,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                     LOG.debug("Interrupted", e);
                 }
             }
+            selectable.itemChanged(this);
             return;
         }
 
@@ -1053,6 +1137,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
 
             if (ris != null) {
                 ris.recv(message);
+                selectable.itemChanged(this);
             }
         }
         //net.jxta.impl.util.MessageUtil.printMessageStats(message, true);
@@ -1239,7 +1324,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     }
 
     /**
-     *  When in reliable mode, gets the Reliable library window size
+     *  When in reliable mode, gets the Reliable library initial window size
      *
      * @return                  The windowSize value
      * @exception  IOException  if an I/O error occurs
@@ -1249,7 +1334,9 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     }
 
     /**
-     *  When in reliable mode, sets the Reliable library window size
+     *  When in reliable mode, sets the Reliable library initial window size.
+     *  The window then adapts to the link, up to the size of the remote
+     *  queue.
      *
      * @param  windowSize              The new window size value
      * @exception  IOException  if an I/O error occurs
@@ -1261,6 +1348,67 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         this.windowSize = windowSize;
     }
 
+    /**
+     *  Requests bulk transfer mode for a reliable connection. In bulk mode
+     *  data is sent in large fixed size blocks, the receiver acknowledges
+     *  them with cumulative ACKs and the sender limits the data awaiting
+     *  acknowledgement in bytes rather than in messages. The mode is
+     *  negotiated when connecting; if the remote side does not grant it,
+     *  the connection uses the regular mode.
+     *
+     * @param  bulkMode                true to request bulk transfer mode
+     * @exception  SocketException     if the socket is already bound
+     */
+    public synchronized void setBulkMode(boolean bulkMode) throws SocketException {
+        if (isBound()) {
+            throw new SocketException("Socket bound. Can not change the transfer mode");
+        }
+        this.bulkMode = bulkMode;
+    }
+
+    /**
+     *  Returns whether this socket uses bulk transfer mode. Once connected,
+     *  this reflects the outcome of the negotiation.
+     *
+     * @return    true if bulk transfer mode is in use or requested
+     */
+    public synchronized boolean isBulkMode() {
+        return bulkMode;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public IdentityReference getIdentityReference() {
+        return identityReference;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The selector is notified whenever data arrives or the socket is
+     *  closed. The input stream's <code>available()</code> method can then
+     *  be used to read without blocking.
+     */
+    public void register(SimpleSelector s) {
+        selectable.registerListener(s);
+        s.itemChanged(this);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void unregister(SimpleSelector s) {
+        selectable.unregisterListener(s);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void itemChanged(SimpleSelectable changedObject) {
+        selectable.itemChanged(this);
+    }
+
     /**
      * Returns the closed state of the JxtaServerSocket.
      *
@@ -1370,8 +1518,8 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     /**
      * Returns the number of bytes that can be read 
      * (or skipped over) from this input stream.
-     * It's possible for this call to block, when called for the very first time
-     * before the internal stream has ever been created (i.e. no data receieved)
+     * This call never blocks. It returns 0 until the next in order data
+     * has arrived.
      * @return the number of bytes that can be read from this input stream 
      *          without blocking
      * @throws IOException - if an I/O error occurs.
@@ -1383,9 +1531,9 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         }
 
         int result = 0;
-        // if currentMsgStream is null, then next read call will block
+        // if there is no message yet, then next read call will block
         // so we return 0 to indicate this.
-        InputStream in = getCurrentStream();
+        InputStream in = getCurrentStream(-1);
         if(in != null) {
             result = in.available();
         }
@@ -1393,6 +1541,15 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     }
 
     private InputStream getCurrentStream() throws IOException {
+        return getCurrentStream(timeout);
+    }
+
+    /**
+     *  Returns the stream of the message being read, waiting at most
+     *  <code>wait</code> milliseconds for the next message if there is none.
+     *  A negative wait does not block.
+     */
+    private InputStream getCurrentStream(long wait) throws IOException {
 
         // despite the warning about thread-saftey and the
         // getCurrentInQueue method, if queue is closed and the number in
@@ -1403,7 +1560,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
             if(currentMsgStream == null) {
                 MessageElement me;
                 try {
-                    me = (MessageElement) queue.pop(timeout);
+                    me = (MessageElement) queue.pop(wait);
                 } catch (InterruptedException e) {
                     throw new IOException(e.toString());
                 }
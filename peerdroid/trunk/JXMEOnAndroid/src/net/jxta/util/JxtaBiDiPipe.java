@@ -55,9 +55,17 @@
  */
 package net.jxta.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import java.io.IOException;
 
@@ -69,6 +77,7 @@ import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.XMLDocument;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointService;
+import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.Message;
@@ -88,11 +97,14 @@ import net.jxta.pipe.PipeMsgListener;
 import net.jxta.pipe.PipeService;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.util.TimerThreadNamer;
 import net.jxta.impl.util.UnbiasedQueue;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.AdaptiveFlowControl;
 import net.jxta.impl.util.pipe.reliable.Defs;
 
 import org.apache.log4j.Level;
@@ -116,13 +128,40 @@ import org.apache.log4j.Logger;
  *  <p>
  *  &lt;reliable> Reliability setting ("true", or "false") &lt;/reliable>
  *  <p>
+ *  &lt;batching> "true" if the sender accepts message batches &lt;/batching>
+ *  <p>
+ *  &lt;batch> one serialized application message of a batch &lt;/batch>
+ *  <p>
  *  &lt;data> data &lt;data>
  *
+ *  <p/>When no message listener is set, JxtaBiDiPipe is a {@link SimpleSelectable}:
+ *  registered selectors are notified whenever a message is queued or the pipe
+ *  is closed, so that a single thread may service many pipes with
+ *  <code>getMessage(-1)</code>, which does not block.
  */
-public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  ReliableInputStream.MsgListener {
+public class JxtaBiDiPipe extends AbstractSimpleSelectable implements PipeMsgListener, OutputPipeListener,  ReliableInputStream.MsgListener {
     private final static int MAXRETRYTIMEOUT = 120000;
 
     private final static Logger LOG = Logger.getLogger(JxtaBiDiPipe.class.getName());
+
+    /**
+     *  Maximum number of bytes of serialized messages packed into a single
+     *  batch. Stays below the 64KB messenger MTU once framed.
+     */
+    private final static int MAX_BATCH_SIZE = 60 * 1024;
+
+    /**
+     *  Timer scheduling the flushes of the auto-batches of all the pipes,
+     *  created on first use.
+     */
+    private static Timer batchTimer = null;
+
+    /**
+     *  Threads running the flushes scheduled by the batch timer, which may
+     *  block on the pipe, created on first use.
+     */
+    private static Executor batchFlusher = null;
+
     private PipeAdvertisement remotePipeAdv;
     private PeerID peerid;
     private PeerAdvertisement remotePeerAdv;
@@ -154,6 +193,16 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
     protected ReliableOutputStream ros = null;
     protected StructuredDocument credentialDoc = null;
     protected StructuredDocument myCredentialDoc = null;
+    protected final String batchLock  = new String("batchLock");
+    // auto-batching window in milliseconds, 0 when disabled
+    private int batchWindow = 0;
+    // messages waiting for the auto-batch to be flushed and their serialized form
+    private final List batchMsgs = new ArrayList();
+    private final List batchData = new ArrayList();
+    private int batchSize = 0;
+    private TimerTask batchTask = null;
+    // true if the remote side accepts message batches
+    private volatile boolean remoteBatching = false;
 
     /**
      * Pipe close Event
@@ -392,7 +441,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                 outgoing = new OutgoingMsgrAdaptor(msgr, timeout);
             }
             if (ros == null) {
-                ros = new ReliableOutputStream(outgoing, new FixedFlowControl(20));
+                ros = new ReliableOutputStream(outgoing, new AdaptiveFlowControl());
             }
             if (ris == null) {
                 ris = new ReliableInputStream(outgoing, timeout, this);
@@ -482,6 +531,10 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                                   new StringMessageElement(JxtaServerPipe.reliableTag,
                                                            Boolean.toString(isReliable),
                                                            null));
+            msg.addMessageElement(JxtaServerPipe.nameSpace,
+                                  new StringMessageElement(JxtaServerPipe.batchingTag,
+                                                           Boolean.toString(true),
+                                                           null));
 
             msg.addMessageElement(JxtaServerPipe.nameSpace,
                                   new TextDocumentMessageElement(JxtaServerPipe.remPeerTag,
@@ -637,8 +690,12 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
      *      socket.
      */
     public void close() throws IOException {
-        sendClose();
-        closePipe();
+        try {
+            flush();
+        } finally {
+            sendClose();
+            closePipe();
+        }
     }
 
     protected void closePipe() throws IOException {
@@ -706,6 +763,8 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Pipe close complete");
         }
+        // let selectors observe the closure.
+        notifyChange();
         if (eventListener != null) {
             try {
                 eventListener.pipeEvent(PIPE_CLOSED_EVENT);
@@ -795,6 +854,12 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                     if (element != null) {
                         isReliable = (Boolean.valueOf(element.toString())).booleanValue();
                     }
+
+                    // Batches only if the remote side accepts them. Older
+                    // peers do not know about them and never answer.
+                    element = message.getMessageElement (JxtaServerPipe.nameSpace,
+                                                         JxtaServerPipe.batchingTag);
+                    setRemoteBatching((element != null) && element.toString().equals("true"));
                     msgr = lightweightOutputPipe(group, remotePipeAdv, remotePeerAdv);
                     if (LOG.isEnabledFor(Level.DEBUG)) {
                         LOG.debug("Reliability set to :"+isReliable);
@@ -890,6 +955,38 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
     }
 
     private void push(PipeMsgEvent event) {
+        Iterator batched = event.getMessage().getMessageElements(JxtaServerPipe.nameSpace,
+                                                                 JxtaServerPipe.batchTag);
+        if (!batched.hasNext()) {
+            deliver(event);
+            return;
+        }
+
+        // unpack the batch and deliver its messages in order. We never send
+        // nested batches, so a batch within a batch is dropped.
+        while (batched.hasNext()) {
+            MessageElement element = (MessageElement) batched.next();
+            try {
+                Message message = WireFormatMessageFactory.fromWire(element.getStream(),
+                                                                    Defs.MIME_TYPE_MSG,
+                                                                    null);
+                if (message.getMessageElements(JxtaServerPipe.nameSpace,
+                                               JxtaServerPipe.batchTag).hasNext()) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Dropping nested message batch");
+                    }
+                    continue;
+                }
+                deliver(new PipeMsgEvent(event.getSource(), message, event.getPipeID()));
+            } catch (IOException e) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Could not deserialize batched message", e);
+                }
+            }
+        }
+    }
+
+    private void deliver(PipeMsgEvent event) {
         if (msgListener == null) {
             try {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -897,6 +994,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                 }
                 queue.push(event, -1);
             } catch (InterruptedException ie) {}
+            notifyChange();
         }
         else {
             dequeue();
@@ -909,12 +1007,205 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
     }
 
     /**
-     * Send a message
+     * Send a message. If auto-batching is enabled and the remote side
+     * accepts batches, the message is queued and sent with the other
+     * messages of the batch window.
      *
      *@param  msg  Message to send to the remote side
+     *@return true if the message was sent or queued for batching
+     *@see #setBatchWindow(int)
      */
-
     public boolean sendMessage(Message msg) throws IOException {
+        synchronized (batchLock) {
+            if ((batchWindow > 0) && remoteBatching) {
+                return addToBatch(msg);
+            }
+        }
+        return send(msg);
+    }
+
+    /**
+     * Send a list of messages. The messages are packed into as few wire
+     * messages as possible and delivered one by one, in order, to the
+     * remote listener. Messages queued by auto-batching are sent first.
+     * If the remote side does not accept batches, the messages are sent
+     * one by one.
+     *
+     *@param  msgs  List of Messages to send to the remote side
+     *@return true if all the messages were sent
+     */
+    public boolean sendMessages(List msgs) throws IOException {
+        synchronized (batchLock) {
+            boolean sent = true;
+            Iterator eachMsg = msgs.iterator();
+            if (!remoteBatching) {
+                while (eachMsg.hasNext()) {
+                    sent &= send((Message) eachMsg.next());
+                }
+                return sent;
+            }
+            while (eachMsg.hasNext()) {
+                sent &= addToBatch((Message) eachMsg.next());
+            }
+            return flushBatch() && sent;
+        }
+    }
+
+    /**
+     * Sends the messages queued by auto-batching right away.
+     *
+     *@return true if the messages were sent
+     */
+    public boolean flush() throws IOException {
+        synchronized (batchLock) {
+            return flushBatch();
+        }
+    }
+
+    /**
+     * Sets the auto-batching window. When it is greater than zero,
+     * messages passed to sendMessage are queued and sent together once the
+     * oldest of them has waited that long, or when the batch is full.
+     *
+     *@param  millis  the batching window in milliseconds, 0 to disable.
+     */
+    public void setBatchWindow(int millis) throws IOException {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative batch window");
+        }
+        synchronized (batchLock) {
+            batchWindow = millis;
+            if (millis == 0) {
+                flushBatch();
+            }
+        }
+    }
+
+    /**
+     * Sets whether the remote side accepts message batches, as negotiated
+     * when the connection is established.
+     *
+     *@param  batching  true if the remote side accepts batches.
+     */
+    void setRemoteBatching(boolean batching) {
+        remoteBatching = batching;
+    }
+
+    /**
+     * Returns the auto-batching window.
+     *
+     *@return the batching window in milliseconds, 0 if disabled.
+     */
+    public int getBatchWindow() {
+        synchronized (batchLock) {
+            return batchWindow;
+        }
+    }
+
+    /**
+     * Queues a message for the next batch, flushing the batch first if the
+     * message does not fit in it. Must be called with batchLock held.
+     */
+    private boolean addToBatch(Message msg) throws IOException {
+        WireFormatMessage serialized =
+            WireFormatMessageFactory.toWire(msg, Defs.MIME_TYPE_MSG, null);
+        ByteArrayOutputStream baos =
+            new ByteArrayOutputStream((int) serialized.getByteLength());
+        serialized.sendToStream(baos);
+        baos.close();
+        byte[] data = baos.toByteArray();
+
+        boolean sent = true;
+        if (!batchMsgs.isEmpty() && (batchSize + data.length > MAX_BATCH_SIZE)) {
+            sent = flushBatch();
+        }
+        batchMsgs.add(msg);
+        batchData.add(data);
+        batchSize += data.length;
+
+        if ((batchWindow > 0) && (null == batchTask)) {
+            // the timer only hands the flush over, as sending may block.
+            batchTask = new TimerTask() {
+                public void run() {
+                    getBatchFlusher().execute(new Runnable() {
+                        public void run() {
+                            try {
+                                flush();
+                            } catch (IOException e) {
+                                if (LOG.isEnabledFor(Level.WARN)) {
+                                    LOG.warn("failed to flush message batch", e);
+                                }
+                            }
+                        }
+                    });
+                }
+            };
+            getBatchTimer().schedule(batchTask, batchWindow);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the queued batch as a single message. A batch of one message is
+     * sent as is. Must be called with batchLock held.
+     */
+    private boolean flushBatch() throws IOException {
+        if (null != batchTask) {
+            batchTask.cancel();
+            batchTask = null;
+        }
+        if (batchMsgs.isEmpty()) {
+            return true;
+        }
+        Message msg;
+        if (batchMsgs.size() == 1) {
+            msg = (Message) batchMsgs.get(0);
+        } else {
+            msg = new Message();
+            Iterator eachData = batchData.iterator();
+            while (eachData.hasNext()) {
+                msg.addMessageElement(JxtaServerPipe.nameSpace,
+                                      new ByteArrayMessageElement(JxtaServerPipe.batchTag,
+                                                                  Defs.MIME_TYPE_MSG,
+                                                                  (byte[]) eachData.next(),
+                                                                  null));
+            }
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("sending a batch of " + batchMsgs.size() + " messages, " +
+                          batchSize + " bytes");
+            }
+        }
+        batchMsgs.clear();
+        batchData.clear();
+        batchSize = 0;
+        return send(msg);
+    }
+
+    private static synchronized Timer getBatchTimer() {
+        if (null == batchTimer) {
+            batchTimer = new Timer(true);
+            batchTimer.schedule(new TimerThreadNamer("JxtaBiDiPipe batch timer"), 0);
+        }
+        return batchTimer;
+    }
+
+    private static synchronized Executor getBatchFlusher() {
+        if (null == batchFlusher) {
+            batchFlusher = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable flush) {
+                    Thread flusher = new Thread(flush, "JxtaBiDiPipe batch flusher");
+                    flusher.setDaemon(true);
+                    return flusher;
+                }
+            });
+        }
+        return batchFlusher;
+    }
+
+    /**
+     * Sends a single message through the reliable library or the messenger.
+     */
+    private boolean send(Message msg) throws IOException {
         if (isReliable) {
              int seqn = ros.send(msg);
              return (seqn > 0);
@@ -1024,7 +1315,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                                                        "close",
                                                        null));
         try {
-            sendMessage(msg);
+            send(msg);
         } catch (IOException ie) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.error("failed during close", ie);
@@ -1134,6 +1425,13 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
         }
     }
 
+    /**
+     *  {@inheritDoc}
+     */
+    public void itemChanged(SimpleSelectable changedObject) {
+        notifyChange();
+    }
+
     /**
      * Returns the Assigned PipeAdvertisement
      * @return the Assigned PipeAdvertisement
@@ -69,6 +69,7 @@ import net.jxta.endpoint.InputStreamMessageElement;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
 import net.jxta.endpoint.Messenger;
+import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.util.UnbiasedQueue;
@@ -100,6 +101,8 @@ import org.apache.log4j.Logger;
  *  <p>
  *  &lt;reliable> Reliability setting ("true", or "false") &lt;/reliable>
  *  <p>
+ *  &lt;batching> "true" if the sender accepts message batches &lt;/batching>
+ *  <p>
  *  &lt;data> data &lt;/data> 
  *  <p>
  *  JxtaServerPipe then creates a new private pipe, and listens for messages on that pipe
@@ -117,6 +120,8 @@ public class JxtaServerPipe implements PipeMsgListener {
     protected static final String remPipeTag = "remPipe";
     protected static final String   closeTag = "close";
     protected static final String   reliableTag = "reliable";
+    protected static final String   batchTag = "batch";
+    protected static final String   batchingTag = "batching";
     private PeerGroup group;
     private InputPipe serverPipe;
     private PipeAdvertisement pipeadv;
@@ -431,6 +436,13 @@ public class JxtaServerPipe implements PipeMsgListener {
                 }
 
             }
+            el = msg.getMessageElement (nameSpace, batchingTag);
+            boolean batching = (el != null) && el.toString().equals("true");
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Connection request [batching] :" + batching);
+            }
+
             Messenger msgr = JxtaBiDiPipe.lightweightOutputPipe(group, outputPipeAdv,peerAdv);
 
             if (msgr != null) {
@@ -447,6 +459,7 @@ public class JxtaServerPipe implements PipeMsgListener {
                                                      isReliable);
                 pipe.setRemotePeerAdvertisement(peerAdv);
                 pipe.setRemotePipeAdvertisement(outputPipeAdv);
+                pipe.setRemoteBatching(batching);
                 sendResponseMessage(group, msgr, newpipe);
                 return pipe;
             }
@@ -487,6 +500,9 @@ public class JxtaServerPipe implements PipeMsgListener {
 
         msg.addMessageElement(nameSpace,
                               new TextDocumentMessageElement(remPeerTag, (XMLDocument) peerAdv.getDocument(MimeMediaType.XMLUTF8), null));
+        // we accept batches whatever the requestor does.
+        msg.addMessageElement(nameSpace,
+                              new StringMessageElement(batchingTag, Boolean.toString(true), null));
         msgr.sendMessage(msg);
     }
 